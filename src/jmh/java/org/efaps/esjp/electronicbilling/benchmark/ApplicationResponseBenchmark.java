@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.ubl.marshaller.DocumentMarshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the ApplicationResponse (CDR) returned by SUNAT. The corpus
+ * lives in <code>src/jmh/resources/cdr</code>.
+ *
+ * @author The eFaps Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApplicationResponseBenchmark
+{
+
+    @Param({ "accepted", "observed", "rejected" })
+    private String cdr;
+
+    private String xml;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        try (InputStream in = getClass().getResourceAsStream("/cdr/" + cdr + ".xml")) {
+            xml = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Benchmark
+    public Object parse()
+    {
+        return DocumentMarshaller.applicationResponse().read(xml);
+    }
+
+    @Benchmark
+    public String parseResponseCode()
+    {
+        final var appResponse = DocumentMarshaller.applicationResponse().read(xml);
+        return appResponse.getDocumentResponseAtIndex(0).getResponse().getResponseCodeValue();
+    }
+}
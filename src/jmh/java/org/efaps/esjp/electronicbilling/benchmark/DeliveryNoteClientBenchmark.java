@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.esjp.electronicbilling.fiscus.client.rest.DeliveryNoteClient;
+import org.efaps.util.EFapsException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packing of a DeliveryNote UBL for the SUNAT REST API: zip, Base64 and
+ * SHA-256 of the zip.
+ *
+ * @author The eFaps Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeliveryNoteClientBenchmark
+{
+
+    @Param({ "1", "100", "1000" })
+    private int lines;
+
+    private BenchmarkClient client;
+
+    private String ubl;
+
+    private File dir;
+
+    private File zipFile;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        client = new BenchmarkClient();
+        ubl = SyntheticDocuments.getDeliveryNote(lines).getUBLXml();
+        dir = Files.createTempDirectory("efaps-benchmark").toFile();
+        zipFile = client.zip(ubl, "20100000001-09-T001-" + lines, new File(dir, "prepared.zip"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for (final var file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public File zip()
+        throws EFapsException
+    {
+        return client.zip(ubl, "20100000001-09-T001-" + lines, new File(dir, "benchmark.zip"));
+    }
+
+    @Benchmark
+    public String getBase64Zip()
+    {
+        return client.getBase64Zip(zipFile);
+    }
+
+    @Benchmark
+    public String getHashSha256()
+    {
+        return client.getHashSha256(zipFile);
+    }
+
+    /**
+     * Exposes the protected methods of the client.
+     */
+    public static class BenchmarkClient
+        extends DeliveryNoteClient
+    {
+
+        @Override
+        public File zip(final String ubl,
+                        final String fileName,
+                        final File file)
+            throws EFapsException
+        {
+            return super.zip(ubl, fileName, file);
+        }
+
+        @Override
+        public String getBase64Zip(final File zipFile)
+        {
+            return super.getBase64Zip(zipFile);
+        }
+
+        @Override
+        public String getHashSha256(final File zipFile)
+        {
+            return super.getHashSha256(zipFile);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.esjp.electronicbilling.UBLService_Base.UBlSigning;
+import org.efaps.ubl.dto.SignResponseDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Signing throughput with one thread and with one thread per core. The
+ * throughput per core is the result of the "PerCore" benchmarks divided by
+ * the number of available processors; compared with the single thread
+ * result it shows how well signing scales.
+ *
+ * @author The eFaps Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SigningThroughputBenchmark
+{
+
+    @Param({ "10", "100" })
+    private int lines;
+
+    private KeyStore.PrivateKeyEntry keyEntry;
+
+    private String invoiceXml;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        keyEntry = TestKeyStore.createKeyEntry();
+        invoiceXml = SyntheticDocuments.getInvoice(lines).getUBLXml();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SignResponseDto signSingleThread()
+        throws Exception
+    {
+        return sign();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public SignResponseDto signPerCore()
+        throws Exception
+    {
+        return sign();
+    }
+
+    private SignResponseDto sign()
+        throws Exception
+    {
+        return new UBlSigning()
+                        .withKeyEntry(keyEntry)
+                        .withKeyAlias(TestKeyStore.ALIAS)
+                        .withKeyStorePwd(TestKeyStore.PASSWORD)
+                        .withKeyPwd(TestKeyStore.PASSWORD)
+                        .signDocument(invoiceXml, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.efaps.esjp.electronicbilling.entities.TaxEntry;
+import org.efaps.ubl.documents.AbstractDocument;
+import org.efaps.ubl.documents.CreditNote;
+import org.efaps.ubl.documents.DeliveryNote;
+import org.efaps.ubl.documents.Invoice;
+import org.efaps.ubl.documents.elements.AdditionalItemProperty;
+import org.efaps.ubl.documents.elements.Customer;
+import org.efaps.ubl.documents.elements.Delivery;
+import org.efaps.ubl.documents.elements.Driver;
+import org.efaps.ubl.documents.elements.Equipment;
+import org.efaps.ubl.documents.elements.Line;
+import org.efaps.ubl.documents.elements.Reference;
+import org.efaps.ubl.documents.elements.Shipment;
+import org.efaps.ubl.documents.elements.Stage;
+import org.efaps.ubl.documents.elements.Supplier;
+import org.efaps.ubl.documents.elements.Transport;
+import org.efaps.ubl.documents.interfaces.IAddress;
+import org.efaps.ubl.documents.interfaces.IInstallment;
+import org.efaps.ubl.documents.interfaces.ILine;
+import org.efaps.ubl.documents.interfaces.IPaymentTerms;
+import org.efaps.ubl.documents.interfaces.ITaxEntry;
+import org.efaps.ubl.documents.values.CreditNoteTypeCode;
+import org.efaps.ubl.documents.values.TaxType;
+
+/**
+ * Builds synthetic UBL documents with the same builders and values the
+ * UBLService uses, but without any access to the database.
+ *
+ * @author The eFaps Team
+ */
+public final class SyntheticDocuments
+{
+
+    private static final BigDecimal IGV = new BigDecimal("0.18");
+
+    private SyntheticDocuments()
+    {
+    }
+
+    public static Invoice getInvoice(final int lineCount)
+    {
+        final var ret = new Invoice();
+        ret.withEncoding(StandardCharsets.UTF_8);
+        fill(ret, "F001-" + lineCount, lineCount);
+        return ret;
+    }
+
+    public static CreditNote getCreditNote(final int lineCount)
+    {
+        final var ret = new CreditNote();
+        ret.withEncoding(StandardCharsets.UTF_8);
+        ret.setCreditNoteTypeCode(CreditNoteTypeCode.C01);
+        fill(ret, "FC01-" + lineCount, lineCount);
+        ret.withPaymentTerms(null);
+        ret.withReference(new Reference()
+                        .setDocType("01")
+                        .setNumber("F001-000001")
+                        .setDate(LocalDate.of(2024, 1, 2)));
+        return ret;
+    }
+
+    public static DeliveryNote getDeliveryNote(final int lineCount)
+    {
+        final var ret = new DeliveryNote();
+        ret.withEncoding(StandardCharsets.UTF_8);
+        final var lines = new ArrayList<ILine>();
+        for (int i = 0; i < lineCount; i++) {
+            lines.add(Line.builder()
+                            .withQuantity(BigDecimal.valueOf(i % 10 + 1))
+                            .withSku("SKU-" + i)
+                            .withDescription("Product description for position " + i)
+                            .withUoMCode("NIU")
+                            .withAdditionalItemProperties(Collections.singletonList(new AdditionalItemProperty()))
+                            .build());
+        }
+        final var stage = new Stage()
+                        .withMode("02")
+                        .withStartDate(LocalDate.of(2024, 1, 3))
+                        .withDriver(new Driver()
+                                        .withDoiType("1")
+                                        .withDOI("12345678")
+                                        .withFirstName("Juan")
+                                        .withFamilyName("Perez")
+                                        .withLicense("Q12345678")
+                                        .withJobTitle("Principal"));
+        final var shipment = new Shipment();
+        shipment.withHandlingCode("01")
+                        .withHandlingInstructions("Venta")
+                        .withDelivery(new Delivery()
+                                        .withDeliveryAddress(getAddress("Av. Arequipa 1234 - Lima", "150101"))
+                                        .withDespatchAddress(getAddress("Jr. Cusco 567 - Lima", "150102")))
+                        .addTransportUnit(new Transport().addEquipment(new Equipment().withLicensePlate("ABC123")))
+                        .addStage(stage);
+        shipment.withCrossWeight(BigDecimal.valueOf(lineCount).setScale(3))
+                        .withCrossWeightUoM("KGM");
+        ret.withNumber("T001-" + lineCount)
+                        .withDate(LocalDate.of(2024, 1, 2))
+                        .withTime(LocalTime.of(10, 15, 30))
+                        .withSupplier(getSupplier())
+                        .withCustomer(getCustomer())
+                        .withShipment(shipment);
+        ret.withLines(lines);
+        return ret;
+    }
+
+    private static void fill(final AbstractDocument<?> ubl,
+                             final String number,
+                             final int lineCount)
+    {
+        final var lines = new ArrayList<ILine>();
+        BigDecimal netTotal = BigDecimal.ZERO;
+        for (int i = 0; i < lineCount; i++) {
+            final var quantity = BigDecimal.valueOf(i % 10 + 1);
+            final var netUnitPrice = BigDecimal.valueOf(1000 + i, 2);
+            final var netPrice = netUnitPrice.multiply(quantity).setScale(2, RoundingMode.HALF_UP);
+            final var tax = netPrice.multiply(IGV).setScale(2, RoundingMode.HALF_UP);
+            netTotal = netTotal.add(netPrice);
+            lines.add(Line.builder()
+                            .withQuantity(quantity)
+                            .withSku("SKU-" + i)
+                            .withDescription("Product description for position " + i)
+                            .withNetUnitPrice(netUnitPrice)
+                            .withCrossUnitPrice(netUnitPrice.multiply(BigDecimal.ONE.add(IGV))
+                                            .setScale(2, RoundingMode.HALF_UP))
+                            .withNetPrice(netPrice)
+                            .withCrossPrice(netPrice.add(tax))
+                            .withUoMCode("NIU")
+                            .withTaxEntries(getTaxes(netPrice, true))
+                            .withAllowancesCharges(new ArrayList<>())
+                            .withPriceType("01")
+                            .build());
+        }
+        final var crossTotal = netTotal.add(netTotal.multiply(IGV).setScale(2, RoundingMode.HALF_UP));
+        ubl.withNumber(number)
+                        .withCurrency("PEN")
+                        .withDate(LocalDate.of(2024, 1, 2))
+                        .withCrossTotal(crossTotal)
+                        .withNetTotal(netTotal)
+                        .withSupplier(getSupplier())
+                        .withCustomer(getCustomer())
+                        .withAllowancesCharges(new ArrayList<>())
+                        .withLines(lines)
+                        .withTaxes(getTaxes(netTotal, false))
+                        .withPaymentTerms(new IPaymentTerms()
+                        {
+
+                            @Override
+                            public boolean isCredit()
+                            {
+                                return false;
+                            }
+
+                            @Override
+                            public BigDecimal getTotal()
+                            {
+                                return crossTotal;
+                            }
+
+                            @Override
+                            public List<IInstallment> getInstallments()
+                            {
+                                return Collections.emptyList();
+                            }
+                        });
+    }
+
+    private static List<ITaxEntry> getTaxes(final BigDecimal base,
+                                            final boolean isLine)
+    {
+        final var ret = new ArrayList<ITaxEntry>();
+        ret.add(TaxEntry.builder()
+                        .withTaxType(TaxType.ADVALOREM)
+                        .withTaxExemptionReasonCode(isLine ? "10" : null)
+                        .withAmount(base.multiply(IGV))
+                        .withTaxableAmount(base)
+                        .withPercent(IGV.multiply(BigDecimal.valueOf(100)))
+                        .withName("IGV")
+                        .withCode("VAT")
+                        .withId("1000")
+                        .build());
+        return ret;
+    }
+
+    private static Supplier getSupplier()
+    {
+        final var ret = new Supplier();
+        ret.setDoiType("6");
+        ret.setDOI("20100000001");
+        ret.setName("eFaps Benchmark S.A.C.");
+        ret.setStreetName("Av. Javier Prado Este 123");
+        ret.withGeoLocationId("150131");
+        ret.setCountry("PE");
+        ret.setAnexo("0000");
+        ret.setDistrict("San Isidro");
+        return ret;
+    }
+
+    private static Customer getCustomer()
+    {
+        final var ret = new Customer();
+        ret.setDoiType("6");
+        ret.setDOI("20100000002");
+        ret.setName("Cliente de Prueba S.A.");
+        return ret;
+    }
+
+    private static IAddress getAddress(final String addressLine,
+                                       final String geoLocationId)
+    {
+        return new IAddress()
+        {
+
+            @Override
+            public String getAddressLine()
+            {
+                return addressLine;
+            }
+
+            @Override
+            public String getGeoLocationId()
+            {
+                return geoLocationId;
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Creates a throwaway PKCS12 keystore with a self signed certificate by
+ * calling the keytool of the running JDK, so that no key material has to be
+ * committed for the benchmarks.
+ *
+ * @author The eFaps Team
+ */
+public final class TestKeyStore
+{
+
+    public static final String ALIAS = "benchmark";
+
+    public static final String PASSWORD = "benchmark";
+
+    private TestKeyStore()
+    {
+    }
+
+    public static KeyStore.PrivateKeyEntry createKeyEntry()
+        throws IOException, InterruptedException, GeneralSecurityException
+    {
+        final var dir = Files.createTempDirectory("efaps-benchmark");
+        final var file = dir.resolve("benchmark.p12");
+        try {
+            final var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+            final var process = new ProcessBuilder(keytool, "-genkeypair", "-noprompt",
+                            "-alias", ALIAS,
+                            "-keyalg", "RSA", "-keysize", "2048", "-sigalg", "SHA256withRSA",
+                            "-dname", "CN=eFaps Benchmark, O=eFaps, C=PE",
+                            "-validity", "1",
+                            "-storetype", "PKCS12",
+                            "-keystore", file.toString(),
+                            "-storepass", PASSWORD,
+                            "-keypass", PASSWORD)
+                            .redirectErrorStream(true)
+                            .start();
+            final var output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output);
+            }
+            final var keyStore = KeyStore.getInstance("PKCS12");
+            try (var in = new FileInputStream(file.toFile())) {
+                keyStore.load(in, PASSWORD.toCharArray());
+            }
+            return (KeyStore.PrivateKeyEntry) keyStore.getEntry(ALIAS,
+                            new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.esjp.electronicbilling.FiscusMapper;
+import org.efaps.esjp.electronicbilling.QRCodeSelect;
+import org.efaps.esjp.electronicbilling.QRCodeSelect_Base.ContactInfo;
+import org.efaps.esjp.sales.tax.xml.TaxEntry;
+import org.efaps.esjp.sales.tax.xml.Taxes;
+import org.efaps.util.EFapsException;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Text assembly done per document: amount in words and the QR code value.
+ *
+ * @author The eFaps Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextBenchmark
+{
+
+    private static final BigDecimal AMOUNT = new BigDecimal("1234567.89");
+
+    private BenchmarkMapper mapper;
+
+    private BenchmarkQRCodeSelect qrCodeSelect;
+
+    private Taxes taxes;
+
+    private DateTime date;
+
+    private ContactInfo contactInfo;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        mapper = new BenchmarkMapper();
+        qrCodeSelect = new BenchmarkQRCodeSelect();
+        taxes = new Taxes();
+        final var entry = new TaxEntry();
+        entry.setUUID(UUID.fromString("06e40be6-40d8-44f4-9d8f-585f2f97ce63"));
+        entry.setAmount(new BigDecimal("188.33"));
+        entry.setBase(new BigDecimal("1046.28"));
+        taxes.getEntries().add(entry);
+        date = new DateTime(2024, 1, 2, 0, 0);
+        contactInfo = new ContactInfo().setTipoDocumento("6").setNumeroDocumento("20100000002");
+    }
+
+    @Benchmark
+    public String number2words()
+        throws EFapsException
+    {
+        return mapper.number2words(AMOUNT);
+    }
+
+    @Benchmark
+    public String qrCodeValue()
+    {
+        return qrCodeSelect.getValue("20100000001", "01", "F001-000123", taxes, new BigDecimal("1234.61"), date,
+                        contactInfo);
+    }
+
+    /**
+     * Exposes the protected methods of the mapper.
+     */
+    public static class BenchmarkMapper
+        extends FiscusMapper
+    {
+
+        @Override
+        public String number2words(final BigDecimal _amount)
+            throws EFapsException
+        {
+            return super.number2words(_amount);
+        }
+    }
+
+    /**
+     * Exposes the protected methods of the select.
+     */
+    public static class BenchmarkQRCodeSelect
+        extends QRCodeSelect
+    {
+
+        @Override
+        public String getValue(final String _ruc,
+                               final String _docType,
+                               final String _name,
+                               final Taxes _taxes,
+                               final BigDecimal _rateCrossTotal,
+                               final DateTime _date,
+                               final ContactInfo _contactInfo)
+        {
+            return super.getValue(_ruc, _docType, _name, _taxes, _rateCrossTotal, _date, _contactInfo);
+        }
+    }
+}
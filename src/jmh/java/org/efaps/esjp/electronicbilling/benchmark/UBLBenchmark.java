@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.esjp.electronicbilling.UBLService_Base.UBlSigning;
+import org.efaps.ubl.documents.CreditNote;
+import org.efaps.ubl.documents.DeliveryNote;
+import org.efaps.ubl.documents.Invoice;
+import org.efaps.ubl.dto.SignResponseDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Marshalling and signing of synthetic UBL documents.
+ *
+ * @author The eFaps Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UBLBenchmark
+{
+
+    @Param({ "1", "10", "100", "1000", "5000" })
+    private int lines;
+
+    private KeyStore.PrivateKeyEntry keyEntry;
+
+    private Invoice invoice;
+
+    private CreditNote creditNote;
+
+    private DeliveryNote deliveryNote;
+
+    private String invoiceXml;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        keyEntry = TestKeyStore.createKeyEntry();
+        invoice = SyntheticDocuments.getInvoice(lines);
+        creditNote = SyntheticDocuments.getCreditNote(lines);
+        deliveryNote = SyntheticDocuments.getDeliveryNote(lines);
+        invoiceXml = invoice.getUBLXml();
+    }
+
+    @Benchmark
+    public Invoice buildInvoice()
+    {
+        return SyntheticDocuments.getInvoice(lines);
+    }
+
+    @Benchmark
+    public String marshalInvoice()
+    {
+        return invoice.getUBLXml();
+    }
+
+    @Benchmark
+    public String marshalCreditNote()
+    {
+        return creditNote.getUBLXml();
+    }
+
+    @Benchmark
+    public String marshalDeliveryNote()
+    {
+        return deliveryNote.getUBLXml();
+    }
+
+    @Benchmark
+    public SignResponseDto signInvoice()
+        throws Exception
+    {
+        return sign(invoiceXml);
+    }
+
+    @Benchmark
+    public SignResponseDto marshalAndSignInvoice()
+        throws Exception
+    {
+        return sign(invoice.getUBLXml());
+    }
+
+    private SignResponseDto sign(final String ublXml)
+        throws Exception
+    {
+        return new UBlSigning()
+                        .withKeyEntry(keyEntry)
+                        .withKeyAlias(TestKeyStore.ALIAS)
+                        .withKeyStorePwd(TestKeyStore.PASSWORD)
+                        .withKeyPwd(TestKeyStore.PASSWORD)
+                        .signDocument(ublXml, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.db.PrintQuery;
+import org.efaps.db.SelectBuilder;
+import org.efaps.esjp.ci.CIContacts;
+import org.efaps.esjp.common.parameter.ParameterUtil;
+import org.efaps.esjp.contacts.Contacts;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.entities.ContactIdentity;
+import org.efaps.esjp.electronicbilling.util.LRUCache;
+import org.efaps.util.EFapsException;
+
+/**
+ * Per company cache for the identity values of contacts (DOI, DOI type
+ * and foreign flag) used by the QRCode. The entries are evicted on
+ * least recent use and expire after a while. The UBL creation, whose
+ * values are signed into the legal document, reads the values itself and
+ * removes the contact via {@link #invalidate(Instance)}, so that the QRCode
+ * rendered for the same document shows the signed values. As the entries
+ * are shared by all users of a company, they are read without access
+ * check, as the QRCode did before.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("0dea8c5f-ad50-4ca9-b511-bc0076a3b914")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public class ContactIdentityCache
+{
+
+    private static final int MAXSIZE = 5000;
+
+    private static final long TTL = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Map<Long, LRUCache<Long, ContactIdentity>> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Get the identity for a contact.
+     *
+     * @param contactInst instance of the contact
+     * @return the identity
+     * @throws EFapsException on error
+     */
+    public static ContactIdentity get(final Instance contactInst)
+        throws EFapsException
+    {
+        final var cache = getCache();
+        var ret = cache.get(contactInst.getId());
+        if (ret == null) {
+            ret = load(contactInst);
+            cache.put(contactInst.getId(), ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Remove the contact from the cache of the current company.
+     *
+     * @param contactInst instance of the contact
+     * @throws EFapsException on error
+     */
+    public static void invalidate(final Instance contactInst)
+        throws EFapsException
+    {
+        if (InstanceUtils.isValid(contactInst)) {
+            getCache().remove(contactInst.getId());
+        }
+    }
+
+    private static LRUCache<Long, ContactIdentity> getCache()
+        throws EFapsException
+    {
+        final var company = Context.getThreadContext().getCompany();
+        final var companyId = company == null ? 0L : company.getId();
+        return CACHE.computeIfAbsent(companyId, k -> new LRUCache<>(MAXSIZE, TTL));
+    }
+
+    private static ContactIdentity load(final Instance contactInst)
+        throws EFapsException
+    {
+        final PrintQuery print = new PrintQuery(contactInst);
+        final SelectBuilder selTaxNumber = SelectBuilder.get().clazz(CIContacts.ClassOrganisation)
+                        .attribute(CIContacts.ClassOrganisation.TaxNumber);
+        final SelectBuilder selIDCard = SelectBuilder.get().clazz(CIContacts.ClassPerson)
+                        .attribute(CIContacts.ClassPerson.IdentityCard);
+        final SelectBuilder selIDCardType = SelectBuilder.get().clazz(CIContacts.ClassPerson)
+                        .linkto(CIContacts.ClassPerson.DOITypeLink)
+                        .attribute(CIContacts.AttributeDefinitionDOIType.MappingKey);
+        print.addSelect(selTaxNumber, selIDCard, selIDCardType);
+        print.executeWithoutAccessCheck();
+        return ContactIdentity.builder()
+                        .withTaxNumber(print.getSelect(selTaxNumber))
+                        .withIdentityCard(print.getSelect(selIDCard))
+                        .withDoiType(print.getSelect(selIDCardType))
+                        .withForeign(Contacts.isForeign(ParameterUtil.instance(), contactInst))
+                        .build();
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.efaps.admin.common.SystemConfiguration;
+import org.efaps.admin.datamodel.Status;
+import org.efaps.admin.datamodel.Type;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.ci.CIType;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.admin.common.systemconfiguration.BooleanSysConfAttribute;
+import org.efaps.esjp.admin.common.systemconfiguration.PropertiesSysConfAttribute;
+import org.efaps.esjp.admin.common.systemconfiguration.StringSysConfAttribute;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.ci.CISales;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.util.EFapsException;
+import org.efaps.util.UUIDUtil;
+
+/**
+ * Rules deciding which electronic document is created for a sales document.
+ * The SystemConfigurations (DOCMAPPING, *_ACTIVE, *_CREATEONSTATUS and
+ * *_VERIFY) are compiled once per company into a table keyed by the type of
+ * the sales document respectively of the electronic document, with the
+ * types and status resolved and the regular expressions precompiled. The
+ * table is compiled again if the SystemConfiguration was reloaded, which is
+ * the case on any change of its attributes.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("c7a712d7-f2fc-4caf-ab8a-4317939c5ebc")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class DocumentRules
+{
+
+    private static final Map<Long, DocumentRules> CACHE = new ConcurrentHashMap<>();
+
+    private final SystemConfiguration sysConf;
+
+    /** Key: UUID of the type of the sales document. */
+    private final Map<UUID, Rule> rules = new HashMap<>();
+
+    /** Key: UUID of the type of the electronic document. */
+    private final Map<UUID, VerifyRule> verifyRules = new HashMap<>();
+
+    private DocumentRules(final Config config,
+                          final SystemConfiguration sysConf)
+        throws EFapsException
+    {
+        this.sysConf = sysConf;
+        for (final var entry : config.active.entrySet()) {
+            final var salesType = Type.get(entry.getKey());
+            rules.put(entry.getKey(), new Rule(salesType, entry.getValue(), config.createOnStatus.get(entry.getKey()),
+                            config.docMapping));
+        }
+        for (final var entry : config.verify.entrySet()) {
+            verifyRules.put(entry.getKey(), new VerifyRule(Type.get(entry.getKey()), entry.getValue()));
+        }
+    }
+
+    /**
+     * Get the rules for the current company.
+     *
+     * @return the rules
+     * @throws EFapsException on error
+     */
+    public static DocumentRules get()
+        throws EFapsException
+    {
+        final var company = Context.getThreadContext().getCompany();
+        final var companyId = company == null ? 0L : company.getId();
+        final var sysConf = ElectronicBilling.getSysConfig();
+        var ret = CACHE.get(companyId);
+        if (ret == null || ret.sysConf != sysConf) {
+            ret = new DocumentRules(new Config(), sysConf);
+            CACHE.put(companyId, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @param salesDocInst instance of a sales document
+     * @return the rule for the type of the sales document, <code>null</code>
+     *         if electronic documents are not foreseen for the type
+     */
+    public Rule getRule(final Instance salesDocInst)
+    {
+        return InstanceUtils.isValid(salesDocInst) ? rules.get(salesDocInst.getType().getUUID()) : null;
+    }
+
+    /**
+     * @param eDocInst instance of an electronic document
+     * @return the verification for the type of the electronic document,
+     *         <code>null</code> if there is none
+     */
+    public VerifyRule getVerifyRule(final Instance eDocInst)
+    {
+        return InstanceUtils.isValid(eDocInst) ? verifyRules.get(eDocInst.getType().getUUID()) : null;
+    }
+
+    /**
+     * @param salesDocInst instance of a sales document
+     * @param status status the sales document was set to
+     * @return true if the electronic document must be created on the status
+     */
+    public boolean isCreateOnStatus(final Instance salesDocInst,
+                                    final Status status)
+    {
+        final var rule = getRule(salesDocInst);
+        return rule != null && rule.isCreateOnStatus(status);
+    }
+
+    /**
+     * Evaluate the rules for a list of sales documents. The names of the
+     * sales documents are loaded in one query. Whether an electronic document
+     * exists already is not part of the evaluation.
+     *
+     * @param salesDocInsts instances of sales documents
+     * @return map of the sales documents an electronic document must be
+     *         created for to the rule to be applied, in the given order
+     * @throws EFapsException on error
+     */
+    public Map<Instance, Rule> evaluate(final List<Instance> salesDocInsts)
+        throws EFapsException
+    {
+        final var candidates = new ArrayList<Instance>();
+        for (final var salesDocInst : salesDocInsts) {
+            final var rule = getRule(salesDocInst);
+            if (rule != null && rule.isActive() && rule.getCreateStatus() != null) {
+                candidates.add(salesDocInst);
+            }
+        }
+        final var ret = new LinkedHashMap<Instance, Rule>();
+        if (!candidates.isEmpty()) {
+            final var names = new HashMap<Long, String>();
+            final var eval = EQL.builder().print()
+                            .query(CISales.DocumentAbstract)
+                            .where()
+                            .attribute(CISales.DocumentAbstract.ID)
+                            .in(candidates.stream().map(Instance::getId).toArray(Long[]::new))
+                            .select()
+                            .attribute(CISales.DocumentAbstract.Name)
+                            .evaluate();
+            while (eval.next()) {
+                names.put(eval.inst().getId(), eval.get(CISales.DocumentAbstract.Name));
+            }
+            for (final var salesDocInst : candidates) {
+                final var rule = getRule(salesDocInst);
+                if (rule.isNameMatch(names.get(salesDocInst.getId()))) {
+                    ret.put(salesDocInst, rule);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Rule for a type of sales document.
+     */
+    public static final class Rule
+    {
+
+        private final Type salesType;
+        private final boolean active;
+        private final String createOnStatus;
+        private final Type eDocType;
+        private final Status createStatus;
+        private final Pattern namePattern;
+
+        private Rule(final Type salesType,
+                     final boolean active,
+                     final String createOnStatus,
+                     final Properties docMapping)
+            throws EFapsException
+        {
+            this.salesType = salesType;
+            this.active = active;
+            this.createOnStatus = createOnStatus;
+            final String edoc = docMapping.getProperty(salesType.getName(),
+                            docMapping.getProperty(salesType.getUUID().toString()));
+            Type eType = null;
+            Status status = null;
+            if (edoc != null) {
+                eType = UUIDUtil.isUUID(edoc) ? Type.get(UUID.fromString(edoc)) : Type.get(edoc);
+                final String statusKey = eType == null ? null : docMapping.getProperty(eType.getName()
+                                + ".CreateStatus", docMapping.getProperty(eType.getUUID() + ".CreateStatus"));
+                if (statusKey != null) {
+                    status = Status.find(eType.getStatusAttribute().getLink().getUUID(), statusKey);
+                }
+            }
+            eDocType = eType;
+            createStatus = status;
+            namePattern = Pattern.compile(docMapping.getProperty(salesType.getName() + ".NameRegexMatch", ".*"));
+        }
+
+        public Type getSalesType()
+        {
+            return salesType;
+        }
+
+        /**
+         * @return true if electronic documents are activated for the type
+         */
+        public boolean isActive()
+        {
+            return active;
+        }
+
+        /**
+         * @return type of the electronic document, <code>null</code> if not
+         *         mapped
+         */
+        public Type getEDocType()
+        {
+            return eDocType;
+        }
+
+        /**
+         * @return status of a new electronic document, <code>null</code> if
+         *         not configured
+         */
+        public Status getCreateStatus()
+        {
+            return createStatus;
+        }
+
+        /**
+         * @param name name of the sales document
+         * @return true if the name matches the NameRegexMatch of the mapping
+         */
+        public boolean isNameMatch(final String name)
+        {
+            return name != null && namePattern.matcher(name).matches();
+        }
+
+        /**
+         * @param status status the sales document was set to
+         * @return true if the electronic document must be created on the
+         *         status
+         */
+        public boolean isCreateOnStatus(final Status status)
+        {
+            return createOnStatus != null && status != null && createOnStatus.equals(status.getKey());
+        }
+    }
+
+    /**
+     * Verification for a type of electronic document.
+     */
+    public static final class VerifyRule
+    {
+
+        private final Pattern positive;
+        private final Pattern negative;
+        private final Status abortStatus;
+
+        private VerifyRule(final Type eDocType,
+                           final Properties properties)
+            throws EFapsException
+        {
+            positive = properties.containsKey("PositivTest4RegexOnName")
+                            ? Pattern.compile(properties.getProperty("PositivTest4RegexOnName")) : null;
+            negative = positive == null && properties.containsKey("NegativTest4RegexOnName")
+                            ? Pattern.compile(properties.getProperty("NegativTest4RegexOnName")) : null;
+            abortStatus = Status.find(eDocType.getStatusAttribute().getLink().getUUID(), "Aborted");
+        }
+
+        /**
+         * @return true if the name of the sales document is needed
+         */
+        public boolean isNameRequired()
+        {
+            return positive != null || negative != null;
+        }
+
+        /**
+         * @param name name of the sales document
+         * @return true if the electronic document passed the verification
+         */
+        public boolean isPass(final String name)
+        {
+            boolean ret = true;
+            if (positive != null) {
+                ret = positive.matcher(name).matches();
+            } else if (negative != null) {
+                ret = !negative.matcher(name).matches();
+            }
+            return ret;
+        }
+
+        public Status getAbortStatus()
+        {
+            return abortStatus;
+        }
+    }
+
+    /**
+     * The configuration values the rules are compiled from.
+     */
+    private static final class Config
+    {
+
+        private final Properties docMapping;
+        private final Map<UUID, Boolean> active = new LinkedHashMap<>();
+        private final Map<UUID, String> createOnStatus = new HashMap<>();
+        private final Map<UUID, Properties> verify = new HashMap<>();
+
+        private Config()
+            throws EFapsException
+        {
+            docMapping = ElectronicBilling.DOCMAPPING.get();
+            add(CISales.Invoice, ElectronicBilling.INVOICE_ACTIVE, ElectronicBilling.INVOICE_CREATEONSTATUS);
+            add(CISales.Receipt, ElectronicBilling.RECEIPT_ACTIVE, ElectronicBilling.RECEIPT_CREATEONSTATUS);
+            add(CISales.Reminder, ElectronicBilling.REMINDER_ACTIVE, ElectronicBilling.REMINDER_CREATEONSTATUS);
+            add(CISales.CreditNote, ElectronicBilling.CREDITNOTE_ACTIVE,
+                            ElectronicBilling.CREDITNOTE_CREATEONSTATUS);
+            add(CISales.DeliveryNote, ElectronicBilling.DELIVERYNOTE_ACTIVE,
+                            ElectronicBilling.DELIVERYNOTE_CREATEONSTATUS);
+            // retention certificates are not created on status change
+            add(CISales.RetentionCertificate, ElectronicBilling.RETENTIONCERTIFICATE_ACTIVE, null);
+            addVerify(CIEBilling.Invoice, ElectronicBilling.INVOICE_VERIFY);
+            addVerify(CIEBilling.Receipt, ElectronicBilling.RECEIPT_VERIFY);
+            addVerify(CIEBilling.Reminder, ElectronicBilling.REMINDER_VERIFY);
+            addVerify(CIEBilling.CreditNote, ElectronicBilling.CREDITNOTE_VERIFY);
+            addVerify(CIEBilling.DeliveryNote, ElectronicBilling.DELIVERYNOTE_VERIFY);
+        }
+
+        private void add(final CIType salesType,
+                         final BooleanSysConfAttribute activeAttr,
+                         final StringSysConfAttribute createOnStatusAttr)
+            throws EFapsException
+        {
+            final var uuid = salesType.getType().getUUID();
+            active.put(uuid, activeAttr.get());
+            if (createOnStatusAttr != null && createOnStatusAttr.exists()) {
+                createOnStatus.put(uuid, createOnStatusAttr.get());
+            }
+        }
+
+        private void addVerify(final CIType eDocType,
+                               final PropertiesSysConfAttribute verifyAttr)
+            throws EFapsException
+        {
+            if (verifyAttr.exists()) {
+                verify.put(eDocType.getType().getUUID(), verifyAttr.get());
+            }
+        }
+    }
+}
@@ -15,13 +15,19 @@
  */
 package org.efaps.esjp.electronicbilling;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.Set;
 
-import org.efaps.admin.datamodel.Status;
-import org.efaps.admin.datamodel.Type;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.efaps.admin.event.Parameter;
 import org.efaps.admin.event.Parameter.ParameterValues;
 import org.efaps.admin.event.Return;
@@ -29,10 +35,9 @@ import org.efaps.admin.program.esjp.EFapsApplication;
 import org.efaps.admin.program.esjp.EFapsUUID;
 import org.efaps.admin.program.esjp.Listener;
 import org.efaps.db.Context;
-import org.efaps.db.Delete;
 import org.efaps.db.Insert;
 import org.efaps.db.Instance;
-import org.efaps.db.InstanceQuery;
+import org.efaps.db.MultiPrintQuery;
 import org.efaps.db.PrintQuery;
 import org.efaps.db.QueryBuilder;
 import org.efaps.db.SelectBuilder;
@@ -46,8 +51,12 @@ import org.efaps.esjp.ci.CISales;
 import org.efaps.esjp.common.AbstractCommon;
 import org.efaps.esjp.common.parameter.ParameterUtil;
 import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.issuance.IssuancePipeline;
 import org.efaps.esjp.electronicbilling.listener.IOnDocument;
+import org.efaps.esjp.electronicbilling.reaper.FileReaper;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
 import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.util.SQLUtil;
 import org.efaps.esjp.sales.document.CreditNote;
 import org.efaps.esjp.sales.document.DeliveryNote;
 import org.efaps.esjp.sales.document.Invoice;
@@ -55,6 +64,8 @@ import org.efaps.esjp.sales.document.Receipt;
 import org.efaps.esjp.sales.document.Reminder;
 import org.efaps.esjp.sales.util.Sales;
 import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The Class AbstractEBillingDocument_Base.
@@ -67,6 +78,11 @@ public abstract class EBillingDocument_Base
     extends AbstractCommon
 {
 
+    /**
+     * Logging instance used in this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(EBillingDocument.class);
+
     /**
      * Resend.
      *
@@ -90,7 +106,10 @@ public abstract class EBillingDocument_Base
         throws EFapsException
     {
         final Instance salesDocInst = parameter.getCallInstance();
-        if (InstanceUtils.isKindOf(salesDocInst, CISales.DocumentAbstract)) {
+        if (InstanceUtils.isKindOf(salesDocInst, CISales.DocumentAbstract) && IssuancePipeline.isActive()) {
+            // committed together with the calling transaction, the IssuanceJob does the rest
+            new IssuancePipeline().enqueue(salesDocInst);
+        } else if (InstanceUtils.isKindOf(salesDocInst, CISales.DocumentAbstract)) {
             final Instance docInst = createDocument(parameter, salesDocInst);
             if (InstanceUtils.isValid(docInst)) {
                 for (final IOnDocument listener : Listener.get().<IOnDocument>invoke(IOnDocument.class)) {
@@ -116,44 +135,21 @@ public abstract class EBillingDocument_Base
         throws EFapsException
     {
         Instance ret = null;
-        if (InstanceUtils.isType(_docInst, CISales.CreditNote) && ElectronicBilling.CREDITNOTE_ACTIVE.get()
-                        || InstanceUtils.isType(_docInst, CISales.Invoice) && ElectronicBilling.INVOICE_ACTIVE.get()
-                        || InstanceUtils.isType(_docInst, CISales.Receipt) && ElectronicBilling.RECEIPT_ACTIVE.get()
-                        || InstanceUtils.isType(_docInst, CISales.Reminder) && ElectronicBilling.REMINDER_ACTIVE.get()
-                        || InstanceUtils.isType(_docInst, CISales.DeliveryNote)
-                                        && ElectronicBilling.DELIVERYNOTE_ACTIVE.get()
-                        || InstanceUtils.isType(_docInst, CISales.RetentionCertificate)
-                                        && ElectronicBilling.RETENTIONCERTIFICATE_ACTIVE.get()) {
-
-            final Properties docProps = ElectronicBilling.DOCMAPPING.get();
-            final String typeName = _docInst.getType().getName();
-            final String typeUUID = _docInst.getType().getUUID().toString();
-            final String edoc = docProps.getProperty(typeName, docProps.getProperty(typeUUID));
-            if (edoc != null) {
+        final DocumentRules.Rule rule = DocumentRules.get().getRule(_docInst);
+        if (rule != null && rule.isActive()) {
+            if (rule.getEDocType() != null) {
                 final QueryBuilder queryBldr = new QueryBuilder(CIEBilling.DocumentAbstract);
                 queryBldr.addWhereAttrEqValue(CIEBilling.DocumentAbstract.DocumentLinkAbstract, _docInst);
                 if (queryBldr.getQuery().executeWithoutAccessCheck().isEmpty()) {
-                    final Evaluator eval = EQL.builder().print(_docInst).attribute(CISales.DocumentAbstract.Name).evaluate();
+                    final Evaluator eval = EQL.builder().print(_docInst).attribute(CISales.DocumentAbstract.Name)
+                                    .evaluate();
                     final String name = eval.<String>get(CISales.DocumentAbstract.Name);
-                    final String regex = docProps.getProperty(typeName + ".NameRegexMatch", ".*");
-                    if (name.matches(regex)) {
-                        final Type eType = isUUID(edoc) ? Type.get(UUID.fromString(edoc)) : Type.get(edoc);
-                        final String eTypeName = eType.getName();
-                        final String eTypeUUID = eType.getUUID().toString();
-                        final String edocStatusKey = docProps.getProperty(eTypeName + ".CreateStatus",
-                                        docProps.getProperty(
-                                                        eTypeUUID + ".CreateStatus"));
-                        if (edocStatusKey != null) {
-                            final Status status = Status.find(eType.getStatusAttribute().getLink().getUUID(),
-                                            edocStatusKey);
-                            if (status != null) {
-                                final Insert insert = new Insert(eType);
-                                insert.add(CIEBilling.DocumentAbstract.DocumentLinkAbstract, _docInst);
-                                insert.add(CIEBilling.DocumentAbstract.StatusAbstract, status);
-                                insert.executeWithoutAccessCheck();
-                                ret = insert.getInstance();
-                            }
-                        }
+                    if (rule.isNameMatch(name) && rule.getCreateStatus() != null) {
+                        final Insert insert = new Insert(rule.getEDocType());
+                        insert.add(CIEBilling.DocumentAbstract.DocumentLinkAbstract, _docInst);
+                        insert.add(CIEBilling.DocumentAbstract.StatusAbstract, rule.getCreateStatus());
+                        insert.executeWithoutAccessCheck();
+                        ret = insert.getInstance();
                     }
                 }
             }
@@ -162,24 +158,98 @@ public abstract class EBillingDocument_Base
         return ret;
     }
 
+    /**
+     * Creates the electronic documents for a list of sales documents. The
+     * sales documents that already have an electronic document are found
+     * with one query, the rules are evaluated for all of them together
+     * (see {@link DocumentRules#evaluate(List)}). The electronic documents
+     * are then inserted one by one, as each insert must run the triggers of
+     * its type and pass the verification.
+     *
+     * @param _parameter Parameter as passed by the eFaps API
+     * @param _docInsts the sales documents
+     * @return the created electronic documents in the order of the sales
+     *         documents
+     * @throws EFapsException on error
+     */
+    public List<Instance> createDocuments(final Parameter _parameter,
+                                          final Collection<Instance> _docInsts)
+        throws EFapsException
+    {
+        final List<Instance> ret = new ArrayList<>();
+        final List<Instance> docInsts = new ArrayList<>(_docInsts);
+        docInsts.removeAll(getLinkedDocuments(docInsts));
+        for (final var entry : DocumentRules.get().evaluate(docInsts).entrySet()) {
+            final Insert insert = new Insert(entry.getValue().getEDocType());
+            insert.add(CIEBilling.DocumentAbstract.DocumentLinkAbstract, entry.getKey());
+            insert.add(CIEBilling.DocumentAbstract.StatusAbstract, entry.getValue().getCreateStatus());
+            insert.executeWithoutAccessCheck();
+            final Instance inst = verifyElecDocInst(_parameter, insert.getInstance());
+            if (InstanceUtils.isValid(inst)) {
+                ret.add(inst);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the sales documents that are linked to an electronic document.
+     *
+     * @param _docInsts the sales documents
+     * @return the subset of sales documents with electronic document
+     * @throws EFapsException on error
+     */
+    public Set<Instance> getLinkedDocuments(final Collection<Instance> _docInsts)
+        throws EFapsException
+    {
+        final Set<Instance> ret = new HashSet<>();
+        if (!_docInsts.isEmpty()) {
+            // as in createDocument, an existing electronic document must be
+            // found even if the user has no access to it
+            final QueryBuilder queryBldr = new QueryBuilder(CIEBilling.DocumentAbstract);
+            queryBldr.addWhereAttrEqValue(CIEBilling.DocumentAbstract.DocumentLinkAbstract, _docInsts.toArray());
+            final MultiPrintQuery multi = queryBldr.getPrint();
+            final SelectBuilder selDocInst = SelectBuilder.get()
+                            .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract).instance();
+            multi.addSelect(selDocInst);
+            multi.executeWithoutAccessCheck();
+            while (multi.next()) {
+                ret.add(multi.getSelect(selDocInst));
+            }
+        }
+        return ret;
+    }
+
     public void createUBL(final Parameter parameter,
                           final Instance eDocInst)
         throws EFapsException
     {
-        if (InstanceUtils.isType(eDocInst, CIEBilling.DeliveryNote) && ElectronicBilling.DELIVERYNOTE_CREATEUBL.get()
+        if (isCreateUBL(eDocInst)) {
+            new UBLService().createUBL(eDocInst);
+        }
+    }
+
+    /**
+     * @param eDocInst instance of the electronic document
+     * @return true if an UBL must be created for the electronic document
+     * @throws EFapsException on error
+     */
+    public boolean isCreateUBL(final Instance eDocInst)
+        throws EFapsException
+    {
+        return InstanceUtils.isType(eDocInst, CIEBilling.DeliveryNote) && ElectronicBilling.DELIVERYNOTE_CREATEUBL.get()
                         || InstanceUtils.isType(eDocInst, CIEBilling.Invoice)
                                         && ElectronicBilling.INVOICE_CREATEUBL.get()
                         || InstanceUtils.isType(eDocInst, CIEBilling.Receipt)
                                         && ElectronicBilling.RECEIPT_CREATEUBL.get()
                         || InstanceUtils.isType(eDocInst, CIEBilling.CreditNote)
-                                        && ElectronicBilling.CREDITNOTE_CREATEUBL.get()) {
-            final var parameterClone = ParameterUtil.clone(parameter, ParameterValues.INSTANCE, eDocInst);
-            new UBLService().ceateUBL(parameterClone);
-        }
+                                        && ElectronicBilling.CREDITNOTE_CREATEUBL.get();
     }
 
     /**
-     * Creates the report for document.
+     * Creates the report for document. The rendering is skipped if the
+     * fingerprint of the report inputs did not change since the last
+     * rendering, unless the property "ForceReport" is set to true.
      *
      * @param _parameter Parameter as passed by the eFaps API
      * @param _salesDocInst the sales doc inst
@@ -189,6 +259,68 @@ public abstract class EBillingDocument_Base
                                       final Instance _salesDocInst)
         throws EFapsException
     {
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.DocumentAbstract)
+                        .where()
+                        .attribute(CIEBilling.DocumentAbstract.DocumentLinkAbstract).eq(_salesDocInst)
+                        .select()
+                        .attribute(CIEBilling.DocumentAbstract.ReportFingerprint)
+                        .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
+                        .attribute(CISales.DocumentAbstract.Modified).as("modified")
+                        .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
+                        .attribute(CISales.DocumentAbstract.StatusAbstract).as("status")
+                        .linkfrom(CIEBilling.UBLFileAbstract.DocumentLinkAbstract)
+                        .attribute(CIEBilling.UBLFileAbstract.UBLHash).first().as("hash")
+                        .evaluate();
+        // without electronic document there is no place to keep the fingerprint
+        final String fingerprint = eval.next() ? getReportFingerprint(_salesDocInst, eval.get("modified"),
+                        eval.get("status"), eval.get("hash")) : null;
+        if (fingerprint != null && fingerprint.equals(eval.get(CIEBilling.DocumentAbstract.ReportFingerprint))
+                        && !"true".equalsIgnoreCase(getProperty(_parameter, "ForceReport"))) {
+            LOG.debug("Report for {} is up to date", _salesDocInst);
+        } else if (renderReport4Document(_parameter, _salesDocInst) && fingerprint != null) {
+            EQL.builder().update(eval.inst())
+                            .set(CIEBilling.DocumentAbstract.ReportFingerprint, fingerprint)
+                            .stmt()
+                            .execute();
+        }
+    }
+
+    /**
+     * Fingerprint of the values a report depends on: the version of the
+     * sales document (any change updates Modified), its status, the hash of
+     * the UBL shown on the report and the configured report revision.
+     *
+     * @param _salesDocInst the sales doc inst
+     * @param _modified modified of the sales document
+     * @param _status status of the sales document
+     * @param _hash hash of the UBL
+     * @return the fingerprint
+     * @throws EFapsException on error
+     */
+    protected String getReportFingerprint(final Instance _salesDocInst,
+                                          final Object _modified,
+                                          final Object _status,
+                                          final Object _hash)
+        throws EFapsException
+    {
+        return DigestUtils.sha256Hex(String.join("|", _salesDocInst.getOid(), String.valueOf(_modified),
+                        String.valueOf(_status), String.valueOf(_hash), ElectronicBilling.REPORT_REVISION.get()));
+    }
+
+    /**
+     * Render and check in the report for the sales document.
+     *
+     * @param _parameter Parameter as passed by the eFaps API
+     * @param _salesDocInst the sales doc inst
+     * @return true if a report was rendered
+     * @throws EFapsException on error
+     */
+    protected boolean renderReport4Document(final Parameter _parameter,
+                                            final Instance _salesDocInst)
+        throws EFapsException
+    {
+        boolean ret = true;
         if (InstanceUtils.isType(_salesDocInst, CISales.Invoice) && ElectronicBilling.INVOICE_CREATEREPORT.get()) {
             final Parameter parameter = ParameterUtil.clone(_parameter, ParameterValues.INSTANCE, _salesDocInst);
             ParameterUtil.setProperty(parameter, "JasperConfig", Sales.getSysConfig().getUUID().toString());
@@ -232,31 +364,37 @@ public abstract class EBillingDocument_Base
             ParameterUtil.setProperty(parameter, "JasperConfigMime", Sales.DELIVERYNOTE_MIME.getKey());
             ParameterUtil.setProperty(parameter, "Checkin", "true");
             new DeliveryNote().createReport(parameter);
+        } else {
+            ret = false;
         }
+        return ret;
     }
 
     /**
-     * Gets the emails.
+     * Delete the logs of the document and detach its files.
      *
      * @param _parameter Parameter as passed by the eFaps API
-     * @param _contactInstance the contact instance
-     * @return the emails
+     * @return new Return
      * @throws EFapsException on error
      */
     public Return deletePreTrigger(final Parameter _parameter)
         throws EFapsException
     {
         final Instance docInstance = _parameter.getInstance();
-        final QueryBuilder queryBldr = new QueryBuilder(CIEBilling.DocumentLogAbstract);
-        queryBldr.addWhereAttrEqValue(CIEBilling.DocumentLogAbstract.DocumentLinkAbstract, docInstance);
-        for (final Instance protInst : queryBldr.getQuery().execute()) {
-            new Delete(protInst).execute();
+        // the logs have neither triggers nor store content, only the logs of
+        // the document are removed, not other kinds of logs sharing the table
+        final var values = new ArrayList<Object>();
+        values.add(docInstance.getId());
+        for (final var logType : CIEBilling.DocumentLogAbstract.getType().getChildTypes()) {
+            values.add(logType.getId());
         }
-        final QueryBuilder queryBldr2 = new QueryBuilder(CIEBilling.FileAbstract);
-        queryBldr2.addWhereAttrEqValue(CIEBilling.FileAbstract.DocumentLinkAbstract, docInstance);
-        for (final Instance protInst : queryBldr2.getQuery().execute()) {
-            new Delete(protInst).execute();
+        if (values.size() > 1) {
+            SQLUtil.executeUpdate("DELETE FROM T_EBILLLOG WHERE DOCID = ? AND TYPEID IN ("
+                            + String.join(", ", Collections.nCopies(values.size() - 1, "?")) + ")",
+                            values.toArray());
         }
+        // the content of the files is removed asynchronous by the FileReaperJob
+        FileReaper.detach(docInstance);
         return new Return();
     }
 
@@ -307,6 +445,50 @@ public abstract class EBillingDocument_Base
         return ret;
     }
 
+    /**
+     * Gets the emails for a list of contacts, e.g. for a mass mailing. The
+     * emails of all contacts are read with one query. They are not cached,
+     * so that a changed EmailSet is used at once.
+     *
+     * @param _parameter Parameter as passed by the eFaps API
+     * @param _contactInstances the contact instances
+     * @return the emails by contact, in the order of the given contacts
+     * @throws EFapsException on error
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Instance, List<String>> getEmails(final Parameter _parameter,
+                                                 final Collection<Instance> _contactInstances)
+        throws EFapsException
+    {
+        final Map<Instance, List<String>> ret = new LinkedHashMap<>();
+        if (ElectronicBilling.ACTIVATEMAIL.get()) {
+            final List<Instance> contactInsts = new ArrayList<>();
+            for (final Instance contactInst : _contactInstances) {
+                ret.put(contactInst, new ArrayList<>());
+                if (InstanceUtils.isKindOf(contactInst, CIContacts.Contact)) {
+                    contactInsts.add(contactInst);
+                }
+            }
+            if (!contactInsts.isEmpty()) {
+                final MultiPrintQuery multi = new MultiPrintQuery(contactInsts);
+                final SelectBuilder selEmails = SelectBuilder.get().clazz(CIContacts.Class)
+                                .attributeset(CIContacts.Class.EmailSet, "attribute[ElectronicBilling]==true")
+                                .attribute("Email");
+                multi.addSelect(selEmails);
+                multi.execute();
+                while (multi.next()) {
+                    final Object obj = multi.getSelect(selEmails);
+                    if (obj instanceof List) {
+                        ret.get(multi.getCurrentInstance()).addAll((List<String>) obj);
+                    } else if (obj != null) {
+                        ret.get(multi.getCurrentInstance()).add((String) obj);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
     /**
      * Resend.
      *
@@ -326,7 +508,17 @@ public abstract class EBillingDocument_Base
     }
 
     /**
-     * Scan for documents.
+     * Scan for documents. The sales documents are processed in chunks of
+     * DocumentScanner.ChunkSize ordered by their id: the electronic documents
+     * of a chunk are created, the listeners are notified, the chunk is
+     * committed and then the reports of the chunk are rendered. Each type
+     * of sales document is scanned on its own and only above its
+     * {@link ScanWatermark}, so that the time of a scan depends on the new
+     * documents. After DocumentScanner.ReconciliationInterval a full scan of
+     * the type over all sales documents without electronic document is done
+     * instead, to catch documents that reached a scanned status after being
+     * passed. As the mark is moved with each committed chunk, a scan that
+     * failed continues after the last committed chunk on its next execution.
      *
      * @param _parameter Parameter as passed by the eFaps API
      * @return the return
@@ -336,32 +528,69 @@ public abstract class EBillingDocument_Base
         throws EFapsException
     {
         final Properties props = ElectronicBilling.QUERYBLDR4DOCSCAN.get();
-
-        final QueryBuilder queryBldr = this.getQueryBldrFromProperties(_parameter, props);
-
-        final QueryBuilder attrQueryBldr = new QueryBuilder(CIEBilling.DocumentAbstract);
-        queryBldr.addWhereAttrNotInQuery(CIERP.DocumentAbstract.ID, attrQueryBldr.getAttributeQuery(
-                        CIEBilling.DocumentAbstract.DocumentLinkAbstract));
-        final InstanceQuery query = queryBldr.getQuery();
-        query.execute();
-
-        final List<Instance> instances = new ArrayList<>();
-        final List<Instance> sdocInsts = new ArrayList<>();
-        while (query.next()) {
-            sdocInsts.add(query.getCurrentValue());
-            final Instance inst = createDocument(_parameter, query.getCurrentValue());
-            if (InstanceUtils.isValid(inst)) {
-                instances.add(inst);
+        final int chunkSize = Math.max(1, ElectronicBilling.DOCSCAN_CHUNKSIZE.get());
+        final ScanWatermark watermark = ScanWatermark.load(ScanWatermark.getDocTypes(props));
+        final Duration interval = Duration.ofHours(ElectronicBilling.DOCSCAN_RECONCILIATION.get());
+        for (final String docType : watermark.getDocTypes()) {
+            final Properties typeProps = ScanWatermark.getProperties4DocType(props, docType);
+            final boolean full = watermark.isReconciliationDue(docType, interval);
+            long lastId = full ? 0 : watermark.getLastId(docType);
+            LOG.debug("Scanning for documents of {} {}", docType,
+                            full ? "with full reconciliation" : "above " + lastId);
+            int count = chunkSize;
+            while (count == chunkSize) {
+                final QueryBuilder queryBldr = this.getQueryBldrFromProperties(_parameter, typeProps);
+                if (full) {
+                    final QueryBuilder attrQueryBldr = new QueryBuilder(CIEBilling.DocumentAbstract);
+                    queryBldr.addWhereAttrNotInQuery(CIERP.DocumentAbstract.ID, attrQueryBldr.getAttributeQuery(
+                                    CIEBilling.DocumentAbstract.DocumentLinkAbstract));
+                }
+                queryBldr.addWhereAttrGreaterValue(CIERP.DocumentAbstract.ID, lastId);
+                queryBldr.addOrderByAttributeAsc(CIERP.DocumentAbstract.ID);
+                queryBldr.setLimit(chunkSize);
+                final List<Instance> sdocInsts = queryBldr.getQuery().execute();
+                count = sdocInsts.size();
+                if (count > 0) {
+                    lastId = sdocInsts.stream().mapToLong(Instance::getId).max().getAsLong();
+                    scan4Documents(_parameter, sdocInsts);
+                    watermark.advance(docType, lastId);
+                    CompanyJobRunner.checkpoint();
+                    Context.save();
+                }
+            }
+            if (full) {
+                watermark.reconciled(docType);
+                CompanyJobRunner.checkpoint();
+                Context.save();
             }
         }
+        return new Return();
+    }
+
+    /**
+     * Create the electronic documents and reports for one chunk of sales
+     * documents.
+     *
+     * @param _parameter Parameter as passed by the eFaps API
+     * @param _sdocInsts the sales documents of the chunk
+     * @throws EFapsException on error
+     */
+    protected void scan4Documents(final Parameter _parameter,
+                                  final List<Instance> _sdocInsts)
+        throws EFapsException
+    {
+        final List<Instance> instances = createDocuments(_parameter, _sdocInsts);
         for (final IOnDocument listener : Listener.get().<IOnDocument>invoke(IOnDocument.class)) {
             listener.afterCreate(_parameter, instances.toArray(new Instance[instances.size()]));
         }
+        CompanyJobRunner.checkpoint();
         Context.save();
-        for (final Instance docInst : sdocInsts) {
+        for (final Instance docInst : _sdocInsts) {
+            CompanyJobRunner.checkpoint();
             createReport4Document(_parameter, docInst);
         }
-        return new Return();
+        LOG.debug("Scanned {} sales documents, created {} electronic documents", _sdocInsts.size(),
+                        instances.size());
     }
 
     /**
@@ -376,62 +605,21 @@ public abstract class EBillingDocument_Base
         throws EFapsException
     {
         Instance ret = _elecDocInst;
-        if (InstanceUtils.isType(_elecDocInst, CIEBilling.CreditNote) && ElectronicBilling.CREDITNOTE_VERIFY.exists()
-                        || InstanceUtils.isType(_elecDocInst, CIEBilling.Invoice)
-                                        && ElectronicBilling.INVOICE_VERIFY.exists()
-                        || InstanceUtils.isType(_elecDocInst, CIEBilling.Receipt)
-                                        && ElectronicBilling.RECEIPT_VERIFY.exists()
-                        || InstanceUtils.isType(_elecDocInst, CIEBilling.Reminder) && ElectronicBilling.REMINDER_VERIFY
-                                        .exists()
-                        || InstanceUtils.isType(_elecDocInst, CIEBilling.DeliveryNote)
-                                        && ElectronicBilling.DELIVERYNOTE_VERIFY.exists()) {
-            Properties props = null;
-            if (InstanceUtils.isType(_elecDocInst, CIEBilling.Invoice)) {
-                props = ElectronicBilling.INVOICE_VERIFY.get();
-            } else if (InstanceUtils.isType(_elecDocInst, CIEBilling.Receipt)) {
-                props = ElectronicBilling.RECEIPT_VERIFY.get();
-            } else if (InstanceUtils.isType(_elecDocInst, CIEBilling.CreditNote)) {
-                props = ElectronicBilling.CREDITNOTE_VERIFY.get();
-            } else if (InstanceUtils.isType(_elecDocInst, CIEBilling.Reminder)) {
-                props = ElectronicBilling.REMINDER_VERIFY.get();
-            } else if (InstanceUtils.isType(_elecDocInst, CIEBilling.DeliveryNote)) {
-                props = ElectronicBilling.DELIVERYNOTE_VERIFY.get();
-            }
-            if (props != null) {
-                boolean pass = true;
-                // test must return true to go on
-                if (props.containsKey("PositivTest4RegexOnName")) {
-                    final PrintQuery print = new PrintQuery(_elecDocInst);
-                    final SelectBuilder selDocName = SelectBuilder.get()
-                                    .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
-                                    .attribute(CIERP.DocumentAbstract.Name);
-                    print.addSelect(selDocName);
-                    print.executeWithoutAccessCheck();
-                    final String docName = print.getSelect(selDocName);
-                    if (!docName.matches(props.getProperty("PositivTest4RegexOnName"))) {
-                        pass = false;
-                    }
-                } else if (props.containsKey("NegativTest4RegexOnName")) {
-                    final PrintQuery print = new PrintQuery(_elecDocInst);
-                    final SelectBuilder selDocName = SelectBuilder.get()
-                                    .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
-                                    .attribute(CIERP.DocumentAbstract.Name);
-                    print.addSelect(selDocName);
-                    print.executeWithoutAccessCheck();
-                    final String docName = print.getSelect(selDocName);
-                    if (docName.matches(props.getProperty("NegativTest4RegexOnName"))) {
-                        pass = false;
-                    }
-                }
-
-                if (!pass) {
-                    final Status status = Status.find(_elecDocInst.getType().getStatusAttribute().getLink().getUUID(),
-                                    "Aborted");
-                    final Update update = new Update(_elecDocInst);
-                    update.add(CIEBilling.DocumentAbstract.StatusAbstract, status);
-                    update.executeWithoutTrigger();
-                    ret = null;
-                }
+        final DocumentRules.VerifyRule rule = DocumentRules.get().getVerifyRule(_elecDocInst);
+        if (rule != null && rule.isNameRequired()) {
+            final PrintQuery print = new PrintQuery(_elecDocInst);
+            final SelectBuilder selDocName = SelectBuilder.get()
+                            .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
+                            .attribute(CIERP.DocumentAbstract.Name);
+            print.addSelect(selDocName);
+            print.executeWithoutAccessCheck();
+            final String docName = print.getSelect(selDocName);
+            // test must pass to go on
+            if (!rule.isPass(docName)) {
+                final Update update = new Update(_elecDocInst);
+                update.add(CIEBilling.DocumentAbstract.StatusAbstract, rule.getAbortStatus());
+                update.executeWithoutTrigger();
+                ret = null;
             }
         }
         return ret;
@@ -440,16 +628,42 @@ public abstract class EBillingDocument_Base
     public String getHash(final Instance salesDocInst)
         throws EFapsException
     {
-        String ret = null;
-        final Evaluator eval = EQL.builder().print().query(CIEBilling.DocumentAbstract)
-                        .where()
-                        .attribute(CIEBilling.DocumentAbstract.DocumentLinkAbstract).eq(salesDocInst)
-                        .select()
-                        .linkfrom(CIEBilling.UBLFileAbstract.DocumentLinkAbstract)
-                        .attribute(CIEBilling.UBLFileAbstract.UBLHash).first().as("hash")
-                        .evaluate();
-        if (eval.next()) {
-            ret = eval.get("hash");
+        return getHashes(Collections.singletonList(salesDocInst)).get(salesDocInst);
+    }
+
+    /**
+     * Get the hashes of the UBL for a list of sales documents, e.g. for the
+     * rows of a report.
+     *
+     * @param salesDocInsts instances of the sales documents
+     * @return the hash by sales document in the order of the given
+     *         documents, <code>null</code> if there is no UBL
+     * @throws EFapsException on error
+     */
+    public Map<Instance, String> getHashes(final Collection<Instance> salesDocInsts)
+        throws EFapsException
+    {
+        final Map<Instance, String> ret = new LinkedHashMap<>();
+        final Map<Long, Instance> salesDocs = new HashMap<>();
+        for (final Instance salesDocInst : salesDocInsts) {
+            ret.put(salesDocInst, null);
+            salesDocs.put(salesDocInst.getId(), salesDocInst);
+        }
+        if (!salesDocs.isEmpty()) {
+            final Map<Instance, Instance> eDoc2SalesDoc = new HashMap<>();
+            final Evaluator eval = EQL.builder().print().query(CIEBilling.DocumentAbstract)
+                            .where()
+                            .attribute(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
+                            .in(salesDocs.keySet().toArray(new Long[0]))
+                            .select()
+                            .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract).instance().as("salesDocInst")
+                            .evaluate();
+            while (eval.next()) {
+                final Instance salesDocInst = eval.get("salesDocInst");
+                eDoc2SalesDoc.put(eval.inst(), salesDocs.get(salesDocInst.getId()));
+            }
+            UBLHashCache.get(eDoc2SalesDoc.keySet())
+                            .forEach((eDocInst, hash) -> ret.putIfAbsent(eDoc2SalesDoc.get(eDocInst), hash));
         }
         return ret;
     }
@@ -17,9 +17,8 @@ package org.efaps.esjp.electronicbilling;
 
 import org.efaps.admin.program.esjp.EFapsApplication;
 import org.efaps.admin.program.esjp.EFapsUUID;
-import org.efaps.admin.user.Company;
-import org.efaps.db.Context;
 import org.efaps.esjp.common.parameter.ParameterUtil;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
 import org.efaps.util.EFapsException;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
@@ -48,14 +47,8 @@ public abstract class EBillingScanJob_Base
         throws JobExecutionException
     {
         try {
-
-            for (final Long companyId : Context.getThreadContext().getPerson().getCompanies()) {
-                final Company company = Company.get(companyId);
-                Context.getThreadContext().setCompany(company);
-                new EBillingDocument().scan4Documents(ParameterUtil.instance());
-            }
-            // remove the company to be sure
-            Context.getThreadContext().setCompany(null);
+            new CompanyJobRunner(EBillingScanJob.class.getSimpleName())
+                            .run(() -> new EBillingDocument().scan4Documents(ParameterUtil.instance()));
         } catch (final EFapsException e) {
             EBillingScanJob_Base.LOG.error("Catched error", e);
         }
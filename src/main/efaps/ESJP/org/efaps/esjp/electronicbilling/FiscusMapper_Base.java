@@ -38,6 +38,7 @@ import org.efaps.esjp.ci.CISales;
 import org.efaps.esjp.contacts.Contacts;
 import org.efaps.esjp.db.InstanceUtils;
 import org.efaps.esjp.electronicbilling.PaymentMethod.Installment;
+import org.efaps.esjp.electronicbilling.entities.DocumentSnapshot;
 import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
 import org.efaps.esjp.erp.util.ERP;
 import org.efaps.esjp.products.ProductFamily;
@@ -433,7 +434,7 @@ public abstract class FiscusMapper_Base
                                     final String _key)
         throws EFapsException
     {
-        return ElectronicBilling.TAXMAPPING.get().getProperty("tax." + uuid.toString() + "." + _key);
+        return TaxMappingIndex.get().getTaxProperty(uuid, _key);
     }
 
     protected String number2words(final BigDecimal _amount)
@@ -471,16 +472,9 @@ public abstract class FiscusMapper_Base
     protected PaymentMethod getPaymentMethod(final Instance _docInst)
         throws EFapsException
     {
-        final PaymentMethod ret = new PaymentMethod();
+        PaymentMethod ret = new PaymentMethod();
         if (InstanceUtils.isType(_docInst, CISales.CreditNote)) {
-            // Factus 2021-09-19
-            // NC con motivo 01 no debe llevar forma de pago.
-            // En notas de credito solo se aplica la forma de pago al credito
-            // cuando es motivo 13
-            // y el documento relacionado ha sido pago al Credito y el cliente
-            // requiere modificar la fecha o monto de las cuotas;
-            // del resto no se aplica la forma de pago en NC.
-            ret.setSkip(true);
+            ret = getPaymentMethod(_docInst, null, null, null, () -> null, () -> null);
         } else if (InstanceUtils.isType(_docInst, CISales.Invoice) || InstanceUtils.isType(_docInst, CISales.Receipt)) {
             final PrintQuery print = new PrintQuery(_docInst);
             final SelectBuilder selContactInst = SelectBuilder.get().linkto(CISales.DocumentAbstract.Contact)
@@ -492,53 +486,128 @@ public abstract class FiscusMapper_Base
             final DateTime date = print.getAttribute(CISales.DocumentAbstract.Date);
             final DateTime dueDate = print.getAttribute(CISales.DocumentAbstract.DueDate);
             final BigDecimal crossTotal = print.getAttribute(CISales.DocumentSumAbstract.RateCrossTotal);
+            ret = getPaymentMethod(_docInst, toLocalDate(date), toLocalDate(dueDate), crossTotal, () -> {
+                String name = null;
+                final QueryBuilder queryBldr = new QueryBuilder(CISales.ChannelSalesCondition2DocumentAbstract);
+                queryBldr.addWhereAttrEqValue(CISales.ChannelSalesCondition2DocumentAbstract.ToAbstractLink,
+                                _docInst);
+                final MultiPrintQuery multi = queryBldr.getPrint();
+                final SelectBuilder selName = SelectBuilder.get()
+                                .linkto(CISales.ChannelSalesCondition2DocumentAbstract.FromAbstractLink)
+                                .attribute(CISales.ChannelConditionAbstract.Name)
+                                .instance();
+                multi.addSelect(selName);
+                multi.executeWithoutAccessCheck();
+                if (multi.next()) {
+                    name = multi.getSelect(selName);
+                }
+                return name;
+            }, () -> {
+                final Instance contactInst = print.getSelect(selContactInst);
+                final PrintQuery retPrint = new PrintQuery(contactInst);
+                final SelectBuilder selRetention = SelectBuilder.get()
+                                .clazz(CISales.Contacts_ClassTaxinfo)
+                                .attribute(CISales.Contacts_ClassTaxinfo.Retention);
+                retPrint.addSelect(selRetention);
+                retPrint.executeWithoutAccessCheck();
+                return retPrint.<TaxRetention>getSelect(selRetention);
+            });
+        }
+        return ret;
+    }
 
-            if (dueDate != null && dueDate.isAfter(date)) {
+    /**
+     * Same as {@link #getPaymentMethod(Instance)} but working on the
+     * already loaded values of the snapshot, so no additional query is
+     * executed.
+     *
+     * @param snapshot snapshot of the document
+     * @return the payment method
+     * @throws EFapsException on error
+     */
+    protected PaymentMethod getPaymentMethod(final DocumentSnapshot snapshot)
+        throws EFapsException
+    {
+        return getPaymentMethod(snapshot.getInstance(), snapshot.getDate(), snapshot.getDueDate(),
+                        snapshot.getRateCrossTotal(), snapshot::getPaymentConditionName, snapshot::getRetention);
+    }
+
+    /**
+     * Evaluate the payment method. The name of the payment condition and
+     * the retention of the client are only requested if needed.
+     *
+     * @param _docInst instance of the document
+     * @param _date date of the document
+     * @param _dueDate due date of the document
+     * @param _crossTotal cross total of the document
+     * @param _conditionName name of the payment condition
+     * @param _retention retention of the client
+     * @return the payment method
+     * @throws EFapsException on error
+     */
+    protected PaymentMethod getPaymentMethod(final Instance _docInst,
+                                             final LocalDate _date,
+                                             final LocalDate _dueDate,
+                                             final BigDecimal _crossTotal,
+                                             final ValueLoader<String> _conditionName,
+                                             final ValueLoader<TaxRetention> _retention)
+        throws EFapsException
+    {
+        final PaymentMethod ret = new PaymentMethod();
+        if (InstanceUtils.isType(_docInst, CISales.CreditNote)) {
+            // Factus 2021-09-19
+            // NC con motivo 01 no debe llevar forma de pago.
+            // En notas de credito solo se aplica la forma de pago al credito
+            // cuando es motivo 13
+            // y el documento relacionado ha sido pago al Credito y el cliente
+            // requiere modificar la fecha o monto de las cuotas;
+            // del resto no se aplica la forma de pago en NC.
+            ret.setSkip(true);
+        } else if (InstanceUtils.isType(_docInst, CISales.Invoice) || InstanceUtils.isType(_docInst, CISales.Receipt)) {
+            if (_dueDate != null && _dueDate.isAfter(_date)) {
                 boolean add = true;
                 if (ElectronicBilling.PAYMENTMETHODREGEX.exists()) {
-                    final QueryBuilder queryBldr = new QueryBuilder(CISales.ChannelSalesCondition2DocumentAbstract);
-                    queryBldr.addWhereAttrEqValue(CISales.ChannelSalesCondition2DocumentAbstract.ToAbstractLink,
-                                    _docInst);
-                    final MultiPrintQuery multi = queryBldr.getPrint();
-                    final SelectBuilder selName = SelectBuilder.get()
-                                    .linkto(CISales.ChannelSalesCondition2DocumentAbstract.FromAbstractLink)
-                                    .attribute(CISales.ChannelConditionAbstract.Name)
-                                    .instance();
-                    multi.addSelect(selName);
-                    multi.executeWithoutAccessCheck();
-                    if (multi.next()) {
-                        final String name = multi.getSelect(selName);
+                    final String name = _conditionName.load();
+                    if (name != null) {
                         add = name.matches(ElectronicBilling.PAYMENTMETHODREGEX.get());
                     }
                 }
                 if (add) {
-                    BigDecimal installmentAmount = crossTotal;
-                    // check if we are "Agente de Retencion"
-                    if (ElectronicBilling.RETENTION_ISAGENT.get()) {
-                        final Instance contactInst = print.getSelect(selContactInst);
-                        final PrintQuery retPrint = new PrintQuery(contactInst);
-                        final SelectBuilder selRetention = SelectBuilder.get()
-                                        .clazz(CISales.Contacts_ClassTaxinfo)
-                                        .attribute(CISales.Contacts_ClassTaxinfo.Retention);
-                        retPrint.addSelect(selRetention);
-                        retPrint.executeWithoutAccessCheck();
-                        final TaxRetention retention = retPrint.getSelect(selRetention);
-                        // check that the client is also "Agente de Retencion"
-                        if (retention != null && TaxRetention.AGENT.equals(retention)) {
-                            installmentAmount = crossTotal.multiply(new BigDecimal("100")
-                                            .subtract(new BigDecimal(ElectronicBilling.RETENTION_PERCENTAGE.get())))
-                                            .divide(new BigDecimal("100"), RoundingMode.HALF_DOWN)
-                                            .setScale(2, RoundingMode.HALF_DOWN);
-                        }
+                    BigDecimal installmentAmount = _crossTotal;
+                    // check if we are "Agente de Retencion" and the client is
+                    // also "Agente de Retencion"
+                    if (ElectronicBilling.RETENTION_ISAGENT.get() && TaxRetention.AGENT.equals(_retention.load())) {
+                        installmentAmount = _crossTotal.multiply(new BigDecimal("100")
+                                        .subtract(new BigDecimal(ElectronicBilling.RETENTION_PERCENTAGE.get())))
+                                        .divide(new BigDecimal("100"), RoundingMode.HALF_DOWN)
+                                        .setScale(2, RoundingMode.HALF_DOWN);
                     }
-                    ret.getInstallments().add(new Installment().setAmount(installmentAmount).setDueDate(LocalDate
-                                    .of(dueDate.getYear(), dueDate.getMonthOfYear(), dueDate.getDayOfMonth())));
+                    ret.getInstallments().add(new Installment().setAmount(installmentAmount).setDueDate(_dueDate));
                 }
             }
         }
         return ret;
     }
 
+    private static LocalDate toLocalDate(final DateTime _date)
+    {
+        return _date == null ? null
+                        : LocalDate.of(_date.getYear(), _date.getMonthOfYear(), _date.getDayOfMonth());
+    }
+
+    /**
+     * Loads a value only when it is needed.
+     *
+     * @param <T> type of the value
+     */
+    @FunctionalInterface
+    protected interface ValueLoader<T>
+    {
+
+        T load()
+            throws EFapsException;
+    }
+
     public static String getDocumentType4Document(final Instance docInst)
     {
         String ret;
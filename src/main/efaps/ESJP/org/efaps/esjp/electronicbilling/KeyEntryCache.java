@@ -0,0 +1,260 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Checkout;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per company cache for the private key entry used to sign the UBL documents.
+ * An entry is valid as long as the linked Keystore instance, its checkin
+ * revision (Modified) and the alias did not change. Loading the JKS from the
+ * VFS store and decrypting the key is only done on a miss. An upload on this
+ * server invalidates the entry directly, the revision is only read again
+ * after a minute to notice an upload on another server, so that signing
+ * does not query the keystore for every document. The hits, misses
+ * and load time are published by the UBLMetrics MBean.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("36f2e502-052e-4d0a-8854-78a679917141")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class KeyEntryCache
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyEntryCache.class);
+
+    private static final Map<Long, CachedEntry> CACHE = new ConcurrentHashMap<>();
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    private static final LongAdder LOADNANOS = new LongAdder();
+
+    /** Time after which the revision of a cached entry is read again. */
+    private static final long REVALIDATE = TimeUnit.MINUTES.toNanos(1);
+
+    private KeyEntryCache()
+    {
+    }
+
+    /**
+     * Get the private key entry for the current company.
+     *
+     * @param keystoreInst instance of the EBilling_Keystore
+     * @param keyAlias alias of the key
+     * @param keyStorePwd password of the keystore
+     * @param keyPwd password of the key
+     * @return the private key entry, <code>null</code> if it could not be
+     *         loaded
+     * @throws EFapsException on error
+     */
+    public static KeyStore.PrivateKeyEntry get(final Instance keystoreInst,
+                                               final String keyAlias,
+                                               final String keyStorePwd,
+                                               final String keyPwd)
+        throws EFapsException
+    {
+        KeyStore.PrivateKeyEntry ret = null;
+        if (InstanceUtils.isValid(keystoreInst)) {
+            final var companyId = getCompanyId();
+            final var cached = CACHE.get(companyId);
+            if (cached != null && cached.matches(keystoreInst, keyAlias) && cached.isValid()) {
+                HITS.increment();
+                ret = cached.keyEntry;
+            } else {
+                final var revision = readRevision(keystoreInst);
+                if (cached != null && cached.matches(keystoreInst, keyAlias)
+                                && Objects.equals(cached.revision, revision)) {
+                    HITS.increment();
+                    cached.validated();
+                    ret = cached.keyEntry;
+                } else {
+                    MISSES.increment();
+                    final var start = System.nanoTime();
+                    ret = load(keystoreInst, keyAlias, keyStorePwd, keyPwd);
+                    LOADNANOS.add(System.nanoTime() - start);
+                    if (ret != null) {
+                        CACHE.put(companyId, new CachedEntry(keystoreInst, revision, keyAlias, ret));
+                    }
+                    LOG.debug("Loaded KeyEntry for company {} from {} with revision {}", companyId, keystoreInst,
+                                    revision);
+                }
+            }
+        } else {
+            LOG.error("No valid Keystore configured");
+        }
+        return ret;
+    }
+
+    /**
+     * Invalidate the entry for the current company.
+     *
+     * @throws EFapsException on error
+     */
+    public static void invalidate()
+        throws EFapsException
+    {
+        CACHE.remove(getCompanyId());
+    }
+
+    public static long getHits()
+    {
+        return HITS.sum();
+    }
+
+    public static long getMisses()
+    {
+        return MISSES.sum();
+    }
+
+    /**
+     * @return the accumulated time in milliseconds spend on loading the key
+     *         entries from the store
+     */
+    public static long getLoadTimeMillis()
+    {
+        return LOADNANOS.sum() / 1_000_000;
+    }
+
+    /**
+     * Reset the hits, misses and load time.
+     */
+    public static void resetStatistics()
+    {
+        HITS.reset();
+        MISSES.reset();
+        LOADNANOS.reset();
+    }
+
+    private static KeyStore.PrivateKeyEntry load(final Instance keystoreInst,
+                                                 final String keyAlias,
+                                                 final String keyStorePwd,
+                                                 final String keyPwd)
+    {
+        KeyStore.PrivateKeyEntry ret = null;
+        final var checkout = new Checkout(keystoreInst);
+        try (InputStream inputStream = checkout.execute()) {
+            final KeyStore ks = KeyStore.getInstance("JKS");
+            ks.load(inputStream, keyStorePwd.toCharArray());
+            ret = (KeyStore.PrivateKeyEntry) ks.getEntry(keyAlias,
+                            new KeyStore.PasswordProtection(keyPwd.toCharArray()));
+        } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException
+                        | UnrecoverableEntryException | IOException | EFapsException e) {
+            LOG.error("Catched", e);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the revision of a keystore, which changes on each checkin, e.g. if
+     * a renewed certificate is uploaded under the same alias. The revision of
+     * the cached entry is used as long as it does not have to be read again.
+     *
+     * @param keystoreInst instance of the EBilling_Keystore
+     * @return the revision, <code>null</code> if not known
+     * @throws EFapsException on error
+     */
+    public static OffsetDateTime getRevision(final Instance keystoreInst)
+        throws EFapsException
+    {
+        final var cached = CACHE.get(getCompanyId());
+        return cached != null && cached.keystoreInst.equals(keystoreInst) && cached.isValid()
+                        ? cached.revision
+                        : readRevision(keystoreInst);
+    }
+
+    private static OffsetDateTime readRevision(final Instance keystoreInst)
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print(keystoreInst)
+                        .attribute(CIEBilling.Keystore.Modified)
+                        .evaluate();
+        return eval.get(CIEBilling.Keystore.Modified);
+    }
+
+    private static Long getCompanyId()
+        throws EFapsException
+    {
+        final var company = Context.getThreadContext().getCompany();
+        return company == null ? 0L : company.getId();
+    }
+
+    private static final class CachedEntry
+    {
+
+        private final Instance keystoreInst;
+        private final OffsetDateTime revision;
+        private final String keyAlias;
+        private final KeyStore.PrivateKeyEntry keyEntry;
+        private volatile long validatedNanos;
+
+        private CachedEntry(final Instance keystoreInst,
+                            final OffsetDateTime revision,
+                            final String keyAlias,
+                            final KeyStore.PrivateKeyEntry keyEntry)
+        {
+            this.keystoreInst = keystoreInst;
+            this.revision = revision;
+            this.keyAlias = keyAlias;
+            this.keyEntry = keyEntry;
+            validatedNanos = System.nanoTime();
+        }
+
+        private boolean matches(final Instance keystoreInst,
+                                final String keyAlias)
+        {
+            return this.keystoreInst.equals(keystoreInst) && Objects.equals(this.keyAlias, keyAlias);
+        }
+
+        /**
+         * @return true if the revision does not have to be read again
+         */
+        private boolean isValid()
+        {
+            return System.nanoTime() - validatedNanos < REVALIDATE;
+        }
+
+        private void validated()
+        {
+            validatedNanos = System.nanoTime();
+        }
+    }
+}
@@ -72,6 +72,7 @@ public class KeystoreHandler
             } catch (final IOException e) {
                 throw new EFapsException(this.getClass(), "execute", e, _parameter);
             }
+            KeyEntryCache.invalidate();
         }
         return new Return();
     }
@@ -30,11 +30,8 @@ import org.efaps.db.Instance;
 import org.efaps.db.PrintQuery;
 import org.efaps.db.SelectBuilder;
 import org.efaps.eql.IEsjpSelect;
-import org.efaps.esjp.ci.CIContacts;
 import org.efaps.esjp.ci.CIERP;
 import org.efaps.esjp.ci.CISales;
-import org.efaps.esjp.common.parameter.ParameterUtil;
-import org.efaps.esjp.contacts.Contacts;
 import org.efaps.esjp.erp.util.ERP;
 import org.efaps.esjp.sales.tax.xml.TaxEntry;
 import org.efaps.esjp.sales.tax.xml.Taxes;
@@ -67,9 +64,7 @@ public abstract class QRCodeSelect_Base
     public Object getValue(final Instance _docInstance)
         throws EFapsException
     {
-        final List<String> values = new ArrayList<>();
         final String ruc = ERP.COMPANY_TAX.get();
-        values.add(ruc);
 
         final PrintQuery print = new PrintQuery(_docInstance);
         final SelectBuilder selDocType = SelectBuilder.get().linkfrom(CISales.Document2DocumentType.DocumentLink)
@@ -84,12 +79,44 @@ public abstract class QRCodeSelect_Base
 
         final String docTypeTmp = print.getSelect(selDocType);
         final String docType = docTypeTmp == null ? getDocumentType4Document(_docInstance) : docTypeTmp;
-        values.add(docType);
-        values.add(getSerial(print.getAttribute(CIERP.DocumentAbstract.Name)));
-        values.add(getNumber(print.getAttribute(CIERP.DocumentAbstract.Name)));
 
-        final Taxes taxes = print.getAttribute(CISales.DocumentSumAbstract.RateTaxes);
-        final Optional<TaxEntry> optEntry = taxes.getEntries().stream()
+        final Instance contactInst = print.getSelect(selContactInst);
+        final BigDecimal localCrossTotal = print.getAttribute(CISales.DocumentSumAbstract.CrossTotal);
+        final ContactInfo contactInfo = getContactInfo4ContactInst(contactInst,
+                        localCrossTotal.compareTo(BigDecimal.valueOf(700)) < 0, docType);
+        return getValue(ruc, docType, print.getAttribute(CIERP.DocumentAbstract.Name),
+                        print.getAttribute(CISales.DocumentSumAbstract.RateTaxes),
+                        print.getAttribute(CISales.DocumentSumAbstract.RateCrossTotal),
+                        print.getAttribute(CIERP.DocumentAbstract.Date), contactInfo);
+    }
+
+    /**
+     * Assemble the value for the QR code from the already loaded values.
+     *
+     * @param _ruc tax number of the issuer
+     * @param _docType type of the document
+     * @param _name name of the document
+     * @param _taxes taxes of the document
+     * @param _rateCrossTotal cross total of the document
+     * @param _date date of the document
+     * @param _contactInfo info of the customer
+     * @return value for the QR code
+     */
+    protected String getValue(final String _ruc,
+                              final String _docType,
+                              final String _name,
+                              final Taxes _taxes,
+                              final BigDecimal _rateCrossTotal,
+                              final DateTime _date,
+                              final ContactInfo _contactInfo)
+    {
+        final List<String> values = new ArrayList<>();
+        values.add(_ruc);
+        values.add(_docType);
+        values.add(getSerial(_name));
+        values.add(getNumber(_name));
+
+        final Optional<TaxEntry> optEntry = _taxes.getEntries().stream()
                         .filter(entry -> entry.getUUID().toString()
                                         .equals("06e40be6-40d8-44f4-9d8f-585f2f97ce63"))
                         .findFirst();
@@ -98,16 +125,10 @@ public abstract class QRCodeSelect_Base
         } else {
             values.add("0");
         }
-        values.add(print.<BigDecimal>getAttribute(CISales.DocumentSumAbstract.RateCrossTotal)
-                        .setScale(2, RoundingMode.HALF_UP).toString());
-        values.add(print.<DateTime>getAttribute(CIERP.DocumentAbstract.Date).toString("yyyy-MM-dd"));
-
-        final Instance contactInst = print.getSelect(selContactInst);
-        final BigDecimal localCrossTotal = print.getAttribute(CISales.DocumentSumAbstract.CrossTotal);
-        final ContactInfo contactInfo = getContactInfo4ContactInst(contactInst,
-                        localCrossTotal.compareTo(BigDecimal.valueOf(700)) < 0, docType);
-        values.add(contactInfo.getTipoDocumento());
-        values.add(contactInfo.getNumeroDocumento());
+        values.add(_rateCrossTotal.setScale(2, RoundingMode.HALF_UP).toString());
+        values.add(_date.toString("yyyy-MM-dd"));
+        values.add(_contactInfo.getTipoDocumento());
+        values.add(_contactInfo.getNumeroDocumento());
         return StringUtils.join(values, "|");
     }
 
@@ -153,20 +174,10 @@ public abstract class QRCodeSelect_Base
                                                   final String _docType)
         throws EFapsException
     {
-        final PrintQuery print = new PrintQuery(_contactInst);
-        final SelectBuilder selTaxNumber = SelectBuilder.get().clazz(CIContacts.ClassOrganisation)
-                        .attribute(CIContacts.ClassOrganisation.TaxNumber);
-        final SelectBuilder selIDCard = SelectBuilder.get().clazz(CIContacts.ClassPerson)
-                        .attribute(CIContacts.ClassPerson.IdentityCard);
-        final SelectBuilder selIDCardType = SelectBuilder.get().clazz(CIContacts.ClassPerson)
-                        .linkto(CIContacts.ClassPerson.DOITypeLink)
-                        .attribute(CIContacts.AttributeDefinitionDOIType.MappingKey);
-
-        print.addSelect(selTaxNumber, selIDCard, selIDCardType);
-        print.executeWithoutAccessCheck();
-        final String taxNumber = print.getSelect(selTaxNumber);
-        final String idCard = print.getSelect(selIDCard);
-        final String idCardType = print.getSelect(selIDCardType);
+        final var identity = ContactIdentityCache.get(_contactInst);
+        final String taxNumber = identity.getTaxNumber();
+        final String idCard = identity.getIdentityCard();
+        final String idCardType = identity.getDoiType();
 
         ContactInfo ret = new ContactInfo();
         if (StringUtils.isNotEmpty(taxNumber)) {
@@ -182,7 +193,7 @@ public abstract class QRCodeSelect_Base
                             .setNumeroDocumento("0")
                             .setTipoDocumento("-");
         }
-        if (Contacts.isForeign(ParameterUtil.instance(), _contactInst)) {
+        if (identity.isForeign()) {
             ret = new ContactInfo()
                             .setNumeroDocumento("0")
                             .setTipoDocumento("-");
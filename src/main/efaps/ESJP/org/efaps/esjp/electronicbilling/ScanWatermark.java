@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.util.EFapsException;
+
+/**
+ * Persistent high-water mark of the document scan per company and type of
+ * sales document. Each type is scanned on its own and only looks at sales
+ * documents with an id above its mark, so a type without mark (e.g. a type
+ * added to the scan configuration) starts at zero without rescanning the
+ * other types. As sales documents that reach a scanned status after the
+ * scan passed them are not found like that, a full reconciliation scan of
+ * a type is due after the configured interval.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("cd99dba5-13dc-45db-973d-045ec4710a03")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class ScanWatermark
+{
+
+    private final Map<String, Mark> marks;
+
+    private ScanWatermark(final Map<String, Mark> marks)
+    {
+        this.marks = marks;
+    }
+
+    /**
+     * Load the marks of the current company.
+     *
+     * @param docTypes names of the scanned types of sales documents
+     * @return the watermark
+     * @throws EFapsException on error
+     */
+    public static ScanWatermark load(final Collection<String> docTypes)
+        throws EFapsException
+    {
+        final var marks = new LinkedHashMap<String, Mark>();
+        for (final var docType : docTypes) {
+            marks.put(docType, new Mark());
+        }
+        if (!marks.isEmpty()) {
+            final var eval = EQL.builder().print()
+                            .query(CIEBilling.ScanWatermark)
+                            .where()
+                            .attribute(CIEBilling.ScanWatermark.DocType).in(marks.keySet().toArray(new String[0]))
+                            .select()
+                            .attribute(CIEBilling.ScanWatermark.DocType, CIEBilling.ScanWatermark.LastID,
+                                            CIEBilling.ScanWatermark.Reconciled)
+                            .evaluate();
+            while (eval.next()) {
+                final var mark = marks.get(eval.<String>get(CIEBilling.ScanWatermark.DocType));
+                mark.instance = eval.inst();
+                mark.lastId = eval.<Long>get(CIEBilling.ScanWatermark.LastID);
+                mark.reconciled = eval.get(CIEBilling.ScanWatermark.Reconciled);
+            }
+        }
+        return new ScanWatermark(marks);
+    }
+
+    /**
+     * Get the names of the types of sales documents scanned by the given
+     * QueryBuilder configuration.
+     *
+     * @param properties configuration of the QueryBuilder
+     * @return names of the types
+     */
+    public static Collection<String> getDocTypes(final Properties properties)
+    {
+        final var ret = new TreeSet<String>();
+        for (final var key : properties.stringPropertyNames()) {
+            if (key.matches("Type\\d*")) {
+                ret.add(properties.getProperty(key));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the configuration of the QueryBuilder restricted to one type. All
+     * other keys (e.g. the status) are kept.
+     *
+     * @param properties configuration of the QueryBuilder
+     * @param docType name of the type
+     * @return new configuration scanning only the given type
+     */
+    public static Properties getProperties4DocType(final Properties properties,
+                                                   final String docType)
+    {
+        final var ret = new Properties();
+        for (final var key : properties.stringPropertyNames()) {
+            if (!key.matches("Type\\d*")) {
+                ret.setProperty(key, properties.getProperty(key));
+            }
+        }
+        ret.setProperty("Type01", docType);
+        return ret;
+    }
+
+    /**
+     * @return names of the types of this watermark
+     */
+    public Collection<String> getDocTypes()
+    {
+        return Collections.unmodifiableSet(marks.keySet());
+    }
+
+    /**
+     * @param docType name of the type
+     * @return the mark of the type, sales documents above it must be scanned
+     */
+    public long getLastId(final String docType)
+    {
+        return marks.get(docType).lastId;
+    }
+
+    /**
+     * @param docType name of the type
+     * @param interval interval between two full scans
+     * @return true if a full reconciliation scan of the type is due
+     */
+    public boolean isReconciliationDue(final String docType,
+                                       final Duration interval)
+    {
+        final var reconciled = marks.get(docType).reconciled;
+        return reconciled == null || reconciled.isBefore(OffsetDateTime.now().minus(interval));
+    }
+
+    /**
+     * Move the mark of a type up to the given id. Marks are never moved
+     * down, so a reconciliation scan does not reset them.
+     *
+     * @param docType name of the type
+     * @param lastId id of the last processed sales document of the type
+     * @throws EFapsException on error
+     */
+    public void advance(final String docType,
+                        final long lastId)
+        throws EFapsException
+    {
+        final var mark = marks.get(docType);
+        if (mark.instance == null) {
+            mark.lastId = lastId;
+            mark.instance = EQL.builder().insert(CIEBilling.ScanWatermark)
+                            .set(CIEBilling.ScanWatermark.DocType, docType)
+                            .set(CIEBilling.ScanWatermark.LastID, lastId)
+                            .stmt()
+                            .execute();
+        } else if (lastId > mark.lastId) {
+            mark.lastId = lastId;
+            EQL.builder().update(mark.instance)
+                            .set(CIEBilling.ScanWatermark.LastID, lastId)
+                            .stmt()
+                            .execute();
+        }
+    }
+
+    /**
+     * Register a finished reconciliation scan of a type.
+     *
+     * @param docType name of the type
+     * @throws EFapsException on error
+     */
+    public void reconciled(final String docType)
+        throws EFapsException
+    {
+        final var mark = marks.get(docType);
+        final var now = OffsetDateTime.now();
+        advance(docType, mark.lastId);
+        mark.reconciled = now;
+        EQL.builder().update(mark.instance)
+                        .set(CIEBilling.ScanWatermark.Reconciled, now)
+                        .stmt()
+                        .execute();
+    }
+
+    private static final class Mark
+    {
+
+        private Instance instance;
+        private long lastId;
+        private OffsetDateTime reconciled;
+    }
+}
@@ -42,6 +42,8 @@ import org.efaps.esjp.ci.CIEBilling;
 import org.efaps.esjp.common.file.FileUtil;
 import org.efaps.esjp.common.uiform.Create;
 import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.util.PayloadTrace;
+import org.efaps.esjp.electronicbilling.util.PayloadTrace.Kind;
 import org.efaps.ubl.SummaryService;
 import org.efaps.util.EFapsException;
 import org.efaps.util.UUIDUtil;
@@ -149,9 +151,9 @@ public abstract class Summary_Base
                         .setIssueDate(LocalDate.of(2023, 02, 28))
                         .setSupplier(ublService.getSupplier());
         final var ublXml = summary.getUBLXml();
-        LOG.info("UBL: {}", ublXml);
+        PayloadTrace.trace(Kind.UBL, null, () -> ublXml);
         final var signResponse = ublService.sign(ublXml);
-        LOG.info("signResponse: Hash {}\n UBL {}", signResponse.getHash(), signResponse.getUbl());
+        PayloadTrace.trace(Kind.SIGNED, null, signResponse::getUbl);
         try {
             file = new FileUtil().getFile("demo", "xml");
             FileUtils.writeStringToFile(file, signResponse.getUbl(), StandardCharsets.UTF_8);
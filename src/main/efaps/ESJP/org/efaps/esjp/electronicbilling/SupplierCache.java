@@ -0,0 +1,144 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.efaps.admin.common.SystemConfiguration;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.esjp.erp.util.ERP;
+import org.efaps.ubl.documents.elements.Supplier;
+import org.efaps.util.EFapsException;
+
+/**
+ * Per company cache for the values of the issuer (Supplier) of the UBL
+ * documents. The values are read from the ERP SystemConfiguration once and
+ * are reread if the SystemConfiguration was reloaded, which is the case on
+ * any change of its attributes. As the Supplier element is mutable a new
+ * instance is returned on each call.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("5368b1d0-aa92-42f4-a438-c14d405bcc0c")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class SupplierCache
+{
+
+    private static final Map<Long, SupplierValues> CACHE = new ConcurrentHashMap<>();
+
+    private SupplierCache()
+    {
+    }
+
+    /**
+     * Get a new Supplier for the current company.
+     *
+     * @return new Supplier instance
+     * @throws EFapsException on error
+     */
+    public static Supplier getSupplier()
+        throws EFapsException
+    {
+        return getValues().toSupplier();
+    }
+
+    /**
+     * Get the values of the issuer for the current company as one string,
+     * to be used as part of a fingerprint.
+     *
+     * @return the values joined by a separator
+     * @throws EFapsException on error
+     */
+    public static String getFingerprint()
+        throws EFapsException
+    {
+        return getValues().toFingerprint();
+    }
+
+    /**
+     * Invalidate the values for all companies.
+     */
+    public static void invalidateAll()
+    {
+        CACHE.clear();
+    }
+
+    private static SupplierValues getValues()
+        throws EFapsException
+    {
+        final var company = Context.getThreadContext().getCompany();
+        final var companyId = company == null ? 0L : company.getId();
+        final var sysConf = ERP.getSysConfig();
+        var values = CACHE.get(companyId);
+        if (values == null || values.sysConf != sysConf) {
+            values = new SupplierValues(sysConf);
+            CACHE.put(companyId, values);
+        }
+        return values;
+    }
+
+    private static final class SupplierValues
+    {
+
+        private final SystemConfiguration sysConf;
+        private final String doi;
+        private final String name;
+        private final String streetName;
+        private final String geoLocationId;
+        private final String country;
+        private final String anexo;
+        private final String district;
+
+        private SupplierValues(final SystemConfiguration sysConf)
+            throws EFapsException
+        {
+            this.sysConf = sysConf;
+            doi = ERP.COMPANY_TAX.get();
+            name = ERP.COMPANY_NAME.get();
+            streetName = ERP.COMPANY_STREET.get();
+            geoLocationId = ERP.COMPANY_UBIGEO.get();
+            country = ERP.COMPANY_COUNTRY.get();
+            anexo = ERP.COMPANY_ESTABLECIMIENTO.get();
+            district = ERP.COMPANY_DISTRICT.get();
+        }
+
+        private Supplier toSupplier()
+        {
+            final var ret = new Supplier();
+            ret.setDoiType("6");
+            ret.setDOI(doi);
+            ret.setName(name);
+            ret.setStreetName(streetName);
+            ret.withGeoLocationId(geoLocationId);
+            ret.setCountry(country);
+            ret.setAnexo(anexo);
+            ret.setDistrict(district);
+            return ret;
+        }
+
+        private String toFingerprint()
+        {
+            return String.join("\u001f", Objects.toString(doi, ""), Objects.toString(name, ""),
+                            Objects.toString(streetName, ""), Objects.toString(geoLocationId, ""),
+                            Objects.toString(country, ""), Objects.toString(anexo, ""),
+                            Objects.toString(district, ""));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.efaps.admin.common.SystemConfiguration;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.sales.tax.Tax_Base;
+import org.efaps.esjp.sales.tax.xml.TaxEntry;
+import org.efaps.ubl.documents.values.TaxType;
+import org.efaps.util.EFapsException;
+import org.efaps.util.UUIDUtil;
+
+/**
+ * Index over the TaxMapping SystemConfiguration. The properties are parsed
+ * once per company into a map keyed by the UUID of the tax, so that the UBL
+ * creation does not have to concatenate and look up property keys for every
+ * tax entry of every line. The resolved tax values
+ * (factor, type) are kept as templates in the index and shared by all lines
+ * using the same tax. An index is rebuild if the SystemConfiguration was
+ * reloaded, which is the case on any change of its attributes, or on change
+ * of the date, as the tax factor might depend on it.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("dd5313b4-835a-4ff1-865e-e842515841be")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class TaxMappingIndex
+{
+
+    private static final Map<Long, TaxMappingIndex> CACHE = new ConcurrentHashMap<>();
+
+    private final SystemConfiguration sysConf;
+
+    private final LocalDate date;
+
+    private final Map<UUID, Map<String, String>> taxProperties;
+
+    private final Map<UUID, ChargeMapping> charges;
+
+    private final Map<UUID, TaxTemplate> templates = new ConcurrentHashMap<>();
+
+    private TaxMappingIndex(final Properties properties,
+                            final SystemConfiguration sysConf)
+    {
+        this.sysConf = sysConf;
+        date = LocalDate.now();
+        final var taxMap = new HashMap<UUID, Map<String, String>>();
+        final var chargeIds = new HashMap<UUID, String>();
+        final var chargeGlobals = new HashMap<UUID, Boolean>();
+        for (final var key : properties.stringPropertyNames()) {
+            final var parts = key.split("\\.", 3);
+            if (parts.length == 3 && UUIDUtil.isUUID(parts[1])) {
+                final var uuid = UUID.fromString(parts[1]);
+                final var value = properties.getProperty(key);
+                if ("tax".equals(parts[0])) {
+                    taxMap.computeIfAbsent(uuid, k -> new HashMap<>()).put(parts[2], value);
+                } else if ("charge".equals(parts[0]) && "id".equals(parts[2])) {
+                    chargeIds.put(uuid, value);
+                } else if ("charge".equals(parts[0]) && "global".equals(parts[2])) {
+                    chargeGlobals.put(uuid, "true".equalsIgnoreCase(value));
+                }
+            }
+        }
+        final var taxes = new HashMap<UUID, Map<String, String>>();
+        taxMap.forEach((uuid, map) -> taxes.put(uuid, Collections.unmodifiableMap(map)));
+        taxProperties = Collections.unmodifiableMap(taxes);
+        final var chargeMap = new HashMap<UUID, ChargeMapping>();
+        chargeIds.forEach((uuid, id) -> chargeMap.put(uuid,
+                        new ChargeMapping(id, chargeGlobals.getOrDefault(uuid, false))));
+        charges = Collections.unmodifiableMap(chargeMap);
+    }
+
+    /**
+     * Get the index for the current company.
+     *
+     * @return the index
+     * @throws EFapsException on error
+     */
+    public static TaxMappingIndex get()
+        throws EFapsException
+    {
+        final var company = Context.getThreadContext().getCompany();
+        final var companyId = company == null ? 0L : company.getId();
+        final var sysConf = ElectronicBilling.getSysConfig();
+        var ret = CACHE.get(companyId);
+        if (ret == null || ret.sysConf != sysConf || !LocalDate.now().equals(ret.date)) {
+            ret = new TaxMappingIndex(ElectronicBilling.TAXMAPPING.get(), sysConf);
+            CACHE.put(companyId, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @param uuid UUID of the tax
+     * @param key key of the property (e.g. "id", "nombre")
+     * @return the value or <code>null</code>
+     */
+    public String getTaxProperty(final UUID uuid,
+                                 final String key)
+    {
+        final var map = taxProperties.get(uuid);
+        return map == null ? null : map.get(key);
+    }
+
+    /**
+     * @param uuid UUID of the tax
+     * @return the charge mapping or <code>null</code> if the tax is not
+     *         mapped as charge
+     */
+    public ChargeMapping getCharge(final UUID uuid)
+    {
+        return charges.get(uuid);
+    }
+
+    /**
+     * @param entry tax entry
+     * @return the template for the tax of the entry
+     * @throws EFapsException on error
+     */
+    public TaxTemplate getTemplate(final TaxEntry entry)
+        throws EFapsException
+    {
+        var ret = templates.get(entry.getUUID());
+        if (ret == null) {
+            final var tax = Tax_Base.get(entry.getCatUUID(), entry.getUUID());
+            final var taxType = switch (tax.getTaxType()) {
+                case PERUNIT -> TaxType.PERUNIT;
+                case ADVALOREM -> TaxType.ADVALOREM;
+                default -> TaxType.ADVALOREM;
+            };
+            ret = new TaxTemplate(tax.getFactor(), taxType, getTaxProperty(entry.getUUID(), "id"),
+                            getTaxProperty(entry.getUUID(), "nombre"), getTaxProperty(entry.getUUID(), "sunat-id"),
+                            getTaxProperty(entry.getUUID(), "afectacion-igv"));
+            templates.put(entry.getUUID(), ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Resolved values for one tax.
+     */
+    public static final class TaxTemplate
+    {
+
+        private final BigDecimal factor;
+        private final BigDecimal percent;
+        private final TaxType taxType;
+        private final String code;
+        private final String name;
+        private final String id;
+        private final String taxExemptionReasonCode;
+
+        private TaxTemplate(final BigDecimal factor,
+                            final TaxType taxType,
+                            final String code,
+                            final String name,
+                            final String id,
+                            final String taxExemptionReasonCode)
+        {
+            this.factor = factor;
+            percent = factor.multiply(new BigDecimal(100));
+            this.taxType = taxType;
+            this.code = code;
+            this.name = name;
+            this.id = id;
+            this.taxExemptionReasonCode = taxExemptionReasonCode;
+        }
+
+        public BigDecimal getFactor()
+        {
+            return factor;
+        }
+
+        public BigDecimal getPercent()
+        {
+            return percent;
+        }
+
+        public TaxType getTaxType()
+        {
+            return taxType;
+        }
+
+        public String getCode()
+        {
+            return code;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getTaxExemptionReasonCode()
+        {
+            return taxExemptionReasonCode;
+        }
+    }
+
+    /**
+     * Mapping of a tax to a charge.
+     */
+    public static final class ChargeMapping
+    {
+
+        private final String id;
+        private final boolean global;
+
+        private ChargeMapping(final String id,
+                              final boolean global)
+        {
+            this.id = id;
+            this.global = global;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public boolean isGlobal()
+        {
+            return global;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.util.LRUCache;
+import org.efaps.util.EFapsException;
+
+/**
+ * Cache for the hash of the UBL of electronic documents, keyed by the id
+ * of the electronic document. The hash of a signed UBL does not change, so
+ * an entry is only removed if a new UBL is checked in for the document
+ * ({@link #invalidate(Instance)}). As that only reaches the cache of the
+ * current node, the entries also expire after a while. Documents without
+ * UBL are not cached.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("65a55c54-9e0d-47db-937b-da2fa5d19dc1")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class UBLHashCache
+{
+
+    private static final LRUCache<Long, String> CACHE = new LRUCache<>(10000, TimeUnit.MINUTES.toMillis(30));
+
+    private UBLHashCache()
+    {
+    }
+
+    /**
+     * Get the hashes for a list of electronic documents. The documents not
+     * cached yet are loaded with one query.
+     *
+     * @param eDocInsts instances of the electronic documents
+     * @return the hash by electronic document, documents without UBL are
+     *         not contained
+     * @throws EFapsException on error
+     */
+    public static Map<Instance, String> get(final Collection<Instance> eDocInsts)
+        throws EFapsException
+    {
+        final var ret = new HashMap<Instance, String>();
+        final var missing = new HashMap<Long, Instance>();
+        for (final var eDocInst : eDocInsts) {
+            final var hash = CACHE.get(eDocInst.getId());
+            if (hash == null) {
+                missing.put(eDocInst.getId(), eDocInst);
+            } else {
+                ret.put(eDocInst, hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            final var eval = EQL.builder().print()
+                            .query(CIEBilling.UBLFileAbstract)
+                            .where()
+                            .attribute(CIEBilling.UBLFileAbstract.DocumentLinkAbstract)
+                            .in(missing.keySet().toArray(new Long[0]))
+                            .select()
+                            .attribute(CIEBilling.UBLFileAbstract.UBLHash)
+                            .linkto(CIEBilling.UBLFileAbstract.DocumentLinkAbstract).instance().as("eDocInst")
+                            .evaluate();
+            while (eval.next()) {
+                final Instance eDocInst = eval.get("eDocInst");
+                final String hash = eval.get(CIEBilling.UBLFileAbstract.UBLHash);
+                // like a single lookup, the first UBL of a document is used
+                if (hash != null && ret.putIfAbsent(missing.get(eDocInst.getId()), hash) == null) {
+                    CACHE.put(eDocInst.getId(), hash);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove the hash of an electronic document.
+     *
+     * @param eDocInst instance of the electronic document
+     */
+    public static void invalidate(final Instance eDocInst)
+    {
+        if (InstanceUtils.isValid(eDocInst)) {
+            CACHE.remove(eDocInst.getId());
+        }
+    }
+}
@@ -18,24 +18,39 @@ package org.efaps.esjp.electronicbilling;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.efaps.admin.datamodel.Dimension;
 import org.efaps.admin.datamodel.Dimension.UoM;
 import org.efaps.admin.datamodel.Status;
@@ -60,13 +75,19 @@ import org.efaps.esjp.common.file.FileUtil;
 import org.efaps.esjp.db.InstanceUtils;
 import org.efaps.esjp.electronicbilling.entities.AllowanceEntry;
 import org.efaps.esjp.electronicbilling.entities.ChargeEntry;
+import org.efaps.esjp.electronicbilling.entities.DocumentSnapshot;
+import org.efaps.esjp.electronicbilling.entities.SignedUBL;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
 import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.util.PayloadTrace;
+import org.efaps.esjp.electronicbilling.util.PayloadTrace.Kind;
+import org.efaps.esjp.electronicbilling.util.UBLMetrics;
+import org.efaps.esjp.electronicbilling.util.UBLMetrics.Phase;
 import org.efaps.esjp.erp.CurrencyInst;
 import org.efaps.esjp.erp.util.ERP;
 import org.efaps.esjp.products.Conversion;
 import org.efaps.esjp.products.util.ConversionType;
 import org.efaps.esjp.products.util.Products;
-import org.efaps.esjp.sales.tax.Tax_Base;
 import org.efaps.esjp.sales.tax.xml.Taxes;
 import org.efaps.esjp.sales.util.Sales;
 import org.efaps.esjp.sales.util.Sales.TaxRetention;
@@ -115,6 +136,8 @@ public abstract class UBLService_Base
 
     private static final Logger LOG = LoggerFactory.getLogger(UBLService.class);
 
+    private static ThreadPoolExecutor signingExecutor;
+
     public void checkInApplicationResponse(final Instance eDocInst,
                                            final File file)
         throws EFapsException
@@ -124,10 +147,9 @@ public abstract class UBLService_Base
                         .set(CIEBilling.ResponseFileAbstract.DocumentLinkAbstract, eDocInst)
                         .stmt()
                         .execute();
-        try {
-            final var is = new FileInputStream(file);
+        try (var is = new FileInputStream(file)) {
             final var checkin = new Checkin(fileInst);
-            checkin.execute(file.getName(), is, is.available());
+            checkin.execute(file.getName(), is, Long.valueOf(file.length()).intValue());
         } catch (final IOException e) {
             LOG.error("Catched", e);
         }
@@ -178,51 +200,208 @@ public abstract class UBLService_Base
         throws EFapsException
     {
         final var ret = new Return();
-        final var instance = _parameter.getInstance();
-        final var eval = EQL.builder().print(instance)
+        final var signedUBL = createUBL(_parameter.getInstance());
+        if (signedUBL != null) {
+            // only the interactive call needs a file to be shown to the user
+            try {
+                final var file = new FileUtil().getFile(signedUBL.getFileName(), "xml");
+                FileUtils.writeByteArrayToFile(file, signedUBL.getContent());
+                ret.put(ReturnValues.VALUES, file);
+            } catch (final IOException e) {
+                LOG.error("Catched", e);
+            }
+            ret.put(ReturnValues.TRUE, true);
+        }
+        return ret;
+    }
+
+    /**
+     * Create, sign and check in the UBL for an electronic document without
+     * using any intermediate file. If the latest UBL of the electronic
+     * document was build from the same content (same fingerprint), it is
+     * returned instead of signing and storing the same UBL again.
+     *
+     * @param eDocInst instance of the electronic document
+     * @return the signed UBL, <code>null</code> if none was created
+     * @throws EFapsException on error
+     */
+    public SignedUBL createUBL(final Instance eDocInst)
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print(eDocInst)
                         .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract).instance().as("docInstance")
                         .evaluate();
         final Instance docInstance = eval.get("docInstance");
         LOG.info("instance {}", docInstance);
-        ImmutablePair<String, File> ublTuplet = null;
-        if (InstanceUtils.isType(docInstance, CISales.Invoice)) {
-            ublTuplet = createInvoice(docInstance);
-        } else if (InstanceUtils.isType(docInstance, CISales.CreditNote)) {
-            ublTuplet = createCreditNote(docInstance);
-        } else if (InstanceUtils.isType(docInstance, CISales.DeliveryNote)) {
-            ublTuplet = createDeliveryNote(docInstance);
-        } else if (InstanceUtils.isType(docInstance, CISales.Receipt)) {
-            ublTuplet = createReceipt(docInstance);
-        }
-        if (ublTuplet != null) {
-            checkInUBLFile(_parameter, instance, ublTuplet.getRight(), ublTuplet.left);
-            ret.put(ReturnValues.VALUES, ublTuplet.getRight());
-            ret.put(ReturnValues.TRUE, true);
+        SignedUBL ret = null;
+        boolean store = true;
+        try {
+            if (InstanceUtils.isType(docInstance, CISales.DeliveryNote)) {
+                ret = createDeliveryNote(docInstance, eDocInst);
+            } else if (InstanceUtils.isType(docInstance, CISales.Invoice)
+                            || InstanceUtils.isType(docInstance, CISales.CreditNote)
+                            || InstanceUtils.isType(docInstance, CISales.Receipt)) {
+                final var start = System.nanoTime();
+                final var snapshot = loadSnapshot(docInstance);
+                UBLMetrics.record(docInstance, Phase.LOAD, start);
+                final var fingerprint = getFingerprint(snapshot);
+                final var latest = getLatestUBLs(Collections.singletonList(eDocInst)).get(eDocInst);
+                if (latest != null && fingerprint.equals(latest.fingerprint)) {
+                    LOG.info("Reusing UBL {} for {} as the content did not change", latest.fileInst, eDocInst);
+                    ret = getSignedUBL(latest);
+                    store = false;
+                } else {
+                    ret = signUBL(docInstance, eDocInst, getUBL(snapshot), fingerprint);
+                }
+            }
+            if (ret != null && store) {
+                final var signedUBL = ret;
+                PayloadTrace.trace(Kind.SIGNED, eDocInst,
+                                () -> new String(signedUBL.getContent(), StandardCharsets.UTF_8));
+                final var start = System.nanoTime();
+                checkInUBLFile(eDocInst, ret);
+                UBLMetrics.record(docInstance, Phase.PERSIST, start);
+                // the transaction belongs to the caller, the log has no link constraint to the document
+                PayloadTrace.flush();
+            }
+        } finally {
+            // traces must not be left on the (pooled) thread on error
+            PayloadTrace.discard();
         }
         return ret;
     }
 
-    protected void checkInUBLFile(final Parameter _parameter,
-                                  final Instance eDocInst,
-                                  final File file,
-                                  final String ublHash)
+    protected void checkInUBLFile(final Instance eDocInst,
+                                  final SignedUBL signedUBL)
         throws EFapsException
     {
         if (getUBLFileType() != null) {
-            final var fileInst = EQL.builder()
+            final var insert = EQL.builder()
                             .insert(getUBLFileType())
                             .set(CIEBilling.UBLFileAbstract.DocumentLinkAbstract, eDocInst)
-                            .set(CIEBilling.UBLFileAbstract.UBLHash, ublHash)
-                            .stmt()
-                            .execute();
-            try {
-                final var is = new FileInputStream(file);
-                final var checkin = new Checkin(fileInst);
-                checkin.execute(file.getName(), is, is.available());
-            } catch (final IOException e) {
-                LOG.error("Catched", e);
+                            .set(CIEBilling.UBLFileAbstract.UBLHash, signedUBL.getHash());
+            if (signedUBL.getFingerprint() != null) {
+                insert.set(CIEBilling.UBLFileAbstract.Fingerprint, signedUBL.getFingerprint());
+            }
+            final var fileInst = insert.stmt().execute();
+            final var checkin = new Checkin(fileInst);
+            checkin.execute(signedUBL.getFileName() + ".xml", signedUBL.getInputStream(), signedUBL.getLength());
+            UBLHashCache.invalidate(eDocInst);
+        }
+    }
+
+    /**
+     * Fingerprint of the content an UBL is build from: the snapshot of the
+     * sales document and the configuration that changes the resulting UBL.
+     *
+     * @param snapshot snapshot of the sales document
+     * @return the fingerprint
+     * @throws EFapsException on error
+     */
+    protected String getFingerprint(final DocumentSnapshot snapshot)
+        throws EFapsException
+    {
+        return getFingerprint(snapshot, getConfigFingerprint());
+    }
+
+    /**
+     * Fingerprint of the content an UBL is build from.
+     *
+     * @param snapshot snapshot of the sales document
+     * @param configFingerprint fingerprint of the configuration, see
+     *            {@link #getConfigFingerprint()}
+     * @return the fingerprint
+     */
+    protected String getFingerprint(final DocumentSnapshot snapshot,
+                                    final String configFingerprint)
+    {
+        return DigestUtils.sha256Hex(String.join("|", snapshot.getFingerprint(), configFingerprint));
+    }
+
+    /**
+     * Fingerprint of every configuration and master data value that is read
+     * by {@link #getUBL(DocumentSnapshot)} and the signing besides the
+     * snapshot: the supplier, the tax mapping, the switches for credit notes,
+     * payment method and retention and the keystore including its revision,
+     * so that a renewed certificate under the same alias results in a new
+     * UBL. It is the same for all documents of a batch.
+     *
+     * @return the fingerprint
+     * @throws EFapsException on error
+     */
+    protected String getConfigFingerprint()
+        throws EFapsException
+    {
+        final var keystoreInst = ElectronicBilling.KEYSTORE.get();
+        final var keystoreValid = InstanceUtils.isValid(keystoreInst);
+        final var taxMapping = new TreeMap<>(ElectronicBilling.TAXMAPPING.get());
+        return String.join("|", SupplierCache.getFingerprint(),
+                        taxMapping.toString(),
+                        ElectronicBilling.UBL_ENCODING.get(),
+                        String.valueOf(ElectronicBilling.CREDITNOTE_TRYDETAILED.get()),
+                        ElectronicBilling.PAYMENTMETHODREGEX.exists()
+                                        ? ElectronicBilling.PAYMENTMETHODREGEX.get() : "",
+                        String.valueOf(ElectronicBilling.RETENTION_ISAGENT.get()),
+                        Objects.toString(ElectronicBilling.RETENTION_PERCENTAGE.get(), ""),
+                        String.valueOf(Sales.CLASSTAXINFOACTIVATE.get()),
+                        keystoreValid ? keystoreInst.getOid() : "",
+                        keystoreValid ? Objects.toString(KeyEntryCache.getRevision(keystoreInst), "") : "",
+                        ElectronicBilling.KEYSTORE_ALIAS.get());
+    }
+
+    /**
+     * Get the latest UBL file for each of the given electronic documents.
+     *
+     * @param eDocInstances instances of the electronic documents
+     * @return map of electronic document to its latest UBL file
+     * @throws EFapsException on error
+     */
+    protected Map<Instance, LatestUBL> getLatestUBLs(final Collection<Instance> eDocInstances)
+        throws EFapsException
+    {
+        final var ret = new HashMap<Instance, LatestUBL>();
+        if (!eDocInstances.isEmpty()) {
+            final var eDocIds = eDocInstances.stream().map(Instance::getId).toArray(Long[]::new);
+            final var eval = EQL.builder().print()
+                            .query(CIEBilling.UBLFileAbstract)
+                            .where()
+                            .attribute(CIEBilling.UBLFileAbstract.DocumentLinkAbstract).in(eDocIds)
+                            .select()
+                            .attribute(CIEBilling.UBLFileAbstract.Fingerprint, CIEBilling.UBLFileAbstract.UBLHash)
+                            .linkto(CIEBilling.UBLFileAbstract.DocumentLinkAbstract).instance().as("eDocInst")
+                            .orderBy(CIEBilling.UBLFileAbstract.ID)
+                            .evaluate();
+            while (eval.next()) {
+                // ordered by id, so the latest file wins
+                ret.put(eval.get("eDocInst"), new LatestUBL(eval.inst(),
+                                eval.get(CIEBilling.UBLFileAbstract.Fingerprint),
+                                eval.get(CIEBilling.UBLFileAbstract.UBLHash)));
             }
         }
+        return ret;
+    }
+
+    /**
+     * Read an already stored UBL.
+     *
+     * @param latest the stored UBL file
+     * @return the signed UBL
+     * @throws EFapsException on error
+     */
+    protected SignedUBL getSignedUBL(final LatestUBL latest)
+        throws EFapsException
+    {
+        final var checkout = new Checkout(latest.fileInst);
+        try (InputStream input = checkout.execute()) {
+            return SignedUBL.builder()
+                            .withFileName(StringUtils.removeEnd(checkout.getFileName(), ".xml"))
+                            .withHash(latest.hash)
+                            .withFingerprint(latest.fingerprint)
+                            .withContent(IOUtils.toByteArray(input))
+                            .build();
+        } catch (final IOException e) {
+            throw new EFapsException(UBLService.class, "getSignedUBL", e);
+        }
     }
 
     protected CIType getUBLFileType()
@@ -235,31 +414,444 @@ public abstract class UBLService_Base
         return CIEBilling.ResponseFile;
     }
 
-    public ImmutablePair<String, File> createReceipt(final Instance docInstance)
+    /**
+     * Create, sign and check in the UBL for a set of electronic documents.
+     * The sales documents are loaded in batches, the marshalling and signing
+     * is done in parallel on a bounded pool of worker threads and the
+     * resulting files are checked in per batch, each batch in its own
+     * transaction.
+     *
+     * @param eDocInstances instances of the electronic documents
+     * @return mapping of electronic document to the hash of the created UBL
+     * @throws EFapsException on error
+     */
+    public Map<Instance, String> createUBLs(final Collection<Instance> eDocInstances)
         throws EFapsException
     {
-        ImmutablePair<String, File> response = null;
-        final var ublReceipt = new Receipt().withEncoding(Charset.forName(ElectronicBilling.UBL_ENCODING.get()));
-        final var ubl = fill(docInstance, ublReceipt, false);
-        final var ublXml = ubl.getUBLXml();
-        LOG.info("UBL: {}", ublXml);
-        final var signResponse = sign(ublXml);
-        LOG.info("signResponse: Hash {}\n UBL {}", signResponse.getHash(), signResponse.getUbl());
+        return createUBLs(eDocInstances, false);
+    }
+
+    /**
+     * Create, sign and check in the UBL for a set of electronic documents.
+     *
+     * @param eDocInstances instances of the electronic documents
+     * @param force if true an UBL is created even if the fingerprint of the
+     *            latest UBL did not change
+     * @return mapping of electronic document to the hash of the created UBL
+     * @throws EFapsException on error
+     */
+    public Map<Instance, String> createUBLs(final Collection<Instance> eDocInstances,
+                                            final boolean force)
+        throws EFapsException
+    {
+        final var ret = new LinkedHashMap<Instance, String>();
+        createUBLs(eDocInstances, force, ret, new HashMap<>());
+        return ret;
+    }
+
+    /**
+     * Create, sign and check in the UBL for a set of electronic documents.
+     * A document that fails does not fail the others: if the load or the
+     * check in of a batch fails, the batch is rolled back and its documents
+     * are done one by one, each in its own transaction. The results are
+     * added as they are committed, so that they are known to the caller
+     * even if an error ends the creation. Must be called without
+     * uncommitted work in the current Context.
+     *
+     * @param eDocInstances instances of the electronic documents
+     * @param force if true an UBL is created even if the fingerprint of the
+     *            latest UBL did not change
+     * @param created mapping of electronic document to the hash of the
+     *            created UBL, filled with the committed documents
+     * @param failures mapping of electronic document to the cause of its
+     *            failure
+     * @throws EFapsException on an error that concerns all documents
+     */
+    public void createUBLs(final Collection<Instance> eDocInstances,
+                           final boolean force,
+                           final Map<Instance, String> created,
+                           final Map<Instance, Exception> failures)
+        throws EFapsException
+    {
+        if (eDocInstances.isEmpty()) {
+            return;
+        }
+        final var batchSize = Math.max(1, ElectronicBilling.UBL_BULK_BATCHSIZE.get());
+        final var threads = ElectronicBilling.UBL_BULK_THREADS.get() > 0 ? ElectronicBilling.UBL_BULK_THREADS.get()
+                        : Runtime.getRuntime().availableProcessors();
+        final var charset = Charset.forName(ElectronicBilling.UBL_ENCODING.get());
+        final var keyAlias = ElectronicBilling.KEYSTORE_ALIAS.get();
+        final var keyStorePwd = ElectronicBilling.KEYSTORE_PWD.get();
+        final var keyPwd = ElectronicBilling.KEYSTORE_KEYPWD.get();
+        // the worker threads do not have a Context, so the key is resolved here
+        final var keyEntry = KeyEntryCache.get(ElectronicBilling.KEYSTORE.get(), keyAlias, keyStorePwd, keyPwd);
+
+        final var companyId = UBLMetrics.getCompanyId();
+
+        final var executor = getSigningExecutor(threads);
+        final var futures = new ArrayList<Future<?>>();
+        final var traceUBL = PayloadTrace.isActive(Kind.UBL);
         try {
-            final var file = new FileUtil().getFile(ubl.getNumber(), "xml");
-            FileUtils.writeStringToFile(file, signResponse.getUbl(), StandardCharsets.UTF_8);
-            response = ImmutablePair.of(signResponse.getHash(), file);
-        } catch (final IOException e) {
-            LOG.error("Catched", e);
+            final var eDocList = new ArrayList<>(eDocInstances);
+            List<PendingUBL> previous = Collections.emptyList();
+            for (int i = 0; i < eDocList.size(); i = i + batchSize) {
+                final var batch = eDocList.subList(i, Math.min(i + batchSize, eDocList.size()));
+                final var current = getUBLs(batch, force, failures);
+                for (final var pending : current) {
+                    if (pending.reusedHash != null) {
+                        continue;
+                    }
+                    final var ubl = pending.ubl;
+                    final var docType = pending.docType;
+                    pending.future = executor.submit(() -> {
+                        var start = System.nanoTime();
+                        final var ublXml = ubl.getUBLXml();
+                        UBLMetrics.record(docType, companyId, Phase.MARSHAL, System.nanoTime() - start);
+                        if (traceUBL) {
+                            // traced by the calling thread, the worker has no context
+                            pending.ublXml = ublXml;
+                        }
+                        start = System.nanoTime();
+                        final var signResponse = getSigning(keyEntry, keyAlias, keyStorePwd, keyPwd)
+                                        .signDocument(ublXml, charset);
+                        UBLMetrics.record(docType, companyId, Phase.SIGN, System.nanoTime() - start);
+                        return signResponse;
+                    });
+                    futures.add(pending.future);
+                }
+                // while the workers sign the current batch the previous one is stored
+                persist(previous, created, failures);
+                previous = current;
+            }
+            persist(previous, created, failures);
+        } finally {
+            // the executor is shared, so only the own work is stopped
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * The executor signing the UBL is shared by all bulk creations, so that
+     * the threads are reused.
+     * Idle threads are released after a while. A change of the number of
+     * threads replaces the executor, the old one ends with its idle threads.
+     *
+     * @param threads number of threads
+     * @return the executor
+     */
+    protected static synchronized ExecutorService getSigningExecutor(final int threads)
+    {
+        if (signingExecutor == null || signingExecutor.getMaximumPoolSize() != threads) {
+            final var counter = new AtomicInteger();
+            signingExecutor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.MINUTES,
+                            new LinkedBlockingQueue<>(), runnable -> {
+                                final var thread = new Thread(runnable, "EBilling-Signing-"
+                                                + counter.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            signingExecutor.allowCoreThreadTimeOut(true);
+        }
+        return signingExecutor;
+    }
+
+    /**
+     * Load and fill the UBL documents for a batch of electronic documents.
+     * If the batch fails, its documents are loaded one by one and only the
+     * failing ones are left out.
+     *
+     * @param eDocInstances instances of the electronic documents
+     * @param force if true the latest UBL is not reused
+     * @param failures mapping of electronic document to the cause of its
+     *            failure
+     * @return list of filled UBL documents
+     * @throws EFapsException on error
+     */
+    protected List<PendingUBL> getUBLs(final List<Instance> eDocInstances,
+                                       final boolean force,
+                                       final Map<Instance, Exception> failures)
+        throws EFapsException
+    {
+        List<PendingUBL> ret;
+        try {
+            ret = getUBLs(eDocInstances, force);
+        } catch (final EFapsException | RuntimeException e) {
+            // a failed statement aborts the transaction
+            CompanyJobRunner.rollback();
+            if (eDocInstances.size() == 1) {
+                LOG.error("Could not load UBL for {}", eDocInstances.get(0), e);
+                failures.put(eDocInstances.get(0), e);
+                ret = Collections.emptyList();
+            } else {
+                LOG.warn("Could not load UBL for a batch, loading its documents one by one", e);
+                ret = new ArrayList<>();
+                for (final var eDocInst : eDocInstances) {
+                    ret.addAll(getUBLs(Collections.singletonList(eDocInst), force, failures));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Load and fill the UBL documents for a batch of electronic documents.
+     *
+     * @param eDocInstances instances of the electronic documents
+     * @param force if true the latest UBL is not reused
+     * @return list of filled UBL documents
+     * @throws EFapsException on error
+     */
+    protected List<PendingUBL> getUBLs(final List<Instance> eDocInstances,
+                                       final boolean force)
+        throws EFapsException
+    {
+        final var ret = new ArrayList<PendingUBL>();
+        final var eDocIds = eDocInstances.stream().map(Instance::getId).toArray(Long[]::new);
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.DocumentAbstract)
+                        .where()
+                        .attribute(CIEBilling.DocumentAbstract.ID).in(eDocIds)
+                        .select()
+                        .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract).instance().as("docInstance")
+                        .evaluate();
+        final var doc2eDoc = new LinkedHashMap<Instance, Instance>();
+        while (eval.next()) {
+            doc2eDoc.put(eval.get("docInstance"), eval.inst());
+        }
+        final var docInstances = new ArrayList<Instance>();
+        for (final var docInstance : doc2eDoc.keySet()) {
+            if (InstanceUtils.isType(docInstance, CISales.DeliveryNote)) {
+                final var start = System.nanoTime();
+                final var ubl = getDeliveryNote(docInstance);
+                UBLMetrics.record(docInstance, Phase.LOAD, start);
+                ret.add(new PendingUBL(doc2eDoc.get(docInstance), docInstance, ubl));
+            } else if (InstanceUtils.isType(docInstance, CISales.Invoice)
+                            || InstanceUtils.isType(docInstance, CISales.CreditNote)
+                            || InstanceUtils.isType(docInstance, CISales.Receipt)) {
+                docInstances.add(docInstance);
+            } else {
+                LOG.warn("No UBL can be created for {}", docInstance);
+            }
+        }
+        if (!docInstances.isEmpty()) {
+            final var loadStart = System.nanoTime();
+            final var snapshots = loadSnapshots(docInstances);
+            // the load of the snapshots is shared by all documents of the batch
+            final var loadShare = snapshots.isEmpty() ? 0 : (System.nanoTime() - loadStart) / snapshots.size();
+            final Map<Instance, LatestUBL> latestUBLs = force ? Collections.emptyMap()
+                            : getLatestUBLs(doc2eDoc.values());
+            final var configFingerprint = getConfigFingerprint();
+            for (final var snapshot : snapshots) {
+                final var start = System.nanoTime() - loadShare;
+                final var docInstance = snapshot.getInstance();
+                final var eDocInst = doc2eDoc.get(docInstance);
+                final var fingerprint = getFingerprint(snapshot, configFingerprint);
+                final var latest = latestUBLs.get(eDocInst);
+                if (latest != null && fingerprint.equals(latest.fingerprint)) {
+                    LOG.debug("Reusing UBL {} for {} as the content did not change", latest.fileInst, eDocInst);
+                    final var pending = new PendingUBL(eDocInst, docInstance, null);
+                    pending.reusedHash = latest.hash;
+                    ret.add(pending);
+                } else {
+                    final var ubl = getUBL(snapshot);
+                    UBLMetrics.record(docInstance, Phase.LOAD, start);
+                    final var pending = new PendingUBL(eDocInst, docInstance, ubl);
+                    pending.fingerprint = fingerprint;
+                    ret.add(pending);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Check in the signed UBL of a batch in one transaction. If that fails,
+     * the batch is rolled back and its documents are checked in one by one,
+     * each in its own transaction, so that only the failing ones are left
+     * out.
+     *
+     * @param pendings the UBL of the batch
+     * @param created mapping of electronic document to the hash of the
+     *            created UBL, filled after the commit
+     * @param failures mapping of electronic document to the cause of its
+     *            failure
+     * @throws EFapsException on error
+     */
+    protected void persist(final List<PendingUBL> pendings,
+                           final Map<Instance, String> created,
+                           final Map<Instance, Exception> failures)
+        throws EFapsException
+    {
+        if (!pendings.isEmpty()) {
+            final var stored = new LinkedHashMap<Instance, String>();
+            boolean failed = false;
+            try {
+                try {
+                    for (final var pending : pendings) {
+                        persist(pending, stored, failures);
+                    }
+                } catch (final EFapsException | RuntimeException e) {
+                    LOG.warn("Could not store the UBL of a batch, storing its documents one by one", e);
+                    failed = true;
+                    PayloadTrace.discard();
+                }
+                if (failed) {
+                    CompanyJobRunner.rollback();
+                    for (final var pending : pendings) {
+                        stored.clear();
+                        try {
+                            persist(pending, stored, failures);
+                        } catch (final EFapsException | RuntimeException e) {
+                            LOG.error("Could not store UBL for {}", pending.eDocInst, e);
+                            failures.put(pending.eDocInst, e);
+                            stored.clear();
+                        }
+                        if (stored.isEmpty()) {
+                            PayloadTrace.discard();
+                            CompanyJobRunner.rollback();
+                        } else {
+                            CompanyJobRunner.checkpoint();
+                            Context.save();
+                            PayloadTrace.flush();
+                            created.putAll(stored);
+                        }
+                    }
+                } else {
+                    CompanyJobRunner.checkpoint();
+                    Context.save();
+                    PayloadTrace.flush();
+                    created.putAll(stored);
+                }
+            } finally {
+                // traces must not be left on the (pooled) thread on error
+                PayloadTrace.discard();
+            }
+        }
+    }
+
+    /**
+     * Check in the signed UBL of one document.
+     *
+     * @param pending the UBL of the document
+     * @param stored mapping of electronic document to the hash of the stored
+     *            UBL
+     * @param failures mapping of electronic document to the cause of its
+     *            failure, for a failed signing
+     * @throws EFapsException on error
+     */
+    protected void persist(final PendingUBL pending,
+                           final Map<Instance, String> stored,
+                           final Map<Instance, Exception> failures)
+        throws EFapsException
+    {
+        if (pending.reusedHash != null) {
+            stored.put(pending.eDocInst, pending.reusedHash);
+        } else {
+            try {
+                final var signResponse = pending.future.get();
+                if (pending.ublXml != null) {
+                    PayloadTrace.trace(Kind.UBL, pending.eDocInst, () -> pending.ublXml);
+                }
+                final var signedUBL = toSignedUBL(pending.ubl.getNumber(), signResponse, pending.fingerprint);
+                PayloadTrace.trace(Kind.SIGNED, pending.eDocInst,
+                                () -> new String(signedUBL.getContent(), StandardCharsets.UTF_8));
+                final var start = System.nanoTime();
+                checkInUBLFile(pending.eDocInst, signedUBL);
+                UBLMetrics.record(pending.docInstance, Phase.PERSIST, start);
+                stored.put(pending.eDocInst, signedUBL.getHash());
+            } catch (final ExecutionException e) {
+                LOG.error("Could not create UBL for {}", pending.eDocInst, e);
+                failures.put(pending.eDocInst, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EFapsException(UBLService.class, "persist", e);
+            }
+        }
+    }
+
+    public SignedUBL createReceipt(final Instance docInstance)
+        throws EFapsException
+    {
+        final var start = System.nanoTime();
+        final var ubl = getReceipt(loadSnapshot(docInstance));
+        UBLMetrics.record(docInstance, Phase.LOAD, start);
+        return signUBL(docInstance, ubl);
+    }
+
+    public SignedUBL createInvoice(final Instance docInstance)
+        throws EFapsException
+    {
+        final var start = System.nanoTime();
+        final var ubl = getInvoice(loadSnapshot(docInstance));
+        UBLMetrics.record(docInstance, Phase.LOAD, start);
+        return signUBL(docInstance, ubl);
+    }
+
+    public SignedUBL createCreditNote(final Instance docInstance)
+        throws EFapsException
+    {
+        final var start = System.nanoTime();
+        final var ubl = getCreditNote(loadSnapshot(docInstance));
+        UBLMetrics.record(docInstance, Phase.LOAD, start);
+        return signUBL(docInstance, ubl);
+    }
+
+    public SignedUBL createDeliveryNote(final Instance docInstance)
+        throws EFapsException
+    {
+        return createDeliveryNote(docInstance, null);
+    }
+
+    /**
+     * @param docInstance instance of the delivery note
+     * @param eDocInst electronic document the UBL is traced for, may be
+     *            <code>null</code>
+     * @return the signed UBL
+     * @throws EFapsException on error
+     */
+    protected SignedUBL createDeliveryNote(final Instance docInstance,
+                                           final Instance eDocInst)
+        throws EFapsException
+    {
+        final var start = System.nanoTime();
+        final var ubl = getDeliveryNote(docInstance);
+        UBLMetrics.record(docInstance, Phase.LOAD, start);
+        return signUBL(docInstance, eDocInst, ubl, null);
+    }
+
+    /**
+     * Get the UBL document for a snapshot of an invoice, credit note or
+     * receipt.
+     *
+     * @param snapshot snapshot of the sales document
+     * @return the UBL document
+     * @throws EFapsException on error
+     */
+    protected AbstractDocument<?> getUBL(final DocumentSnapshot snapshot)
+        throws EFapsException
+    {
+        final AbstractDocument<?> ret;
+        if (InstanceUtils.isType(snapshot.getInstance(), CISales.Invoice)) {
+            ret = getInvoice(snapshot);
+        } else if (InstanceUtils.isType(snapshot.getInstance(), CISales.CreditNote)) {
+            ret = getCreditNote(snapshot);
+        } else {
+            ret = getReceipt(snapshot);
         }
-        return response;
+        return ret;
     }
 
-    public ImmutablePair<String, File> createInvoice(final Instance docInstance)
+    protected AbstractDocument<?> getReceipt(final DocumentSnapshot snapshot)
         throws EFapsException
     {
-        ImmutablePair<String, File> response = null;
-        final boolean freeOfCharge = isFreeOfCharge(docInstance);
+        final var ublReceipt = new Receipt().withEncoding(Charset.forName(ElectronicBilling.UBL_ENCODING.get()));
+        return fill(snapshot, ublReceipt, false);
+    }
+
+    protected AbstractDocument<?> getInvoice(final DocumentSnapshot snapshot)
+        throws EFapsException
+    {
+        final boolean freeOfCharge = snapshot.isFreeOfCharge();
         final var ublInvoice = new Invoice()
         {
 
@@ -273,89 +865,87 @@ public abstract class UBLService_Base
                 return total;
             }
         }.withEncoding(Charset.forName(ElectronicBilling.UBL_ENCODING.get()));
-        final var ubl = fill(docInstance, ublInvoice, freeOfCharge);
-        final var ublXml = ubl.getUBLXml();
-        LOG.info("UBL: {}", ublXml);
-        final var signResponse = sign(ublXml);
-        LOG.info("signResponse: Hash {}\n UBL {}", signResponse.getHash(), signResponse.getUbl());
-        try {
-            final var file = new FileUtil().getFile(ubl.getNumber(), "xml");
-            FileUtils.writeStringToFile(file, signResponse.getUbl(), StandardCharsets.UTF_8);
-            response = ImmutablePair.of(signResponse.getHash(), file);
-        } catch (final IOException e) {
-            LOG.error("Catched", e);
-        }
-        return response;
+        return fill(snapshot, ublInvoice, freeOfCharge);
     }
 
-    public ImmutablePair<String, File> createCreditNote(final Instance docInstance)
+    protected AbstractDocument<?> getCreditNote(final DocumentSnapshot snapshot)
         throws EFapsException
     {
-        ImmutablePair<String, File> response = null;
         var ublCreditNote = new CreditNote().withEncoding(Charset.forName(ElectronicBilling.UBL_ENCODING.get()));
         if (ElectronicBilling.CREDITNOTE_TRYDETAILED.get()) {
-            ublCreditNote = (CreditNote) fill(docInstance, ublCreditNote, false);
+            ublCreditNote = (CreditNote) fill(snapshot, ublCreditNote, false);
         } else {
-            ublCreditNote = fillCreditNote(docInstance, ublCreditNote);
+            ublCreditNote = fillCreditNote(snapshot, ublCreditNote);
         }
-        final var ublXml = ublCreditNote.getUBLXml();
-        LOG.info("UBL: {}", ublXml);
-        final var signResponse = sign(ublXml);
-        LOG.info("signResponse: Hash {}\n UBL {}", signResponse.getHash(), signResponse.getUbl());
-        try {
-            final var file = new FileUtil().getFile(ublCreditNote.getNumber(), "xml");
-            FileUtils.writeStringToFile(file, signResponse.getUbl(), StandardCharsets.UTF_8);
-            response = ImmutablePair.of(signResponse.getHash(), file);
-        } catch (final IOException e) {
-            LOG.error("Catched", e);
-        }
-        return response;
+        return ublCreditNote;
     }
 
-    public ImmutablePair<String, File> createDeliveryNote(final Instance docInstance)
+    protected AbstractDocument<?> getDeliveryNote(final Instance docInstance)
         throws EFapsException
     {
-        ImmutablePair<String, File> response = null;
         final var ublDeliveryNote = new DeliveryNote()
                         .withEncoding(Charset.forName(ElectronicBilling.UBL_ENCODING.get()));
-        final var ubl = fillDeliveryNote(docInstance, ublDeliveryNote);
+        return fillDeliveryNote(docInstance, ublDeliveryNote);
+    }
+
+    protected SignedUBL signUBL(final Instance docInstance,
+                                final AbstractDocument<?> ubl)
+        throws EFapsException
+    {
+        return signUBL(docInstance, null, ubl, null);
+    }
+
+    /**
+     * @param docInstance instance of the sales document
+     * @param eDocInst electronic document the UBL is traced for, may be
+     *            <code>null</code>
+     * @param ubl UBL document
+     * @param fingerprint fingerprint of the content, may be <code>null</code>
+     * @return the signed UBL
+     * @throws EFapsException on error
+     */
+    protected SignedUBL signUBL(final Instance docInstance,
+                                final Instance eDocInst,
+                                final AbstractDocument<?> ubl,
+                                final String fingerprint)
+        throws EFapsException
+    {
+        var start = System.nanoTime();
         final var ublXml = ubl.getUBLXml();
-        LOG.info("UBL: {}", ublXml);
+        UBLMetrics.record(docInstance, Phase.MARSHAL, start);
+        PayloadTrace.trace(Kind.UBL, eDocInst, () -> ublXml);
+        start = System.nanoTime();
         final var signResponse = sign(ublXml);
-        LOG.info("signResponse: Hash {}\n UBL {}", signResponse.getHash(), signResponse.getUbl());
-        try {
-            final var file = new FileUtil().getFile(ubl.getNumber(), "xml");
-            FileUtils.writeStringToFile(file, signResponse.getUbl(), StandardCharsets.UTF_8);
-            response = ImmutablePair.of(signResponse.getHash(), file);
-        } catch (final IOException e) {
-            LOG.error("Catched", e);
-        }
-        return response;
+        UBLMetrics.record(docInstance, Phase.SIGN, start);
+        return toSignedUBL(ubl.getNumber(), signResponse, fingerprint);
     }
 
-    protected CreditNote fillCreditNote(final Instance docInstance,
-                                        final CreditNote ubl)
-        throws EFapsException
+    protected SignedUBL toSignedUBL(final String number,
+                                    final SignResponseDto signResponse)
     {
-        final var eval = EQL.builder().print(docInstance)
-                        .attribute(CISales.CreditNote.Name, CISales.CreditNote.Taxes,
-                                        CISales.CreditNote.RateCurrencyId, CISales.CreditNote.Date,
-                                        CISales.CreditNote.RateCrossTotal,
-                                        CISales.CreditNote.RateNetTotal,
-                                        CISales.CreditNote.CrossTotal)
-                        .linkto(CISales.CreditNote.Contact).instance().as("contactInstance")
-                        .linkto(CISales.CreditNote.CreditReason)
-                        .attribute(CISales.AttributeDefinitionCreditReason.Value).as("creditReason")
-                        .evaluate();
+        return toSignedUBL(number, signResponse, null);
+    }
 
-        final var taxes = eval.<Taxes>get(CISales.DocumentSumAbstract.Taxes);
-        final Instance contactInstance = eval.get("contactInstance");
-        final BigDecimal crossTotal = eval.get(CISales.DocumentSumAbstract.RateCrossTotal);
-        final var currencyInst = CurrencyInst.get(eval.<Long>get(CISales.DocumentSumAbstract.RateCurrencyId));
-        final LocalDate date = eval.get(CISales.DocumentSumAbstract.Date);
+    protected SignedUBL toSignedUBL(final String number,
+                                    final SignResponseDto signResponse,
+                                    final String fingerprint)
+    {
+        LOG.debug("signResponse: Hash {}", signResponse.getHash());
+        return SignedUBL.builder()
+                        .withFileName(number)
+                        .withHash(signResponse.getHash())
+                        .withFingerprint(fingerprint)
+                        .withContent(signResponse.getUbl().getBytes(StandardCharsets.UTF_8))
+                        .build();
+    }
 
-        final String creditReason = eval.get("creditReason");
-        final CreditNoteTypeCode typeCode = switch (creditReason) {
+    protected CreditNote fillCreditNote(final DocumentSnapshot snapshot,
+                                        final CreditNote ubl)
+        throws EFapsException
+    {
+        final var currencyInst = CurrencyInst.get(snapshot.getRateCurrencyId());
+        final String creditReason = snapshot.getCreditReason();
+        final CreditNoteTypeCode typeCode = switch (creditReason == null ? "" : creditReason) {
             case "01" -> CreditNoteTypeCode.C01;
             case "02" -> CreditNoteTypeCode.C02;
             case "03" -> CreditNoteTypeCode.C03;
@@ -373,14 +963,14 @@ public abstract class UBLService_Base
         };
         ubl.setCreditNoteTypeCode(typeCode);
 
-        ubl.withNumber(eval.get(CISales.DocumentSumAbstract.Name))
+        ubl.withNumber(snapshot.getName())
                         .withCurrency(currencyInst.getISOCode())
-                        .withDate(date)
-                        .withCrossTotal(crossTotal)
-                        .withNetTotal(eval.get(CISales.DocumentSumAbstract.RateNetTotal))
+                        .withDate(snapshot.getDate())
+                        .withCrossTotal(snapshot.getRateCrossTotal())
+                        .withNetTotal(snapshot.getRateNetTotal())
                         .withSupplier(getSupplier())
-                        .withCustomer(getCustomer(contactInstance))
-                        .withTaxes(getTaxes(taxes, false, false));
+                        .withCustomer(getCustomer(snapshot))
+                        .withTaxes(getTaxes(snapshot.getTaxes(), false, false));
 
         final var line = Line.builder()
                         .withQuantity(BigDecimal.ONE)
@@ -396,25 +986,20 @@ public abstract class UBLService_Base
                         .build();
 
         ubl.withLines(Collections.singletonList(line));
-        final var refEval = EQL.builder().print().query(CISales.CreditNote2Invoice, CISales.CreditNote2Receipt)
-                        .where().attribute(CISales.Document2DocumentAbstract.FromAbstractLink).eq(docInstance)
-                        .select()
-                        .linkto(CISales.Document2DocumentAbstract.ToAbstractLink).instance().as("refInst")
-                        .linkto(CISales.Document2DocumentAbstract.ToAbstractLink)
-                        .attribute(CISales.DocumentAbstract.Name).as("name")
-                        .linkto(CISales.Document2DocumentAbstract.ToAbstractLink)
-                        .attribute(CISales.DocumentAbstract.Date).as("date")
-                        .evaluate();
-        refEval.next();
-        final Instance refIns = refEval.get("refInst");
-        final var reference = new Reference()
-                        .setDocType(InstanceUtils.isKindOf(refIns, CISales.Invoice) ? "01" : "03")
-                        .setNumber(refEval.get("name"))
-                        .setDate(refEval.get("date"));
-        ubl.withReference(reference);
+        UBLMetrics.recordLines(snapshot.getInstance(), 1);
+        ubl.withReference(getReference(snapshot));
         return ubl;
     }
 
+    protected Reference getReference(final DocumentSnapshot snapshot)
+    {
+        return new Reference()
+                        .setDocType(InstanceUtils.isKindOf(snapshot.getReferenceInstance(), CISales.Invoice) ? "01"
+                                        : "03")
+                        .setNumber(snapshot.getReferenceName())
+                        .setDate(snapshot.getReferenceDate());
+    }
+
     protected DeliveryNote fillDeliveryNote(final Instance docInstance,
                                             final DeliveryNote ubl)
         throws EFapsException
@@ -445,8 +1030,10 @@ public abstract class UBLService_Base
                         .withTime(evalTime(date, created))
                         .withSupplier(getSupplier())
                         .withCustomer(getCustomer(contactInstance))
-                        .withLines(getDeliveryNoteLines(docInstance))
                         .withShipment(getShipment(docInstance, thirdParty, eval));
+        final var lines = getDeliveryNoteLines(docInstance);
+        UBLMetrics.recordLines(docInstance, lines.size());
+        ubl.withLines(lines);
         return ubl;
     }
 
@@ -691,43 +1278,31 @@ public abstract class UBLService_Base
         return ret;
     }
 
-    protected AbstractDocument<?> fill(final Instance docInstance,
+    protected AbstractDocument<?> fill(final DocumentSnapshot snapshot,
                                        final AbstractDocument<?> ubl,
                                        final boolean freeOfCharge)
         throws EFapsException
     {
-        final var eval = EQL.builder().print(docInstance)
-                        .attribute(CISales.DocumentSumAbstract.Name, CISales.DocumentSumAbstract.Taxes,
-                                        CISales.DocumentSumAbstract.RateCurrencyId, CISales.DocumentSumAbstract.Date,
-                                        CISales.DocumentSumAbstract.RateCrossTotal,
-                                        CISales.DocumentSumAbstract.RateNetTotal,
-                                        CISales.DocumentSumAbstract.CrossTotal)
-                        .linkto(CISales.DocumentSumAbstract.Contact).instance().as("contactInstance")
-                        .evaluate();
-
-        final var taxes = eval.<Taxes>get(CISales.DocumentSumAbstract.Taxes);
-        final Instance contactInstance = eval.get("contactInstance");
-        final BigDecimal crossTotal = eval.get(CISales.DocumentSumAbstract.RateCrossTotal);
-        final BigDecimal baseCrossTotal = eval.get(CISales.DocumentSumAbstract.CrossTotal);
+        final var taxes = snapshot.getTaxes();
+        final BigDecimal crossTotal = snapshot.getRateCrossTotal();
+        UBLMetrics.recordLines(snapshot.getInstance(), snapshot.getPositions().size());
 
         final var allowancesCharges = getCharges(taxes, false);
-        evalRetention(allowancesCharges, contactInstance, crossTotal, baseCrossTotal);
-        allowancesCharges.addAll(getAllowances(docInstance));
+        evalRetention(allowancesCharges, snapshot);
+        allowancesCharges.addAll(getAllowances(snapshot));
 
-        final var currencyInst = CurrencyInst.get(eval.<Long>get(CISales.DocumentSumAbstract.RateCurrencyId));
-        final LocalDate date = eval.get(CISales.DocumentSumAbstract.Date);
+        final var currencyInst = CurrencyInst.get(snapshot.getRateCurrencyId());
+        final var paymentMethod = getPaymentMethod(snapshot);
 
-        final var paymentMethod = getPaymentMethod(docInstance);
-
-        ubl.withNumber(eval.get(CISales.DocumentSumAbstract.Name))
+        ubl.withNumber(snapshot.getName())
                         .withCurrency(currencyInst.getISOCode())
-                        .withDate(date)
+                        .withDate(snapshot.getDate())
                         .withCrossTotal(crossTotal)
-                        .withNetTotal(eval.get(CISales.DocumentSumAbstract.RateNetTotal))
+                        .withNetTotal(snapshot.getRateNetTotal())
                         .withSupplier(getSupplier())
-                        .withCustomer(getCustomer(contactInstance))
+                        .withCustomer(getCustomer(snapshot))
                         .withAllowancesCharges(allowancesCharges)
-                        .withLines(getLines(docInstance, freeOfCharge))
+                        .withLines(getLines(snapshot, freeOfCharge))
                         .withTaxes(getTaxes(taxes, false, freeOfCharge))
                         .withPaymentTerms(new IPaymentTerms()
                         {
@@ -754,50 +1329,205 @@ public abstract class UBLService_Base
                         });
 
         if (ubl instanceof CreditNote) {
-            final var refEval = EQL.builder().print().query(CISales.CreditNote2Invoice, CISales.CreditNote2Receipt)
-                            .where().attribute(CISales.Document2DocumentAbstract.FromAbstractLink).eq(docInstance)
+            ((CreditNote) ubl).withReference(getReference(snapshot));
+            ubl.withPaymentTerms(null);
+        }
+        return ubl;
+    }
+
+    /**
+     * Load the snapshot for one document.
+     *
+     * @param docInstance instance of the sales document
+     * @return the snapshot
+     * @throws EFapsException on error
+     */
+    public DocumentSnapshot loadSnapshot(final Instance docInstance)
+        throws EFapsException
+    {
+        return loadSnapshots(Collections.singletonList(docInstance)).get(0);
+    }
+
+    /**
+     * Load the snapshots for a set of documents. The number of queries does
+     * not depend on the number of documents or positions: one for the header
+     * values (including contact, retention and payment condition), one for
+     * all positions, one for the free of charge tags and for credit notes one
+     * for the credit reason and one for the referenced documents.
+     *
+     * @param docInstances instances of the sales documents
+     * @return list of snapshots in the same order as the given instances
+     * @throws EFapsException on error
+     */
+    public List<DocumentSnapshot> loadSnapshots(final Collection<Instance> docInstances)
+        throws EFapsException
+    {
+        final var builders = new LinkedHashMap<Long, DocumentSnapshot.Builder>();
+        for (final var docInstance : docInstances) {
+            builders.put(docInstance.getId(), DocumentSnapshot.builder().withInstance(docInstance));
+        }
+        final var ids = builders.keySet().toArray(new Long[builders.size()]);
+
+        final var print = EQL.builder().print()
+                        .query(CISales.DocumentSumAbstract)
+                        .where()
+                        .attribute(CISales.DocumentSumAbstract.ID).in(ids)
+                        .select()
+                        .attribute(CISales.DocumentSumAbstract.Name, CISales.DocumentSumAbstract.Taxes,
+                                        CISales.DocumentSumAbstract.RateCurrencyId, CISales.DocumentSumAbstract.Date,
+                                        CISales.DocumentSumAbstract.DueDate,
+                                        CISales.DocumentSumAbstract.RateCrossTotal,
+                                        CISales.DocumentSumAbstract.RateNetTotal,
+                                        CISales.DocumentSumAbstract.CrossTotal)
+                        .linkto(CISales.DocumentSumAbstract.Contact).instance().as("contactInstance")
+                        .linkto(CISales.DocumentSumAbstract.Contact)
+                            .attribute(CIContacts.ContactAbstract.Name).as("contactName")
+                        .linkto(CISales.DocumentSumAbstract.Contact)
+                            .clazz(CIContacts.ClassOrganisation)
+                            .attribute(CIContacts.ClassOrganisation.TaxNumber).as("taxNumber")
+                        .linkto(CISales.DocumentSumAbstract.Contact)
+                            .clazz(CIContacts.ClassPerson)
+                            .attribute(CIContacts.ClassPerson.IdentityCard).as("identityCard")
+                        .linkto(CISales.DocumentSumAbstract.Contact)
+                            .clazz(CIContacts.ClassPerson).linkto(CIContacts.ClassPerson.DOITypeLink)
+                            .attribute(CIContacts.AttributeDefinitionDOIType.MappingKey).as("doiType")
+                        .linkto(CISales.DocumentSumAbstract.Contact)
+                            .clazz(CISales.Contacts_ClassTaxinfo)
+                            .attribute(CISales.Contacts_ClassTaxinfo.Retention).as("retention");
+        if (ElectronicBilling.PAYMENTMETHODREGEX.exists()) {
+            print.linkfrom(CISales.ChannelSalesCondition2DocumentAbstract.ToAbstractLink)
+                            .linkto(CISales.ChannelSalesCondition2DocumentAbstract.FromAbstractLink)
+                            .attribute(CISales.ChannelConditionAbstract.Name).first().as("paymentCondition");
+        }
+        final var eval = print.evaluate();
+        final var creditNoteIds = new ArrayList<Long>();
+        while (eval.next()) {
+            final var builder = builders.get(eval.inst().getId());
+            builder.withName(eval.get(CISales.DocumentSumAbstract.Name))
+                            .withDate(eval.get(CISales.DocumentSumAbstract.Date))
+                            .withDueDate(eval.get(CISales.DocumentSumAbstract.DueDate))
+                            .withRateCurrencyId(eval.get(CISales.DocumentSumAbstract.RateCurrencyId))
+                            .withRateCrossTotal(eval.get(CISales.DocumentSumAbstract.RateCrossTotal))
+                            .withRateNetTotal(eval.get(CISales.DocumentSumAbstract.RateNetTotal))
+                            .withCrossTotal(eval.get(CISales.DocumentSumAbstract.CrossTotal))
+                            .withTaxes(eval.get(CISales.DocumentSumAbstract.Taxes))
+                            .withContactInstance(eval.get("contactInstance"))
+                            .withContactName(eval.get("contactName"))
+                            .withTaxNumber(eval.get("taxNumber"))
+                            .withIdentityCard(eval.get("identityCard"))
+                            .withDoiType(eval.get("doiType"))
+                            .withRetention(eval.get("retention"));
+            if (ElectronicBilling.PAYMENTMETHODREGEX.exists()) {
+                builder.withPaymentConditionName(eval.get("paymentCondition"));
+            }
+            if (InstanceUtils.isType(eval.inst(), CISales.CreditNote)) {
+                creditNoteIds.add(eval.inst().getId());
+            }
+        }
+
+        final var posEval = EQL.builder()
+                        .print()
+                        .query(CISales.PositionSumAbstract)
+                        .where()
+                        .attribute(CISales.PositionSumAbstract.DocumentAbstractLink).in(ids)
+                        .select()
+                        .attribute(CISales.PositionSumAbstract.DocumentAbstractLink,
+                                        CISales.PositionSumAbstract.Quantity, CISales.PositionSumAbstract.ProductDesc,
+                                        CISales.PositionSumAbstract.RateDiscountNetUnitPrice,
+                                        CISales.PositionSumAbstract.RateCrossUnitPrice,
+                                        CISales.PositionSumAbstract.RateCrossPrice,
+                                        CISales.PositionSumAbstract.RateNetPrice,
+                                        CISales.PositionSumAbstract.PositionNumber, CISales.PositionSumAbstract.UoM,
+                                        CISales.PositionSumAbstract.RateTaxes)
+                        .linkto(CISales.PositionSumAbstract.Product).attribute(CIProducts.ProductAbstract.Name)
+                        .as("prodName")
+                        .orderBy(CISales.PositionSumAbstract.PositionNumber)
+                        .evaluate();
+        while (posEval.next()) {
+            final var docId = posEval.<Long>get(CISales.PositionSumAbstract.DocumentAbstractLink);
+            builders.get(docId).addPosition(DocumentSnapshot.Position.builder()
+                            .withPositionNumber(posEval.get(CISales.PositionSumAbstract.PositionNumber))
+                            .withQuantity(posEval.get(CISales.PositionSumAbstract.Quantity))
+                            .withProductName(posEval.get("prodName"))
+                            .withProductDesc(posEval.get(CISales.PositionSumAbstract.ProductDesc))
+                            .withUoMId(posEval.get(CISales.PositionSumAbstract.UoM))
+                            .withRateDiscountNetUnitPrice(
+                                            posEval.get(CISales.PositionSumAbstract.RateDiscountNetUnitPrice))
+                            .withRateCrossUnitPrice(posEval.get(CISales.PositionSumAbstract.RateCrossUnitPrice))
+                            .withRateNetPrice(posEval.get(CISales.PositionSumAbstract.RateNetPrice))
+                            .withRateCrossPrice(posEval.get(CISales.PositionSumAbstract.RateCrossPrice))
+                            .withRateTaxes(posEval.get(CISales.PositionSumAbstract.RateTaxes))
+                            .build());
+        }
+
+        final var tagEval = EQL.builder().print()
+                        .query(CISales.FreeOfChargeTag)
+                        .where()
+                        .attribute(CISales.FreeOfChargeTag.ObjectID).in(ids)
+                        .select()
+                        .attribute(CISales.FreeOfChargeTag.ObjectID)
+                        .evaluate();
+        while (tagEval.next()) {
+            final var builder = builders.get(tagEval.<Long>get(CISales.FreeOfChargeTag.ObjectID));
+            if (builder != null) {
+                builder.withFreeOfCharge(true);
+            }
+        }
+
+        if (!creditNoteIds.isEmpty()) {
+            final var cnIds = creditNoteIds.toArray(new Long[creditNoteIds.size()]);
+            final var cnEval = EQL.builder().print()
+                            .query(CISales.CreditNote)
+                            .where()
+                            .attribute(CISales.CreditNote.ID).in(cnIds)
                             .select()
+                            .linkto(CISales.CreditNote.CreditReason)
+                            .attribute(CISales.AttributeDefinitionCreditReason.Value).as("creditReason")
+                            .evaluate();
+            while (cnEval.next()) {
+                builders.get(cnEval.inst().getId()).withCreditReason(cnEval.get("creditReason"));
+            }
+            final var refEval = EQL.builder().print()
+                            .query(CISales.CreditNote2Invoice, CISales.CreditNote2Receipt)
+                            .where()
+                            .attribute(CISales.Document2DocumentAbstract.FromAbstractLink).in(cnIds)
+                            .select()
+                            .attribute(CISales.Document2DocumentAbstract.FromAbstractLink)
                             .linkto(CISales.Document2DocumentAbstract.ToAbstractLink).instance().as("refInst")
                             .linkto(CISales.Document2DocumentAbstract.ToAbstractLink)
                             .attribute(CISales.DocumentAbstract.Name).as("name")
                             .linkto(CISales.Document2DocumentAbstract.ToAbstractLink)
                             .attribute(CISales.DocumentAbstract.Date).as("date")
                             .evaluate();
-            refEval.next();
-            final Instance refIns = refEval.get("refInst");
-            final var reference = new Reference()
-                            .setDocType(InstanceUtils.isKindOf(refIns, CISales.Invoice) ? "01" : "03")
-                            .setNumber(refEval.get("name"))
-                            .setDate(refEval.get("date"));
-            ((CreditNote) ubl).withReference(reference);
-            ubl.withPaymentTerms(null);
+            final var referenced = new HashSet<Long>();
+            while (refEval.next()) {
+                final var docId = refEval.<Long>get(CISales.Document2DocumentAbstract.FromAbstractLink);
+                // only the first reference is used, as before
+                if (referenced.add(docId)) {
+                    builders.get(docId).withReference(refEval.get("refInst"), refEval.get("name"),
+                                    refEval.get("date"));
+                }
+            }
         }
-        return ubl;
+        return builders.values().stream().map(DocumentSnapshot.Builder::build).collect(Collectors.toList());
     }
 
     protected void evalRetention(final List<IAllowanceChargeEntry> allowancesCharges,
-                                 final Instance contactInstance,
-                                 final BigDecimal rateCrossTotal,
-                                 final BigDecimal baseCrossTotal)
+                                 final DocumentSnapshot snapshot)
         throws EFapsException
     {
-        if (Sales.CLASSTAXINFOACTIVATE.get() && baseCrossTotal.compareTo(new BigDecimal("700")) > 0) {
-            final var eval = EQL.builder().print(contactInstance)
-                            .clazz(CISales.Contacts_ClassTaxinfo)
-                            .attribute(CISales.Contacts_ClassTaxinfo.Retention).as("retention")
-                            .evaluate();
-            if (eval.next()) {
-                final TaxRetention retention = eval.get("retention");
-                if (retention != null && retention.equals(TaxRetention.AGENT)) {
-                    allowancesCharges.add(AllowanceEntry.builder()
-                                    .withAmount(new BigDecimal("0.03").multiply(rateCrossTotal))
-                                    .withBaseAmount(rateCrossTotal)
-                                    // (Código de motivo de cargo/ descuento:
-                                    // Retención del IGV)
-                                    .withReason("62")
-                                    .withFactor(new BigDecimal("0.03"))
-                                    .build());
-                }
+        if (Sales.CLASSTAXINFOACTIVATE.get() && snapshot.getCrossTotal().compareTo(new BigDecimal("700")) > 0) {
+            final TaxRetention retention = snapshot.getRetention();
+            if (retention != null && retention.equals(TaxRetention.AGENT)) {
+                final var rateCrossTotal = snapshot.getRateCrossTotal();
+                allowancesCharges.add(AllowanceEntry.builder()
+                                .withAmount(new BigDecimal("0.03").multiply(rateCrossTotal))
+                                .withBaseAmount(rateCrossTotal)
+                                // (Código de motivo de cargo/ descuento:
+                                // Retención del IGV)
+                                .withReason("62")
+                                .withFactor(new BigDecimal("0.03"))
+                                .build());
             }
         }
     }
@@ -805,47 +1535,40 @@ public abstract class UBLService_Base
     protected List<IAllowanceChargeEntry> getCharges(final Taxes taxes,
                                                      final boolean isItem)
         throws EFapsException
+    {
+        return getCharges(TaxMappingIndex.get(), taxes, isItem);
+    }
+
+    protected List<IAllowanceChargeEntry> getCharges(final TaxMappingIndex index,
+                                                     final Taxes taxes,
+                                                     final boolean isItem)
+        throws EFapsException
     {
         final var ret = new ArrayList<IAllowanceChargeEntry>();
-        final var taxproperties = ElectronicBilling.TAXMAPPING.get();
         for (final var entry : taxes.getEntries()) {
-            final var taxKey = entry.getUUID();
-            if (taxproperties.containsKey("charge." + taxKey + ".id")) {
-                final var id = taxproperties.getProperty("charge." + taxKey + ".id");
-                final var isGlobal = "true".equalsIgnoreCase(taxproperties.getProperty("charge." + taxKey + ".global"));
-                if (!(isGlobal && isItem)) {
-                    final var tax = Tax_Base.get(entry.getCatUUID(), entry.getUUID());
-                    ret.add(ChargeEntry.builder()
-                                    .withAmount(entry.getAmount())
-                                    .withBaseAmount(entry.getBase())
-                                    .withReason(id)
-                                    .withFactor(tax.getFactor())
-                                    .build());
-                }
+            final var charge = index.getCharge(entry.getUUID());
+            if (charge != null && !(charge.isGlobal() && isItem)) {
+                ret.add(ChargeEntry.builder()
+                                .withAmount(entry.getAmount())
+                                .withBaseAmount(entry.getBase())
+                                .withReason(charge.getId())
+                                .withFactor(index.getTemplate(entry).getFactor())
+                                .build());
             }
         }
         return ret;
     }
 
     // discounts are added as a line --> convert that into a global discount
-    protected List<IAllowanceChargeEntry> getAllowances(final Instance docInstance)
+    protected List<IAllowanceChargeEntry> getAllowances(final DocumentSnapshot snapshot)
         throws EFapsException
     {
         final var ret = new ArrayList<IAllowanceChargeEntry>();
-        final var eval = EQL.builder()
-                        .print()
-                        .query(CISales.PositionSumAbstract)
-                        .where()
-                        .attribute(CISales.PositionSumAbstract.DocumentAbstractLink).eq(docInstance)
-                        .select()
-                        .attribute(CISales.PositionSumAbstract.RateCrossPrice, CISales.PositionSumAbstract.RateNetPrice)
-                        .evaluate();
-
         var total = BigDecimal.ZERO;
         var discount = BigDecimal.ZERO;
-        while (eval.next()) {
-            final BigDecimal crossPrice = eval.get(CISales.PositionSumAbstract.RateCrossPrice);
-            final BigDecimal netPrice = eval.get(CISales.PositionSumAbstract.RateNetPrice);
+        for (final var position : snapshot.getPositions()) {
+            final BigDecimal crossPrice = position.getRateCrossPrice();
+            final BigDecimal netPrice = position.getRateNetPrice();
 
             if (crossPrice.compareTo(BigDecimal.ZERO) > 0) {
                 total = total.add(netPrice);
@@ -870,16 +1593,7 @@ public abstract class UBLService_Base
     public Supplier getSupplier()
         throws EFapsException
     {
-        final var ret = new Supplier();
-        ret.setDoiType("6");
-        ret.setDOI(ERP.COMPANY_TAX.get());
-        ret.setName(ERP.COMPANY_NAME.get());
-        ret.setStreetName(ERP.COMPANY_STREET.get());
-        ret.withGeoLocationId(ERP.COMPANY_UBIGEO.get());
-        ret.setCountry(ERP.COMPANY_COUNTRY.get());
-        ret.setAnexo(ERP.COMPANY_ESTABLECIMIENTO.get());
-        ret.setDistrict(ERP.COMPANY_DISTRICT.get());
-        return ret;
+        return SupplierCache.getSupplier();
     }
 
     protected ICustomer getCustomer(final Instance contanctInstance)
@@ -901,6 +1615,8 @@ public abstract class UBLService_Base
         } else {
             doiType = eval.<String>get("doiType");
         }
+        // the QRCode of the document must show the values signed here
+        ContactIdentityCache.invalidate(contanctInstance);
         final Customer ret = new Customer();
         ret.setDOI(taxNumber == null ? identityCard : taxNumber);
         ret.setDoiType(doiType);
@@ -908,6 +1624,19 @@ public abstract class UBLService_Base
         return ret;
     }
 
+    protected ICustomer getCustomer(final DocumentSnapshot snapshot)
+        throws EFapsException
+    {
+        final var taxNumber = snapshot.getTaxNumber();
+        // the QRCode of the document must show the values signed here
+        ContactIdentityCache.invalidate(snapshot.getContactInstance());
+        final Customer ret = new Customer();
+        ret.setDOI(taxNumber == null ? snapshot.getIdentityCard() : taxNumber);
+        ret.setDoiType(taxNumber == null ? snapshot.getDoiType() : "6");
+        ret.setName(snapshot.getContactName());
+        return ret;
+    }
+
     protected ICarrier getCarrier(final Instance contactInstance)
         throws EFapsException
     {
@@ -927,6 +1656,8 @@ public abstract class UBLService_Base
         } else {
             doiType = eval.<String>get("doiType");
         }
+        // the QRCode of the document must show the values signed here
+        ContactIdentityCache.invalidate(contactInstance);
         final Carrier ret = new Carrier();
         ret.setDOI(taxNumber == null ? identityCard : taxNumber);
         ret.setDoiType(doiType);
@@ -934,45 +1665,25 @@ public abstract class UBLService_Base
         return ret;
     }
 
-    protected ArrayList<ILine> getLines(final Instance docInstance,
+    protected ArrayList<ILine> getLines(final DocumentSnapshot snapshot,
                                         final boolean freeOfCharge)
         throws EFapsException
     {
         final var ret = new ArrayList<ILine>();
-
-        final var eval = EQL.builder()
-                        .print()
-                        .query(CISales.PositionSumAbstract)
-                        .where()
-                        .attribute(CISales.PositionSumAbstract.DocumentAbstractLink).eq(docInstance)
-                        .select()
-                        .attribute(CISales.PositionSumAbstract.Quantity, CISales.PositionSumAbstract.ProductDesc,
-                                        CISales.PositionSumAbstract.RateDiscountNetUnitPrice,
-                                        CISales.PositionSumAbstract.RateCrossUnitPrice,
-                                        CISales.PositionSumAbstract.RateCrossPrice,
-                                        CISales.PositionSumAbstract.RateNetPrice,
-                                        CISales.PositionSumAbstract.PositionNumber, CISales.PositionSumAbstract.UoM,
-                                        CISales.PositionSumAbstract.RateTaxes)
-                        .linkto(CISales.PositionSumAbstract.Product).attribute(CIProducts.ProductAbstract.Name)
-                        .as("prodName")
-                        .orderBy(CISales.PositionSumAbstract.PositionNumber)
-                        .evaluate();
-
-        while (eval.next()) {
-            final var uomId = eval.<Long>get(CISales.PositionSumAbstract.UoM);
-            final var taxes = eval.<Taxes>get(CISales.PositionSumAbstract.RateTaxes);
+        final var index = TaxMappingIndex.get();
+        for (final var position : snapshot.getPositions()) {
+            final var taxes = position.getRateTaxes();
             ret.add(Line.builder()
-                            .withQuantity(eval.get(CISales.PositionSumAbstract.Quantity))
-                            .withSku(eval.get("prodName"))
-                            .withDescription(eval.get(CISales.PositionSumAbstract.ProductDesc))
-                            .withNetUnitPrice(freeOfCharge ? BigDecimal.ZERO
-                                            : eval.get(CISales.PositionSumAbstract.RateDiscountNetUnitPrice))
-                            .withCrossUnitPrice(eval.get(CISales.PositionSumAbstract.RateCrossUnitPrice))
-                            .withNetPrice(eval.get(CISales.PositionSumAbstract.RateNetPrice))
-                            .withCrossPrice(eval.get(CISales.PositionSumAbstract.RateCrossPrice))
-                            .withUoMCode(Dimension.getUoM(uomId).getCommonCode())
-                            .withTaxEntries(getTaxes(taxes, true, freeOfCharge))
-                            .withAllowancesCharges(getCharges(taxes, true))
+                            .withQuantity(position.getQuantity())
+                            .withSku(position.getProductName())
+                            .withDescription(position.getProductDesc())
+                            .withNetUnitPrice(freeOfCharge ? BigDecimal.ZERO : position.getRateDiscountNetUnitPrice())
+                            .withCrossUnitPrice(position.getRateCrossUnitPrice())
+                            .withNetPrice(position.getRateNetPrice())
+                            .withCrossPrice(position.getRateCrossPrice())
+                            .withUoMCode(Dimension.getUoM(position.getUoMId()).getCommonCode())
+                            .withTaxEntries(getTaxes(index, taxes, true, freeOfCharge))
+                            .withAllowancesCharges(getCharges(index, taxes, true))
                             // CATALOGO Nr.16:
                             // 01 - Precio Unitario (incluye IGV),
                             // 02 - Valor referencial unitario en operaciones no
@@ -987,45 +1698,43 @@ public abstract class UBLService_Base
                                        final boolean isLine,
                                        final boolean freeOfCharge)
         throws EFapsException
+    {
+        return getTaxes(TaxMappingIndex.get(), taxes, isLine, freeOfCharge);
+    }
+
+    protected List<ITaxEntry> getTaxes(final TaxMappingIndex index,
+                                       final Taxes taxes,
+                                       final boolean isLine,
+                                       final boolean freeOfCharge)
+        throws EFapsException
     {
         final var ret = new ArrayList<ITaxEntry>();
         for (final var entry : taxes.getEntries()) {
             if (freeOfCharge) {
-                final var tax = Tax_Base.get(entry.getCatUUID(), entry.getUUID());
+                final var template = index.getTemplate(entry);
                 ret.add(org.efaps.esjp.electronicbilling.entities.TaxEntry.builder()
                                 .withTaxType(org.efaps.ubl.documents.values.TaxType.ADVALOREM)
                                 .withAmount(entry.getAmount())
                                 .withTaxableAmount(entry.getBase())
                                 .withTaxExemptionReasonCode(isLine ? "11" : null)
-                                .withPercent(tax.getFactor().multiply(new BigDecimal(100)))
+                                .withPercent(template.getPercent())
                                 .withName("GRA")
                                 .withCode("FRE")
                                 .withId("9996")
                                 .withFreeOfCharge(true)
                                 .build());
 
-            } else if (getTaxProperty(entry.getUUID(), "id") != null) {
-                final var code = getTaxProperty(entry.getUUID(), "id");
-                final var name = getTaxProperty(entry.getUUID(), "nombre");
-                final var id = getTaxProperty(entry.getUUID(), "sunat-id");
-                final var taxExemptionReasonCode = getTaxProperty(entry.getUUID(), "afectacion-igv");
-                org.efaps.ubl.documents.values.TaxType taxType;
-                final var tax = Tax_Base.get(entry.getCatUUID(), entry.getUUID());
-
-                taxType = switch (tax.getTaxType()) {
-                    case PERUNIT -> org.efaps.ubl.documents.values.TaxType.PERUNIT;
-                    case ADVALOREM -> org.efaps.ubl.documents.values.TaxType.ADVALOREM;
-                    default -> org.efaps.ubl.documents.values.TaxType.ADVALOREM;
-                };
+            } else if (index.getTaxProperty(entry.getUUID(), "id") != null) {
+                final var template = index.getTemplate(entry);
                 ret.add(org.efaps.esjp.electronicbilling.entities.TaxEntry.builder()
-                                .withTaxType(taxType)
-                                .withTaxExemptionReasonCode(taxExemptionReasonCode)
+                                .withTaxType(template.getTaxType())
+                                .withTaxExemptionReasonCode(template.getTaxExemptionReasonCode())
                                 .withAmount(entry.getAmount())
                                 .withTaxableAmount(entry.getBase())
-                                .withPercent(tax.getFactor().multiply(new BigDecimal(100)))
-                                .withName(name)
-                                .withCode(code)
-                                .withId(id)
+                                .withPercent(template.getPercent())
+                                .withName(template.getName())
+                                .withCode(template.getCode())
+                                .withId(template.getId())
                                 .build());
             }
         }
@@ -1035,30 +1744,109 @@ public abstract class UBLService_Base
     public SignResponseDto sign(final String ublXml)
         throws EFapsException
     {
-        return new UBlSigning()
-                        .withKeyAlias(ElectronicBilling.KEYSTORE_ALIAS.get())
-                        .withKeyStorePwd(ElectronicBilling.KEYSTORE_PWD.get())
-                        .withKeyPwd(ElectronicBilling.KEYSTORE_KEYPWD.get())
+        final var keyAlias = ElectronicBilling.KEYSTORE_ALIAS.get();
+        final var keyStorePwd = ElectronicBilling.KEYSTORE_PWD.get();
+        final var keyPwd = ElectronicBilling.KEYSTORE_KEYPWD.get();
+        final var keyEntry = KeyEntryCache.get(ElectronicBilling.KEYSTORE.get(), keyAlias, keyStorePwd, keyPwd);
+        return getSigning(keyEntry, keyAlias, keyStorePwd, keyPwd)
                         .signDocument(ublXml, Charset.forName(ElectronicBilling.UBL_ENCODING.get()));
     }
 
+    /**
+     * Get a signing instance for the key entry. The instance is cheap, it
+     * only wraps the key entry cached by the {@link KeyEntryCache}. The XML
+     * signature factory, the KeyInfo and the canonicalizer are built by
+     * {@link Signing} for each document, as it offers no way to reuse them,
+     * so nothing is kept per thread.
+     *
+     * @param keyEntry key entry to be used
+     * @param keyAlias alias of the key
+     * @param keyStorePwd password of the keystore
+     * @param keyPwd password of the key
+     * @return the signing instance
+     */
+    protected static Signing getSigning(final KeyStore.PrivateKeyEntry keyEntry,
+                                        final String keyAlias,
+                                        final String keyStorePwd,
+                                        final String keyPwd)
+    {
+        return new UBlSigning()
+                        .withKeyEntry(keyEntry)
+                        .withKeyAlias(keyAlias)
+                        .withKeyStorePwd(keyStorePwd)
+                        .withKeyPwd(keyPwd);
+    }
+
+    protected static class PendingUBL
+    {
+
+        private final Instance eDocInst;
+        private final Instance docInstance;
+        private final String docType;
+        private final AbstractDocument<?> ubl;
+        private Future<SignResponseDto> future;
+        private String fingerprint;
+        private String reusedHash;
+        private volatile String ublXml;
+
+        protected PendingUBL(final Instance eDocInst,
+                             final Instance docInstance,
+                             final AbstractDocument<?> ubl)
+        {
+            this.eDocInst = eDocInst;
+            this.docInstance = docInstance;
+            docType = getDocumentType4Document(docInstance);
+            this.ubl = ubl;
+        }
+    }
+
+    protected static class LatestUBL
+    {
+
+        private final Instance fileInst;
+        private final String fingerprint;
+        private final String hash;
+
+        protected LatestUBL(final Instance fileInst,
+                            final String fingerprint,
+                            final String hash)
+        {
+            this.fileInst = fileInst;
+            this.fingerprint = fingerprint;
+            this.hash = hash;
+        }
+    }
+
     public static class UBlSigning
         extends Signing
     {
 
+        private KeyStore.PrivateKeyEntry keyEntry;
+
+        /**
+         * Use an already loaded key entry. Required if the signing is
+         * executed in a thread without eFaps Context.
+         *
+         * @param keyEntry key entry to be used
+         * @return this for chaining
+         */
+        public UBlSigning withKeyEntry(final KeyStore.PrivateKeyEntry keyEntry)
+        {
+            this.keyEntry = keyEntry;
+            return this;
+        }
+
         @Override
         protected KeyStore.PrivateKeyEntry getKeyEntry()
         {
+            if (keyEntry != null) {
+                return keyEntry;
+            }
             KeyStore.PrivateKeyEntry ret = null;
             try {
-                final var checkout = new Checkout(ElectronicBilling.KEYSTORE.get());
-                final var inputStream = checkout.execute();
-                final KeyStore ks = KeyStore.getInstance("JKS");
-                ks.load(inputStream, getKeyStorePwd().toCharArray());
-                ret = (KeyStore.PrivateKeyEntry) ks.getEntry(getKeyAlias(),
-                                new KeyStore.PasswordProtection(getKeyPwd().toCharArray()));
-            } catch (KeyStoreException | NoSuchAlgorithmException | java.security.cert.CertificateException
-                            | java.security.UnrecoverableEntryException | java.io.IOException | EFapsException e) {
+                ret = KeyEntryCache.get(ElectronicBilling.KEYSTORE.get(), getKeyAlias(), getKeyStorePwd(),
+                                getKeyPwd());
+            } catch (final EFapsException e) {
                 LOG.error("Catched", e);
             }
             return ret;
@@ -0,0 +1,499 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.backfill;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.efaps.admin.datamodel.Type;
+import org.efaps.admin.event.Parameter;
+import org.efaps.admin.event.Parameter.ParameterValues;
+import org.efaps.admin.event.Return;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.ci.CIType;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.eql.builder.Selectables;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.ci.CISales;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.EBillingDocument;
+import org.efaps.esjp.electronicbilling.UBLService;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.util.SQLUtil;
+import org.efaps.util.DateTimeUtil;
+import org.efaps.util.EFapsException;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Regeneration of the UBL documents for the electronic documents of a
+ * period, e.g. after a fix of the tax mapping. A backfill is registered as
+ * EBilling_Backfill for the current company with {@link #schedule} and
+ * executed by the {@link BackfillJob}. The electronic documents are walked
+ * in ranges of their id ("ChunkSize") up to the highest id at the start;
+ * each range is created in parallel by UBLService#createUBLs and committed
+ * together with the position of the backfill, so that a backfill resumes
+ * from the last committed range after a crash. The throughput is limited
+ * to "DocumentsPerSecond" and the progress is logged with an estimated time
+ * of arrival based on the walked id range. A document that fails is logged
+ * and skipped, it does not stop the backfill. A backfill is registered from
+ * the form of EBilling_BackfillMyDesk and a failed backfill is resumed from
+ * its last position with {@link #resume(Parameter)}. A forced backfill
+ * creates a new UBL even if the fingerprint of the latest UBL did not
+ * change, e.g. after a fix in the code that builds the UBL.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("ec5c6a2c-9c8e-4c5e-a04e-ef47c4bb4f52")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public class Backfill
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(Backfill.class);
+
+    /** Range of the ids of the electronic documents of the company. */
+    private static final String SQL_IDRANGE = "SELECT MIN(ID), MAX(ID) FROM T_EBILLDOC WHERE COMPANYID = ?";
+
+    /**
+     * Status of a backfill.
+     */
+    public enum Status
+    {
+        /** Registered but not started. */
+        OPEN,
+        /** Started, will be resumed from the last position. */
+        RUNNING,
+        /** All documents processed. */
+        DONE,
+        /** Stopped on an error. */
+        FAILED;
+    }
+
+    /**
+     * Register a backfill for the current company.
+     *
+     * @param dateFrom first date of the sales documents (inclusive)
+     * @param dateTo last date of the sales documents (inclusive)
+     * @param salesTypes types of the sales documents, all if none are given
+     * @return instance of the backfill
+     * @throws EFapsException on error
+     */
+    public Instance schedule(final LocalDate dateFrom,
+                             final LocalDate dateTo,
+                             final CIType... salesTypes)
+        throws EFapsException
+    {
+        return schedule(dateFrom, dateTo, false, salesTypes);
+    }
+
+    /**
+     * Register a backfill for the current company.
+     *
+     * @param dateFrom first date of the sales documents (inclusive)
+     * @param dateTo last date of the sales documents (inclusive)
+     * @param force create the UBL even if its fingerprint did not change
+     * @param salesTypes types of the sales documents, all if none are given
+     * @return instance of the backfill
+     * @throws EFapsException on error
+     */
+    public Instance schedule(final LocalDate dateFrom,
+                             final LocalDate dateTo,
+                             final boolean force,
+                             final CIType... salesTypes)
+        throws EFapsException
+    {
+        final var docTypes = new ArrayList<String>();
+        for (final var salesType : salesTypes) {
+            docTypes.add(salesType.getType().getName());
+        }
+        return schedule(dateFrom, dateTo, force, docTypes);
+    }
+
+    /**
+     * Register a backfill for the current company.
+     *
+     * @param dateFrom first date of the sales documents (inclusive)
+     * @param dateTo last date of the sales documents (inclusive)
+     * @param force create the UBL even if its fingerprint did not change
+     * @param docTypes names of the types of the sales documents, all if empty
+     * @return instance of the backfill
+     * @throws EFapsException on error
+     */
+    protected Instance schedule(final LocalDate dateFrom,
+                                final LocalDate dateTo,
+                                final boolean force,
+                                final List<String> docTypes)
+        throws EFapsException
+    {
+        final var ret = EQL.builder().insert(CIEBilling.Backfill)
+                        .set(CIEBilling.Backfill.DateFrom, dateFrom)
+                        .set(CIEBilling.Backfill.DateTo, dateTo)
+                        .set(CIEBilling.Backfill.DocTypes, String.join(",", docTypes))
+                        .set(CIEBilling.Backfill.Status, Status.OPEN.name())
+                        .set(CIEBilling.Backfill.Processed, 0)
+                        .set(CIEBilling.Backfill.Force, force)
+                        .stmt()
+                        .execute();
+        LOG.info("Scheduled backfill {} from {} to {} for {}, forced: {}", ret, dateFrom, dateTo, docTypes, force);
+        return ret;
+    }
+
+    /**
+     * Register a backfill for the company selected by the user with the
+     * dates, the types of the sales documents and the force flag of the
+     * form.
+     *
+     * @param parameter Parameter as passed by the eFaps API
+     * @return new Return
+     * @throws EFapsException on error
+     */
+    public Return schedule(final Parameter parameter)
+        throws EFapsException
+    {
+        final var dateFrom = toLocalDate(DateTimeUtil.toDate(parameter.getParameterValue("dateFrom")));
+        final var dateTo = toLocalDate(DateTimeUtil.toDate(parameter.getParameterValue("dateTo")));
+        final var docTypes = new ArrayList<String>();
+        for (final var typeName : StringUtils.split(StringUtils.defaultString(
+                        parameter.getParameterValue("docTypes")), ", ")) {
+            final var type = Type.get(typeName);
+            if (type == null || !type.isKindOf(CISales.DocumentAbstract.getType())) {
+                throw new EFapsException(Backfill.class, "schedule.UnknownType", typeName);
+            }
+            docTypes.add(type.getName());
+        }
+        schedule(dateFrom, dateTo, BooleanUtils.toBoolean(parameter.getParameterValue("force")), docTypes);
+        return new Return();
+    }
+
+    /**
+     * Resume the failed backfills selected by the user. They are continued
+     * by the next run of the BackfillJob from their last position.
+     *
+     * @param parameter Parameter as passed by the eFaps API
+     * @return new Return
+     * @throws EFapsException on error
+     */
+    public Return resume(final Parameter parameter)
+        throws EFapsException
+    {
+        final var oids = (String[]) parameter.get(ParameterValues.OTHERS);
+        if (oids != null) {
+            for (final var oid : oids) {
+                final var instance = Instance.get(oid);
+                if (InstanceUtils.isType(instance, CIEBilling.Backfill)) {
+                    final var eval = EQL.builder().print(instance)
+                                    .attribute(CIEBilling.Backfill.Status)
+                                    .evaluate();
+                    if (eval.next() && Status.FAILED.name().equals(eval.get(CIEBilling.Backfill.Status))) {
+                        EQL.builder().update(instance)
+                                        .set(CIEBilling.Backfill.Status, Status.RUNNING.name())
+                                        .set(CIEBilling.Backfill.Error, "")
+                                        .stmt()
+                                        .execute();
+                        LOG.info("Resumed backfill {}", instance);
+                    }
+                }
+            }
+        }
+        return new Return();
+    }
+
+    /**
+     * Execute the open backfills of the current company.
+     *
+     * @throws EFapsException on error
+     */
+    public void run()
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.Backfill)
+                        .where()
+                        .attribute(CIEBilling.Backfill.Status).in(Status.OPEN.name(), Status.RUNNING.name())
+                        .select()
+                        .attribute(CIEBilling.Backfill.DateFrom, CIEBilling.Backfill.DateTo,
+                                        CIEBilling.Backfill.DocTypes, CIEBilling.Backfill.LastID,
+                                        CIEBilling.Backfill.UpperID, CIEBilling.Backfill.Processed,
+                                        CIEBilling.Backfill.Force)
+                        .orderBy(CIEBilling.Backfill.ID)
+                        .evaluate();
+        final var states = new ArrayList<State>();
+        while (eval.next()) {
+            final String docTypes = eval.get(CIEBilling.Backfill.DocTypes);
+            final Long lastId = eval.get(CIEBilling.Backfill.LastID);
+            final Integer processed = eval.get(CIEBilling.Backfill.Processed);
+            final var state = new State(eval.inst(), eval.get(CIEBilling.Backfill.DateFrom),
+                            eval.get(CIEBilling.Backfill.DateTo), StringUtils.isBlank(docTypes)
+                                            ? new HashSet<>()
+                                            : Arrays.stream(docTypes.split(",")).collect(Collectors.toSet()));
+            state.lastId = lastId == null ? 0 : lastId;
+            state.upperId = eval.get(CIEBilling.Backfill.UpperID);
+            state.processed = processed == null ? 0 : processed;
+            state.force = Boolean.TRUE.equals(eval.get(CIEBilling.Backfill.Force));
+            states.add(state);
+        }
+        for (final var state : states) {
+            execute(state);
+        }
+    }
+
+    protected void execute(final State state)
+        throws EFapsException
+    {
+        final var properties = ElectronicBilling.BACKFILL.get();
+        final var chunkSize = Math.max(1, NumberUtils.toLong(properties.getProperty("ChunkSize"), 500));
+        final var perSecond = NumberUtils.toInt(properties.getProperty("DocumentsPerSecond"), 10);
+        try {
+            if (state.upperId == null) {
+                start(state);
+            }
+            final var start = System.nanoTime();
+            final var startId = state.lastId;
+            long done = 0;
+            while (state.lastId < state.upperId) {
+                CompanyJobRunner.checkpoint();
+                final var to = Math.min(state.lastId + chunkSize, state.upperId);
+                final var eDocInstances = load(state, state.lastId, to);
+                if (!eDocInstances.isEmpty()) {
+                    // commits per batch, the position is stored afterwards
+                    final var created = new HashMap<Instance, String>();
+                    final var failures = new HashMap<Instance, Exception>();
+                    new UBLService().createUBLs(eDocInstances, state.force, created, failures);
+                    for (final var entry : failures.entrySet()) {
+                        LOG.error("Backfill {}: UBL for {} could not be created", state.instance, entry.getKey(),
+                                        entry.getValue());
+                    }
+                    if (created.size() < eDocInstances.size()) {
+                        LOG.warn("Backfill {}: {} of {} UBL could not be created", state.instance,
+                                        eDocInstances.size() - created.size(), eDocInstances.size());
+                    }
+                }
+                state.lastId = to;
+                state.processed = state.processed + eDocInstances.size();
+                EQL.builder().update(state.instance)
+                                .set(CIEBilling.Backfill.LastID, state.lastId)
+                                .set(CIEBilling.Backfill.Processed, state.processed)
+                                .stmt()
+                                .execute();
+                CompanyJobRunner.checkpoint();
+                Context.save();
+                done = done + eDocInstances.size();
+                logProgress(state, start, startId, done);
+                throttle(start, done, perSecond);
+            }
+            if (state.lastId >= state.upperId) {
+                EQL.builder().update(state.instance)
+                                .set(CIEBilling.Backfill.Status, Status.DONE.name())
+                                .set(CIEBilling.Backfill.Total, state.processed)
+                                .stmt()
+                                .execute();
+                CompanyJobRunner.checkpoint();
+                Context.save();
+                LOG.info("Backfill {} finished with {} documents", state.instance, state.processed);
+            }
+        } catch (final EFapsException e) {
+            LOG.error("Backfill {} failed", state.instance, e);
+            // the transaction may be aborted by the error
+            CompanyJobRunner.rollback();
+            EQL.builder().update(state.instance)
+                            .set(CIEBilling.Backfill.Status, Status.FAILED.name())
+                            .set(CIEBilling.Backfill.Error, StringUtils.left(e.getMessage(), 255))
+                            .stmt()
+                            .execute();
+            CompanyJobRunner.checkpoint();
+            Context.save();
+        }
+    }
+
+    /**
+     * Fix the range of the ids to walk, so that documents created after the
+     * start are not part of the backfill. Only the lowest and the highest id
+     * of the electronic documents of the company are read, the documents
+     * are counted while they are walked and the Total is set at the end.
+     *
+     * @param state backfill
+     * @throws EFapsException on error
+     */
+    protected void start(final State state)
+        throws EFapsException
+    {
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        try (var stmt = SQLUtil.prepare(SQL_IDRANGE, companyId); var rs = stmt.executeQuery()) {
+            if (rs.next() && rs.getObject(2) != null) {
+                state.lastId = Math.max(state.lastId, rs.getLong(1) - 1);
+                state.upperId = rs.getLong(2);
+            } else {
+                state.upperId = 0L;
+            }
+        } catch (final SQLException e) {
+            throw new EFapsException(Backfill.class, "start", e);
+        }
+        EQL.builder().update(state.instance)
+                        .set(CIEBilling.Backfill.Status, Status.RUNNING.name())
+                        .set(CIEBilling.Backfill.UpperID, state.upperId)
+                        .set(CIEBilling.Backfill.LastID, state.lastId)
+                        .stmt()
+                        .execute();
+        CompanyJobRunner.checkpoint();
+        Context.save();
+        LOG.info("Backfill {} started for the ids {} to {}", state.instance, state.lastId + 1, state.upperId);
+    }
+
+    /**
+     * Load the electronic documents of the backfill with an id in the given
+     * range.
+     *
+     * @param state backfill
+     * @param fromId lower limit of the id (exclusive)
+     * @param toId upper limit of the id (inclusive)
+     * @return list of electronic documents
+     * @throws EFapsException on error
+     */
+    protected List<Instance> load(final State state,
+                                  final long fromId,
+                                  final long toId)
+        throws EFapsException
+    {
+        final var ret = new ArrayList<Instance>();
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.DocumentAbstract)
+                        .where()
+                        .attribute(CIEBilling.DocumentAbstract.ID).greater(String.valueOf(fromId))
+                        .and()
+                        .attribute(CIEBilling.DocumentAbstract.ID).less(String.valueOf(toId + 1))
+                        .and()
+                        .attribute(CIEBilling.DocumentAbstract.DocumentLinkAbstract).in(
+                                        EQL.builder().nestedQuery(CISales.DocumentAbstract)
+                                                        .where()
+                                                        .attribute(CISales.DocumentAbstract.Date)
+                                                        .greater(state.dateFrom.minusDays(1).toString())
+                                                        .and()
+                                                        .attribute(CISales.DocumentAbstract.Date)
+                                                        .less(state.dateTo.plusDays(1).toString())
+                                                        .up()
+                                                        .selectable(Selectables.attribute(
+                                                                        CISales.DocumentAbstract.ID)))
+                        .select()
+                        .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract).instance().as("docInstance")
+                        .orderBy(CIEBilling.DocumentAbstract.ID)
+                        .evaluate();
+        final var eDocument = new EBillingDocument();
+        while (eval.next()) {
+            final Instance docInstance = eval.get("docInstance");
+            if ((state.docTypes.isEmpty() || state.docTypes.contains(docInstance.getType().getName()))
+                            && eDocument.isCreateUBL(eval.inst())) {
+                ret.add(eval.inst());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Log the progress. The ETA is estimated from the walked part of the id
+     * range, as the number of documents is only known at the end.
+     *
+     * @param state backfill
+     * @param start start of this run in nanoseconds
+     * @param startId last id at the start of this run
+     * @param done number of documents done in this run
+     */
+    protected void logProgress(final State state,
+                               final long start,
+                               final long startId,
+                               final long done)
+    {
+        final var seconds = (System.nanoTime() - start) / 1_000_000_000d;
+        final var rate = seconds > 0 ? done / seconds : 0;
+        final var idRate = seconds > 0 ? (state.lastId - startId) / seconds : 0;
+        final var remaining = Math.max(0, state.upperId - state.lastId);
+        final var eta = idRate > 0 ? Duration.ofSeconds((long) (remaining / idRate)) : null;
+        LOG.info("Backfill {}: {} documents, id {} of {}, {} documents/s, ETA {}", state.instance,
+                        state.processed, state.lastId, state.upperId, String.format("%.1f", rate), eta);
+    }
+
+    /**
+     * Wait until the average throughput since the start is below the
+     * configured documents per second.
+     *
+     * @param start start in nanoseconds
+     * @param done number of documents done since the start
+     * @param perSecond documents per second, 0 for no limit
+     */
+    protected void throttle(final long start,
+                            final long done,
+                            final int perSecond)
+    {
+        if (perSecond > 0) {
+            final var wait = TimeUnit.SECONDS.toNanos(done) / perSecond - (System.nanoTime() - start);
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static LocalDate toLocalDate(final DateTime date)
+    {
+        return date == null ? null : LocalDate.of(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth());
+    }
+
+    /**
+     * State of one backfill.
+     */
+    protected static class State
+    {
+
+        private final Instance instance;
+        private final LocalDate dateFrom;
+        private final LocalDate dateTo;
+        private final Set<String> docTypes;
+        private long lastId;
+        private Long upperId;
+        private int processed;
+        private boolean force;
+
+        protected State(final Instance instance,
+                        final LocalDate dateFrom,
+                        final LocalDate dateTo,
+                        final Set<String> docTypes)
+        {
+            this.instance = instance;
+            this.dateFrom = dateFrom;
+            this.dateTo = dateTo;
+            this.docTypes = docTypes;
+        }
+    }
+}
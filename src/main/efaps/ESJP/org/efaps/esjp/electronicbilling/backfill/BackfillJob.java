@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.backfill;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.util.EFapsException;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the open EBilling_Backfill for all companies.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("ba8bd08e-4ce9-4975-aea9-91da313609b6")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+@DisallowConcurrentExecution
+public class BackfillJob
+    implements Job
+{
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BackfillJob.class);
+
+    @Override
+    public void execute(final JobExecutionContext _context)
+        throws JobExecutionException
+    {
+        try {
+            new CompanyJobRunner(BackfillJob.class.getSimpleName()).run(() -> new Backfill().run());
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.entities;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+
+/**
+ * Identity values of a contact as required for the QRCode.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("04e60623-6a19-4865-a1da-d76b0905b348")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class ContactIdentity
+{
+
+    private final String taxNumber;
+    private final String identityCard;
+    private final String doiType;
+    private final boolean foreign;
+
+    private ContactIdentity(final Builder builder)
+    {
+        taxNumber = builder.taxNumber;
+        identityCard = builder.identityCard;
+        doiType = builder.doiType;
+        foreign = builder.foreign;
+    }
+
+    public String getTaxNumber()
+    {
+        return taxNumber;
+    }
+
+    public String getIdentityCard()
+    {
+        return identityCard;
+    }
+
+    /**
+     * @return the MappingKey of the DOI type of the person
+     */
+    public String getDoiType()
+    {
+        return doiType;
+    }
+
+    public boolean isForeign()
+    {
+        return foreign;
+    }
+
+    /**
+     * Creates builder to build {@link ContactIdentity}.
+     *
+     * @return created builder
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Builder to build {@link ContactIdentity}.
+     */
+    public static final class Builder
+    {
+
+        private String taxNumber;
+        private String identityCard;
+        private String doiType;
+        private boolean foreign;
+
+        private Builder()
+        {
+        }
+
+        public Builder withTaxNumber(final String taxNumber)
+        {
+            this.taxNumber = taxNumber;
+            return this;
+        }
+
+        public Builder withIdentityCard(final String identityCard)
+        {
+            this.identityCard = identityCard;
+            return this;
+        }
+
+        public Builder withDoiType(final String doiType)
+        {
+            this.doiType = doiType;
+            return this;
+        }
+
+        public Builder withForeign(final boolean foreign)
+        {
+            this.foreign = foreign;
+            return this;
+        }
+
+        public ContactIdentity build()
+        {
+            return new ContactIdentity(this);
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.entities;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Instance;
+import org.efaps.esjp.sales.tax.xml.TaxEntry;
+import org.efaps.esjp.sales.tax.xml.Taxes;
+import org.efaps.esjp.sales.util.Sales.TaxRetention;
+
+/**
+ * Immutable snapshot of all values of a sales document that are needed to
+ * fill an UBL document. It is loaded by the UBLService in a few queries and
+ * the different <code>fill</code> methods work only on it. As the snapshot
+ * contains everything the UBL is build from, its {@link #getFingerprint()}
+ * identifies the content of the UBL.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("dc118136-21aa-47df-844f-6ba3b7abb523")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class DocumentSnapshot
+{
+
+    private final Instance instance;
+    private final String name;
+    private final LocalDate date;
+    private final LocalDate dueDate;
+    private final Long rateCurrencyId;
+    private final BigDecimal rateCrossTotal;
+    private final BigDecimal rateNetTotal;
+    private final BigDecimal crossTotal;
+    private final Taxes taxes;
+    private final Instance contactInstance;
+    private final String contactName;
+    private final String taxNumber;
+    private final String identityCard;
+    private final String doiType;
+    private final TaxRetention retention;
+    private final String paymentConditionName;
+    private final boolean freeOfCharge;
+    private final Instance referenceInstance;
+    private final String referenceName;
+    private final LocalDate referenceDate;
+    private final String creditReason;
+    private final List<Position> positions;
+
+    private DocumentSnapshot(final Builder builder)
+    {
+        instance = builder.instance;
+        name = builder.name;
+        date = builder.date;
+        dueDate = builder.dueDate;
+        rateCurrencyId = builder.rateCurrencyId;
+        rateCrossTotal = builder.rateCrossTotal;
+        rateNetTotal = builder.rateNetTotal;
+        crossTotal = builder.crossTotal;
+        taxes = builder.taxes;
+        contactInstance = builder.contactInstance;
+        contactName = builder.contactName;
+        taxNumber = builder.taxNumber;
+        identityCard = builder.identityCard;
+        doiType = builder.doiType;
+        retention = builder.retention;
+        paymentConditionName = builder.paymentConditionName;
+        freeOfCharge = builder.freeOfCharge;
+        referenceInstance = builder.referenceInstance;
+        referenceName = builder.referenceName;
+        referenceDate = builder.referenceDate;
+        creditReason = builder.creditReason;
+        positions = Collections.unmodifiableList(new ArrayList<>(builder.positions));
+    }
+
+    public Instance getInstance()
+    {
+        return instance;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public LocalDate getDate()
+    {
+        return date;
+    }
+
+    public LocalDate getDueDate()
+    {
+        return dueDate;
+    }
+
+    public Long getRateCurrencyId()
+    {
+        return rateCurrencyId;
+    }
+
+    public BigDecimal getRateCrossTotal()
+    {
+        return rateCrossTotal;
+    }
+
+    public BigDecimal getRateNetTotal()
+    {
+        return rateNetTotal;
+    }
+
+    public BigDecimal getCrossTotal()
+    {
+        return crossTotal;
+    }
+
+    public Taxes getTaxes()
+    {
+        return taxes;
+    }
+
+    public Instance getContactInstance()
+    {
+        return contactInstance;
+    }
+
+    public String getContactName()
+    {
+        return contactName;
+    }
+
+    public String getTaxNumber()
+    {
+        return taxNumber;
+    }
+
+    public String getIdentityCard()
+    {
+        return identityCard;
+    }
+
+    public String getDoiType()
+    {
+        return doiType;
+    }
+
+    public TaxRetention getRetention()
+    {
+        return retention;
+    }
+
+    public String getPaymentConditionName()
+    {
+        return paymentConditionName;
+    }
+
+    public boolean isFreeOfCharge()
+    {
+        return freeOfCharge;
+    }
+
+    public Instance getReferenceInstance()
+    {
+        return referenceInstance;
+    }
+
+    public String getReferenceName()
+    {
+        return referenceName;
+    }
+
+    public LocalDate getReferenceDate()
+    {
+        return referenceDate;
+    }
+
+    public String getCreditReason()
+    {
+        return creditReason;
+    }
+
+    public List<Position> getPositions()
+    {
+        return positions;
+    }
+
+    /**
+     * SHA-256 over the normalized values of the snapshot. Numbers are
+     * compared without trailing zeros, the taxes are sorted by tax and the
+     * positions by their number, so that the same content always results in
+     * the same fingerprint.
+     *
+     * @return the fingerprint as hex string
+     */
+    public String getFingerprint()
+    {
+        final var bldr = new StringBuilder();
+        append(bldr, instance, name, date, dueDate, rateCurrencyId, rateCrossTotal, rateNetTotal, crossTotal);
+        append(bldr, taxes);
+        append(bldr, contactInstance, contactName, taxNumber, identityCard, doiType, retention,
+                        paymentConditionName, freeOfCharge, referenceInstance, referenceName, referenceDate,
+                        creditReason);
+        final var sorted = new ArrayList<>(positions);
+        sorted.sort(Comparator.comparing(Position::getPositionNumber,
+                        Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (final var position : sorted) {
+            append(bldr, position.positionNumber, position.quantity, position.productName, position.productDesc,
+                            position.uoMId, position.rateDiscountNetUnitPrice, position.rateCrossUnitPrice,
+                            position.rateNetPrice, position.rateCrossPrice);
+            append(bldr, position.rateTaxes);
+        }
+        return DigestUtils.sha256Hex(bldr.toString());
+    }
+
+    private static void append(final StringBuilder bldr,
+                               final Taxes taxes)
+    {
+        if (taxes != null && taxes.getEntries() != null) {
+            final var entries = new ArrayList<TaxEntry>(taxes.getEntries());
+            entries.sort(Comparator.comparing(entry -> String.valueOf(entry.getUUID())));
+            for (final var entry : entries) {
+                append(bldr, entry.getUUID(), entry.getBase(), entry.getAmount());
+            }
+        }
+        bldr.append('\u001e');
+    }
+
+    private static void append(final StringBuilder bldr,
+                               final Object... values)
+    {
+        for (final var value : values) {
+            if (value instanceof BigDecimal) {
+                bldr.append(((BigDecimal) value).stripTrailingZeros().toPlainString());
+            } else if (value instanceof Instance) {
+                bldr.append(((Instance) value).getOid());
+            } else if (value instanceof String) {
+                bldr.append(((String) value).trim());
+            } else {
+                bldr.append(Objects.toString(value, ""));
+            }
+            bldr.append('\u001f');
+        }
+    }
+
+    /**
+     * Creates builder to build {@link DocumentSnapshot}.
+     *
+     * @return created builder
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Builder to build {@link DocumentSnapshot}.
+     */
+    public static final class Builder
+    {
+
+        private Instance instance;
+        private String name;
+        private LocalDate date;
+        private LocalDate dueDate;
+        private Long rateCurrencyId;
+        private BigDecimal rateCrossTotal;
+        private BigDecimal rateNetTotal;
+        private BigDecimal crossTotal;
+        private Taxes taxes;
+        private Instance contactInstance;
+        private String contactName;
+        private String taxNumber;
+        private String identityCard;
+        private String doiType;
+        private TaxRetention retention;
+        private String paymentConditionName;
+        private boolean freeOfCharge;
+        private Instance referenceInstance;
+        private String referenceName;
+        private LocalDate referenceDate;
+        private String creditReason;
+        private final List<Position> positions = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        public Builder withInstance(final Instance instance)
+        {
+            this.instance = instance;
+            return this;
+        }
+
+        public Builder withName(final String name)
+        {
+            this.name = name;
+            return this;
+        }
+
+        public Builder withDate(final LocalDate date)
+        {
+            this.date = date;
+            return this;
+        }
+
+        public Builder withDueDate(final LocalDate dueDate)
+        {
+            this.dueDate = dueDate;
+            return this;
+        }
+
+        public Builder withRateCurrencyId(final Long rateCurrencyId)
+        {
+            this.rateCurrencyId = rateCurrencyId;
+            return this;
+        }
+
+        public Builder withRateCrossTotal(final BigDecimal rateCrossTotal)
+        {
+            this.rateCrossTotal = rateCrossTotal;
+            return this;
+        }
+
+        public Builder withRateNetTotal(final BigDecimal rateNetTotal)
+        {
+            this.rateNetTotal = rateNetTotal;
+            return this;
+        }
+
+        public Builder withCrossTotal(final BigDecimal crossTotal)
+        {
+            this.crossTotal = crossTotal;
+            return this;
+        }
+
+        public Builder withTaxes(final Taxes taxes)
+        {
+            this.taxes = taxes;
+            return this;
+        }
+
+        public Builder withContactInstance(final Instance contactInstance)
+        {
+            this.contactInstance = contactInstance;
+            return this;
+        }
+
+        public Builder withContactName(final String contactName)
+        {
+            this.contactName = contactName;
+            return this;
+        }
+
+        public Builder withTaxNumber(final String taxNumber)
+        {
+            this.taxNumber = taxNumber;
+            return this;
+        }
+
+        public Builder withIdentityCard(final String identityCard)
+        {
+            this.identityCard = identityCard;
+            return this;
+        }
+
+        public Builder withDoiType(final String doiType)
+        {
+            this.doiType = doiType;
+            return this;
+        }
+
+        public Builder withRetention(final TaxRetention retention)
+        {
+            this.retention = retention;
+            return this;
+        }
+
+        public Builder withPaymentConditionName(final String paymentConditionName)
+        {
+            this.paymentConditionName = paymentConditionName;
+            return this;
+        }
+
+        public Builder withFreeOfCharge(final boolean freeOfCharge)
+        {
+            this.freeOfCharge = freeOfCharge;
+            return this;
+        }
+
+        public Builder withReference(final Instance referenceInstance,
+                                     final String referenceName,
+                                     final LocalDate referenceDate)
+        {
+            this.referenceInstance = referenceInstance;
+            this.referenceName = referenceName;
+            this.referenceDate = referenceDate;
+            return this;
+        }
+
+        public Builder withCreditReason(final String creditReason)
+        {
+            this.creditReason = creditReason;
+            return this;
+        }
+
+        public Builder addPosition(final Position position)
+        {
+            positions.add(position);
+            return this;
+        }
+
+        public DocumentSnapshot build()
+        {
+            return new DocumentSnapshot(this);
+        }
+    }
+
+    /**
+     * Values of one position of the sales document.
+     */
+    public static final class Position
+    {
+
+        private final Integer positionNumber;
+        private final BigDecimal quantity;
+        private final String productName;
+        private final String productDesc;
+        private final Long uoMId;
+        private final BigDecimal rateDiscountNetUnitPrice;
+        private final BigDecimal rateCrossUnitPrice;
+        private final BigDecimal rateNetPrice;
+        private final BigDecimal rateCrossPrice;
+        private final Taxes rateTaxes;
+
+        private Position(final PositionBuilder builder)
+        {
+            positionNumber = builder.positionNumber;
+            quantity = builder.quantity;
+            productName = builder.productName;
+            productDesc = builder.productDesc;
+            uoMId = builder.uoMId;
+            rateDiscountNetUnitPrice = builder.rateDiscountNetUnitPrice;
+            rateCrossUnitPrice = builder.rateCrossUnitPrice;
+            rateNetPrice = builder.rateNetPrice;
+            rateCrossPrice = builder.rateCrossPrice;
+            rateTaxes = builder.rateTaxes;
+        }
+
+        public Integer getPositionNumber()
+        {
+            return positionNumber;
+        }
+
+        public BigDecimal getQuantity()
+        {
+            return quantity;
+        }
+
+        public String getProductName()
+        {
+            return productName;
+        }
+
+        public String getProductDesc()
+        {
+            return productDesc;
+        }
+
+        public Long getUoMId()
+        {
+            return uoMId;
+        }
+
+        public BigDecimal getRateDiscountNetUnitPrice()
+        {
+            return rateDiscountNetUnitPrice;
+        }
+
+        public BigDecimal getRateCrossUnitPrice()
+        {
+            return rateCrossUnitPrice;
+        }
+
+        public BigDecimal getRateNetPrice()
+        {
+            return rateNetPrice;
+        }
+
+        public BigDecimal getRateCrossPrice()
+        {
+            return rateCrossPrice;
+        }
+
+        public Taxes getRateTaxes()
+        {
+            return rateTaxes;
+        }
+
+        /**
+         * Creates builder to build {@link Position}.
+         *
+         * @return created builder
+         */
+        public static PositionBuilder builder()
+        {
+            return new PositionBuilder();
+        }
+    }
+
+    /**
+     * Builder to build {@link Position}.
+     */
+    public static final class PositionBuilder
+    {
+
+        private Integer positionNumber;
+        private BigDecimal quantity;
+        private String productName;
+        private String productDesc;
+        private Long uoMId;
+        private BigDecimal rateDiscountNetUnitPrice;
+        private BigDecimal rateCrossUnitPrice;
+        private BigDecimal rateNetPrice;
+        private BigDecimal rateCrossPrice;
+        private Taxes rateTaxes;
+
+        private PositionBuilder()
+        {
+        }
+
+        public PositionBuilder withPositionNumber(final Integer positionNumber)
+        {
+            this.positionNumber = positionNumber;
+            return this;
+        }
+
+        public PositionBuilder withQuantity(final BigDecimal quantity)
+        {
+            this.quantity = quantity;
+            return this;
+        }
+
+        public PositionBuilder withProductName(final String productName)
+        {
+            this.productName = productName;
+            return this;
+        }
+
+        public PositionBuilder withProductDesc(final String productDesc)
+        {
+            this.productDesc = productDesc;
+            return this;
+        }
+
+        public PositionBuilder withUoMId(final Long uoMId)
+        {
+            this.uoMId = uoMId;
+            return this;
+        }
+
+        public PositionBuilder withRateDiscountNetUnitPrice(final BigDecimal rateDiscountNetUnitPrice)
+        {
+            this.rateDiscountNetUnitPrice = rateDiscountNetUnitPrice;
+            return this;
+        }
+
+        public PositionBuilder withRateCrossUnitPrice(final BigDecimal rateCrossUnitPrice)
+        {
+            this.rateCrossUnitPrice = rateCrossUnitPrice;
+            return this;
+        }
+
+        public PositionBuilder withRateNetPrice(final BigDecimal rateNetPrice)
+        {
+            this.rateNetPrice = rateNetPrice;
+            return this;
+        }
+
+        public PositionBuilder withRateCrossPrice(final BigDecimal rateCrossPrice)
+        {
+            this.rateCrossPrice = rateCrossPrice;
+            return this;
+        }
+
+        public PositionBuilder withRateTaxes(final Taxes rateTaxes)
+        {
+            this.rateTaxes = rateTaxes;
+            return this;
+        }
+
+        public Position build()
+        {
+            return new Position(this);
+        }
+    }
+}
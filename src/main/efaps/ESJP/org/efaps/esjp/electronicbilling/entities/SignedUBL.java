@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.entities;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+
+/**
+ * Signed UBL document held in memory, ready to be checked in.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("bbeeb182-86c5-469e-a472-00df5ecf27db")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class SignedUBL
+{
+
+    private final String fileName;
+    private final String hash;
+    private final String fingerprint;
+    private final byte[] content;
+
+    private SignedUBL(final Builder builder)
+    {
+        fileName = builder.fileName;
+        hash = builder.hash;
+        fingerprint = builder.fingerprint;
+        content = builder.content;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public String getHash()
+    {
+        return hash;
+    }
+
+    /**
+     * @return fingerprint of the content the UBL was build from, may be
+     *         <code>null</code>
+     */
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return a copy of the content, use {@link #getInputStream()} to read
+     *         it without copying
+     */
+    public byte[] getContent()
+    {
+        return content.clone();
+    }
+
+    public int getLength()
+    {
+        return content.length;
+    }
+
+    public InputStream getInputStream()
+    {
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Creates builder to build {@link SignedUBL}.
+     *
+     * @return created builder
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Builder to build {@link SignedUBL}.
+     */
+    public static final class Builder
+    {
+
+        private String fileName;
+        private String hash;
+        private String fingerprint;
+        private byte[] content;
+
+        private Builder()
+        {
+        }
+
+        public Builder withFileName(final String fileName)
+        {
+            this.fileName = fileName;
+            return this;
+        }
+
+        public Builder withHash(final String hash)
+        {
+            this.hash = hash;
+            return this;
+        }
+
+        public Builder withFingerprint(final String fingerprint)
+        {
+            this.fingerprint = fingerprint;
+            return this;
+        }
+
+        public Builder withContent(final byte[] content)
+        {
+            this.content = content;
+            return this;
+        }
+
+        public SignedUBL build()
+        {
+            return new SignedUBL(this);
+        }
+    }
+}
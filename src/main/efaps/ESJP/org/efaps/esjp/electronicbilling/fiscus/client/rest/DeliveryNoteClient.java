@@ -135,9 +135,16 @@ public class DeliveryNoteClient
     protected File zip(final String ubl,
                        final String fileName)
         throws EFapsException
+    {
+        return zip(ubl, fileName, new FileUtil().getFile(fileName + ".zip"));
+    }
+
+    protected File zip(final String ubl,
+                       final String fileName,
+                       final File file)
+        throws EFapsException
     {
         final var ublStream = new ByteArrayInputStream(ubl.getBytes());
-        final var file = new FileUtil().getFile(fileName + ".zip");
         try {
             final var fos = new FileOutputStream(file);
             final var zipOut = new ZipOutputStream(fos);
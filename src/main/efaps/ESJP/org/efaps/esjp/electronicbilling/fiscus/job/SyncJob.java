@@ -17,9 +17,8 @@ package org.efaps.esjp.electronicbilling.fiscus.job;
 
 import org.efaps.admin.program.esjp.EFapsApplication;
 import org.efaps.admin.program.esjp.EFapsUUID;
-import org.efaps.admin.user.Company;
-import org.efaps.db.Context;
 import org.efaps.esjp.common.parameter.ParameterUtil;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
 import org.efaps.util.EFapsException;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
@@ -43,15 +42,8 @@ public class SyncJob
         throws JobExecutionException
     {
         try {
-            for (final Long companyId : Context.getThreadContext().getPerson().getCompanies()) {
-                final Company company = Company.get(companyId);
-                Context.getThreadContext().setCompany(company);
-                final var parameter = ParameterUtil.instance();
-                final var synchronizer = new Synchronizer();
-                synchronizer.syncPending(parameter);
-            }
-            // remove the company to be sure
-            Context.getThreadContext().setCompany(null);
+            new CompanyJobRunner(SyncJob.class.getSimpleName())
+                            .run(() -> new Synchronizer().syncPending(ParameterUtil.instance()));
         } catch (final EFapsException e) {
             LOG.error("Catched", e);
         }
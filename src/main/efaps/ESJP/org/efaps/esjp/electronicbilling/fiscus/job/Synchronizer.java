@@ -17,14 +17,19 @@ package org.efaps.esjp.electronicbilling.fiscus.job;
 
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.efaps.admin.datamodel.Status;
 import org.efaps.admin.event.Parameter;
 import org.efaps.admin.program.esjp.EFapsApplication;
 import org.efaps.admin.program.esjp.EFapsUUID;
 import org.efaps.ci.CIStatus;
 import org.efaps.db.Checkout;
+import org.efaps.db.Context;
 import org.efaps.db.Instance;
 import org.efaps.eql.EQL;
 import org.efaps.esjp.ci.CIEBilling;
@@ -33,6 +38,11 @@ import org.efaps.esjp.db.InstanceUtils;
 import org.efaps.esjp.electronicbilling.fiscus.client.dto.DeliveryNoteResponseDto;
 import org.efaps.esjp.electronicbilling.fiscus.client.dto.StatusResponseDto;
 import org.efaps.esjp.electronicbilling.fiscus.client.rest.DeliveryNoteClient;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.esjp.electronicbilling.util.DocumentClaim;
+import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.util.PayloadTrace;
+import org.efaps.esjp.electronicbilling.util.PayloadTrace.Kind;
 import org.efaps.util.EFapsException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,10 +63,33 @@ public class Synchronizer
         throws EFapsException
     {
         LOG.info("Syncing pending EDocuments");
+        final var handled = new HashSet<Long>();
+        var claim = claim(CIEBilling.DeliveryNoteStatus.Pending);
+        while (!claim.isEmpty() && syncPending(claim, handled) > 0) {
+            claim = claim(CIEBilling.DeliveryNoteStatus.Pending);
+        }
+    }
+
+    /**
+     * Send the claimed pending documents. Documents already handled by this
+     * run are skipped: they are claimed again if the run takes longer than
+     * the claim duration.
+     *
+     * @param claim claim of the documents
+     * @param handled ids of the documents handled by this run
+     * @return number of documents handled for the first time
+     * @throws EFapsException on error
+     */
+    protected int syncPending(final DocumentClaim claim,
+                              final Set<Long> handled)
+        throws EFapsException
+    {
+        int ret = 0;
         final var eval = EQL.builder().print()
                         .query(CIEBilling.DeliveryNote)
                         .where().attribute(CIEBilling.DeliveryNote.StatusAbstract)
                         .in(Status.find(CIEBilling.DeliveryNoteStatus.Pending).getId())
+                        .and().attribute(CIEBilling.DeliveryNote.ClaimedBy).eq(claim.getToken())
                         .select()
                         .linkto(CIEBilling.DocumentAbstract.DocumentLinkAbstract)
                         .attribute(CISales.DocumentAbstract.Name).as("DocName")
@@ -64,6 +97,10 @@ public class Synchronizer
 
         while (eval.next()) {
             final String docName = eval.get("DocName");
+            if (!handled.add(eval.inst().getId())) {
+                continue;
+            }
+            ret++;
             if (docName != null) {
                 final Instance eDocInst = eval.inst();
                 String documentType = null;
@@ -91,33 +128,71 @@ public class Synchronizer
                             final ByteArrayOutputStream os = new ByteArrayOutputStream();
                             checkout.execute(os);
                             final String xml = new String(os.toByteArray(), StandardCharsets.UTF_8);
-                            LOG.info("xml: \n {}", xml);
-                            final var dto =  restClient.sendUbl(documentType, docName, xml);
-                            LOG.info("dto: {}", dto);
-                            if (dto instanceof DeliveryNoteResponseDto) {
-                                final var ticketNumber = ((DeliveryNoteResponseDto) dto).getNumTicket();
-                                setStatus(eDocInst, "Issued", ticketNumber, null);
+                            try {
+                                PayloadTrace.trace(Kind.REQUEST, eDocInst, () -> xml);
+                                final var dto =  restClient.sendUbl(documentType, docName, xml);
+                                LOG.debug("dto: {}", dto);
+                                if (dto instanceof DeliveryNoteResponseDto) {
+                                    final var ticketNumber = ((DeliveryNoteResponseDto) dto).getNumTicket();
+                                    setStatus(eDocInst, "Issued", ticketNumber, null);
+                                }
+                                logResponse(eDocInst, dto);
+                                // the document was send, so its new status must not be lost
+                                CompanyJobRunner.checkpoint();
+                                Context.save();
+                                PayloadTrace.flush();
+                            } finally {
+                                // traces must not be left on the (pooled) thread on error
+                                PayloadTrace.discard();
                             }
-                            logResponse(eDocInst, dto);
                         }
                 }
             }
         }
+        return ret;
     }
 
     public void syncIssued(final Parameter _parameter)
         throws EFapsException
     {
         LOG.info("Syncing issued EDocuments");
+        final var handled = new HashSet<Long>();
+        var claim = claim(CIEBilling.DeliveryNoteStatus.Issued);
+        while (!claim.isEmpty() && syncIssued(claim, handled) > 0) {
+            claim = claim(CIEBilling.DeliveryNoteStatus.Issued);
+        }
+    }
+
+    /**
+     * Request the status of the claimed issued documents. Documents already
+     * handled by this run are skipped, as they stay issued until SUNAT
+     * confirms them and are claimed again if the run takes longer than the
+     * claim duration.
+     *
+     * @param claim claim of the documents
+     * @param handled ids of the documents handled by this run
+     * @return number of documents handled for the first time
+     * @throws EFapsException on error
+     */
+    protected int syncIssued(final DocumentClaim claim,
+                             final Set<Long> handled)
+        throws EFapsException
+    {
+        int ret = 0;
         final var eval = EQL.builder().print()
                         .query(CIEBilling.DeliveryNote)
                         .where().attribute(CIEBilling.DeliveryNote.StatusAbstract)
                         .in(Status.find(CIEBilling.DeliveryNoteStatus.Issued).getId())
+                        .and().attribute(CIEBilling.DeliveryNote.ClaimedBy).eq(claim.getToken())
                         .select()
                         .attribute(CIEBilling.DeliveryNote.Identifier)
                         .evaluate();
         while (eval.next()) {
             final Instance eDocInst = eval.inst();
+            if (!handled.add(eDocInst.getId())) {
+                continue;
+            }
+            ret++;
             final String identifier = eval.get(CIEBilling.DeliveryNote.Identifier);
             if (StringUtils.isNotEmpty(identifier)) {
                 DeliveryNoteClient restClient = null;
@@ -126,16 +201,42 @@ public class Synchronizer
                 }
                 if (restClient != null) {
                     final var dto =  restClient.getStatus(identifier);
-                    LOG.info("dto: {}", dto);
+                    LOG.debug("dto: {}", dto);
                     if (dto instanceof StatusResponseDto) {
                         if (((StatusResponseDto) dto).getCode().equals(0)) {
                             setStatus(eDocInst, "Successful", null, ((StatusResponseDto) dto).getConfirmation());
                         }
                     }
                     logResponse(eDocInst, dto);
+                    CompanyJobRunner.checkpoint();
+                    Context.save();
                 }
             }
         }
+        return ret;
+    }
+
+    /**
+     * Claim the next batch of delivery notes in the given status and commit
+     * the claim. Documents that stay in the status keep their claim until it
+     * expires. A run that takes longer than the claim duration gets them
+     * again and ends as soon as a claim contains only documents it already
+     * handled.
+     *
+     * @param status status of the delivery notes
+     * @return the claim
+     * @throws EFapsException on error
+     */
+    protected DocumentClaim claim(final CIStatus status)
+        throws EFapsException
+    {
+        final var properties = ElectronicBilling.FISCUS_SYNC.get();
+        final var ret = DocumentClaim.claim(CIEBilling.DeliveryNote, status,
+                        NumberUtils.toInt(properties.getProperty("BatchSize"), 50),
+                        Duration.ofSeconds(NumberUtils.toLong(properties.getProperty("ClaimDuration"), 300)));
+        CompanyJobRunner.checkpoint();
+        Context.save();
+        return ret;
     }
 
     protected void logResponse(final Instance eDocIns,
@@ -149,7 +250,7 @@ public class Synchronizer
         } catch (final JsonProcessingException e) {
             LOG.error("Catched", e);
         }
-        LOG.info("log: {}", json);
+        LOG.debug("log: {}", json);
         EQL.builder().insert(CIEBilling.LogResponse)
                         .set(CIEBilling.LogResponse.DocumentLinkAbstract, eDocIns)
                         .set(CIEBilling.LogResponse.Content, json)
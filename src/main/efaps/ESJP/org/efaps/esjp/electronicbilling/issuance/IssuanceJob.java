@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.issuance;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.esjp.common.parameter.ParameterUtil;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.util.EFapsException;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the queued EBilling_IssuanceTask for all companies.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("63581a79-ef2e-4a11-944c-a45035c4bc13")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+@DisallowConcurrentExecution
+public class IssuanceJob
+    implements Job
+{
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(IssuanceJob.class);
+
+    @Override
+    public void execute(final JobExecutionContext _context)
+        throws JobExecutionException
+    {
+        try {
+            new CompanyJobRunner(IssuanceJob.class.getSimpleName()).run(() -> {
+                if (IssuancePipeline.isActive()) {
+                    new IssuancePipeline().run(ParameterUtil.instance());
+                }
+            });
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.issuance;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.efaps.admin.event.Parameter;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.admin.program.esjp.Listener;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.EBillingDocument;
+import org.efaps.esjp.electronicbilling.UBLService;
+import org.efaps.esjp.electronicbilling.listener.IOnDocument;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outbox for the issuance of electronic documents. Instead of creating the
+ * electronic document, the UBL and the report inside of the status change of
+ * the sales document, a EBilling_IssuanceTask is inserted in the same
+ * transaction. The {@link IssuanceJob} executes the tasks stage by stage:
+ * <ol>
+ * <li>CREATE: create the electronic document, one transaction per task</li>
+ * <li>UBL: create, sign and store the UBL for all tasks of the stage in bulk
+ * (see UBLService#createUBLs), signing runs on ubl.bulk.Threads threads, a
+ * failing document only fails its own task</li>
+ * <li>REPORT: render the report, one transaction per task</li>
+ * </ol>
+ * The number of tasks per stage and run is limited by the configuration. A
+ * failing task is retried with an exponential backoff until the maximum
+ * number of attempts is reached.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("1336c162-8946-48b7-83cb-e39339305126")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public class IssuancePipeline
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(IssuancePipeline.class);
+
+    /**
+     * @return true if the issuance is done by the pipeline
+     * @throws EFapsException on error
+     */
+    public static boolean isActive()
+        throws EFapsException
+    {
+        return ElectronicBilling.ISSUANCE_ACTIVE.get();
+    }
+
+    /**
+     * Queue the issuance for a sales document. Nothing is done if there is
+     * already an open task for the document.
+     *
+     * @param salesDocInst instance of the sales document
+     * @return instance of the task
+     * @throws EFapsException on error
+     */
+    public Instance enqueue(final Instance salesDocInst)
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.IssuanceTask)
+                        .where()
+                        .attribute(CIEBilling.IssuanceTask.DocumentLink).eq(salesDocInst)
+                        .and()
+                        .attribute(CIEBilling.IssuanceTask.Stage).in(IssuanceStage.CREATE.name(),
+                                        IssuanceStage.UBL.name(), IssuanceStage.REPORT.name())
+                        .select()
+                        .attribute(CIEBilling.IssuanceTask.ID)
+                        .evaluate();
+        final Instance ret;
+        if (eval.next()) {
+            ret = eval.inst();
+        } else {
+            ret = EQL.builder().insert(CIEBilling.IssuanceTask)
+                            .set(CIEBilling.IssuanceTask.DocumentLink, salesDocInst)
+                            .set(CIEBilling.IssuanceTask.Stage, IssuanceStage.CREATE.name())
+                            .set(CIEBilling.IssuanceTask.Attempts, 0)
+                            .stmt()
+                            .execute();
+            LOG.debug("Queued issuance of {} as {}", salesDocInst, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Execute the due tasks of the current company.
+     *
+     * @param parameter Parameter as passed by the eFaps API
+     * @throws EFapsException on error
+     */
+    public void run(final Parameter parameter)
+        throws EFapsException
+    {
+        final var properties = ElectronicBilling.ISSUANCE.get();
+        runCreate(parameter, properties, load(properties, IssuanceStage.CREATE));
+        runUBL(properties, load(properties, IssuanceStage.UBL));
+        runReport(parameter, properties, load(properties, IssuanceStage.REPORT));
+    }
+
+    protected void runCreate(final Parameter parameter,
+                             final Properties properties,
+                             final List<Task> tasks)
+        throws EFapsException
+    {
+        for (final var task : tasks) {
+            // outside of the try, a lost lease must end the run
+            CompanyJobRunner.checkpoint();
+            try {
+                var eDocInst = getEDocument(task.salesDocInst);
+                if (InstanceUtils.isValid(eDocInst)) {
+                    LOG.debug("Resolved existing electronic document {} for {}", eDocInst, task.salesDocInst);
+                } else {
+                    eDocInst = new EBillingDocument().createDocument(parameter, task.salesDocInst);
+                    if (InstanceUtils.isValid(eDocInst)) {
+                        for (final IOnDocument listener : Listener.get().<IOnDocument>invoke(IOnDocument.class)) {
+                            listener.afterCreate(parameter, eDocInst);
+                        }
+                    }
+                }
+                if (InstanceUtils.isValid(eDocInst)) {
+                    EQL.builder().update(task.instance)
+                                    .set(CIEBilling.IssuanceTask.EDocumentLink, eDocInst)
+                                    .stmt()
+                                    .execute();
+                    task.eDocInst = eDocInst;
+                }
+                // without electronic document only the report is left
+                advance(task, InstanceUtils.isValid(eDocInst) ? IssuanceStage.UBL : IssuanceStage.REPORT);
+                CompanyJobRunner.checkpoint();
+                Context.save();
+            } catch (final EFapsException e) {
+                rollback();
+                failed(properties, task, e);
+            }
+        }
+    }
+
+    protected void runUBL(final Properties properties,
+                          final List<Task> tasks)
+        throws EFapsException
+    {
+        final var eDoc2Task = new LinkedHashMap<Instance, Task>();
+        for (final var task : tasks) {
+            if (new EBillingDocument().isCreateUBL(task.eDocInst)) {
+                eDoc2Task.put(task.eDocInst, task);
+            } else {
+                advance(task, IssuanceStage.REPORT);
+            }
+        }
+        CompanyJobRunner.checkpoint();
+        Context.save();
+        if (!eDoc2Task.isEmpty()) {
+            // commits per batch and isolates failing documents, so the task
+            // updates are done afterwards and only for the failed documents
+            final var created = new HashMap<Instance, String>();
+            final var failures = new HashMap<Instance, Exception>();
+            EFapsException error = null;
+            try {
+                new UBLService().createUBLs(eDoc2Task.keySet(), false, created, failures);
+            } catch (final EFapsException e) {
+                rollback();
+                error = e;
+            }
+            for (final var entry : eDoc2Task.entrySet()) {
+                if (created.containsKey(entry.getKey())) {
+                    advance(entry.getValue(), IssuanceStage.REPORT);
+                } else {
+                    failed(properties, entry.getValue(), failures.getOrDefault(entry.getKey(), error));
+                }
+            }
+            CompanyJobRunner.checkpoint();
+            Context.save();
+        }
+    }
+
+    protected void runReport(final Parameter parameter,
+                             final Properties properties,
+                             final List<Task> tasks)
+        throws EFapsException
+    {
+        for (final var task : tasks) {
+            // outside of the try, a lost lease must end the run
+            CompanyJobRunner.checkpoint();
+            try {
+                new EBillingDocument().createReport4Document(parameter, task.salesDocInst);
+                advance(task, IssuanceStage.DONE);
+                CompanyJobRunner.checkpoint();
+                Context.save();
+            } catch (final EFapsException e) {
+                rollback();
+                failed(properties, task, e);
+            }
+        }
+    }
+
+    /**
+     * Load the due tasks for a stage in the order they were queued.
+     *
+     * @param properties configuration
+     * @param stage stage
+     * @return list of tasks
+     * @throws EFapsException on error
+     */
+    protected List<Task> load(final Properties properties,
+                              final IssuanceStage stage)
+        throws EFapsException
+    {
+        final var limit = NumberUtils.toInt(properties.getProperty(stage.name() + ".BatchSize"), 50);
+        final var ret = new ArrayList<Task>();
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.IssuanceTask)
+                        .where()
+                        .attribute(CIEBilling.IssuanceTask.Stage).eq(stage.name())
+                        .select()
+                        .attribute(CIEBilling.IssuanceTask.Attempts, CIEBilling.IssuanceTask.NextAttempt)
+                        .linkto(CIEBilling.IssuanceTask.DocumentLink).instance().as("salesDocInst")
+                        .linkto(CIEBilling.IssuanceTask.EDocumentLink).instance().as("eDocInst")
+                        .orderBy(CIEBilling.IssuanceTask.ID)
+                        .evaluate();
+        final var now = OffsetDateTime.now();
+        while (ret.size() < limit && eval.next()) {
+            final OffsetDateTime nextAttempt = eval.get(CIEBilling.IssuanceTask.NextAttempt);
+            if (nextAttempt == null || !nextAttempt.isAfter(now)) {
+                final Integer attempts = eval.get(CIEBilling.IssuanceTask.Attempts);
+                ret.add(new Task(eval.inst(), eval.get("salesDocInst"), eval.get("eDocInst"),
+                                attempts == null ? 0 : attempts));
+            }
+        }
+        LOG.debug("Loaded {} tasks for stage {}", ret.size(), stage);
+        return ret;
+    }
+
+    /**
+     * Move the task to the next stage. A NextAttempt of a former failure
+     * lies in the past and does therefore not delay the next stage.
+     *
+     * @param task task
+     * @param stage next stage
+     * @throws EFapsException on error
+     */
+    protected void advance(final Task task,
+                           final IssuanceStage stage)
+        throws EFapsException
+    {
+        EQL.builder().update(task.instance)
+                        .set(CIEBilling.IssuanceTask.Stage, stage.name())
+                        .set(CIEBilling.IssuanceTask.Attempts, 0)
+                        .stmt()
+                        .execute();
+    }
+
+    /**
+     * Search the electronic document for a sales document. It exists already
+     * if a former attempt got committed, e.g. by a listener.
+     *
+     * @param salesDocInst instance of the sales document
+     * @return instance of the electronic document or <code>null</code>
+     * @throws EFapsException on error
+     */
+    protected Instance getEDocument(final Instance salesDocInst)
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print()
+                        .query(CIEBilling.DocumentAbstract)
+                        .where()
+                        .attribute(CIEBilling.DocumentAbstract.DocumentLinkAbstract).eq(salesDocInst)
+                        .select()
+                        .attribute(CIEBilling.DocumentAbstract.ID)
+                        .evaluate();
+        return eval.next() ? eval.inst() : null;
+    }
+
+    /**
+     * Roll back the work of the failed unit and start a new transaction for
+     * the same user and company, so that nothing of it gets committed
+     * together with the registration of the failed attempt.
+     *
+     * @throws EFapsException on error
+     */
+    protected void rollback()
+        throws EFapsException
+    {
+        CompanyJobRunner.rollback();
+    }
+
+    /**
+     * Register a failed attempt. The task is retried after
+     * <code>Backoff * 2^(attempts - 1)</code> seconds or set to FAILED if the
+     * maximum number of attempts is reached.
+     *
+     * @param properties configuration
+     * @param task task that failed
+     * @param exception cause, may be <code>null</code>
+     */
+    protected void failed(final Properties properties,
+                          final Task task,
+                          final Exception exception)
+    {
+        LOG.error("Issuance of {} failed", task.salesDocInst, exception);
+        try {
+            final var attempts = task.attempts + 1;
+            final var maxAttempts = NumberUtils.toInt(properties.getProperty("MaxAttempts"), 5);
+            final var backoff = NumberUtils.toLong(properties.getProperty("Backoff"), 60);
+            final var error = exception == null ? "UBL could not be created" : exception.getMessage();
+            final var update = EQL.builder().update(task.instance)
+                            .set(CIEBilling.IssuanceTask.Attempts, attempts)
+                            .set(CIEBilling.IssuanceTask.Error, StringUtils.left(error, 255));
+            if (attempts >= maxAttempts) {
+                update.set(CIEBilling.IssuanceTask.Stage, IssuanceStage.FAILED.name());
+            } else {
+                update.set(CIEBilling.IssuanceTask.NextAttempt,
+                                OffsetDateTime.now().plusSeconds(backoff << Math.min(attempts - 1, 16)));
+            }
+            update.stmt().execute();
+            CompanyJobRunner.checkpoint();
+            Context.save();
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+
+    /**
+     * One loaded task.
+     */
+    protected static class Task
+    {
+
+        private final Instance instance;
+        private final Instance salesDocInst;
+        private Instance eDocInst;
+        private final int attempts;
+
+        protected Task(final Instance instance,
+                       final Instance salesDocInst,
+                       final Instance eDocInst,
+                       final int attempts)
+        {
+            this.instance = instance;
+            this.salesDocInst = salesDocInst;
+            this.eDocInst = eDocInst;
+            this.attempts = attempts;
+        }
+    }
+}
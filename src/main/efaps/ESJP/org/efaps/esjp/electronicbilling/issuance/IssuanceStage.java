@@ -0,0 +1,49 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.issuance;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+
+/**
+ * Stages of an EBilling_IssuanceTask. A task runs through
+ * CREATE, UBL and REPORT and ends in DONE or FAILED.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("cc00b6ba-318e-4728-bc3a-71edb15e4852")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public enum IssuanceStage
+{
+    /** Create the electronic document. */
+    CREATE,
+    /** Create, sign and store the UBL. */
+    UBL,
+    /** Render the report of the sales document. */
+    REPORT,
+    /** All stages executed. */
+    DONE,
+    /** Maximum number of attempts reached. */
+    FAILED;
+
+    /**
+     * @return true if the task still has work to do
+     */
+    public boolean isOpen()
+    {
+        return this != DONE && this != FAILED;
+    }
+}
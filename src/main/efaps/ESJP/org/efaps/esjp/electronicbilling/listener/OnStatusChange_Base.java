@@ -23,10 +23,10 @@ import org.efaps.admin.program.esjp.Listener;
 import org.efaps.db.Context;
 import org.efaps.db.Instance;
 import org.efaps.esjp.admin.datamodel.ISetStatusListener;
-import org.efaps.esjp.ci.CISales;
 import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.DocumentRules;
 import org.efaps.esjp.electronicbilling.EBillingDocument;
-import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.issuance.IssuancePipeline;
 import org.efaps.util.EFapsException;
 
 /**
@@ -46,20 +46,7 @@ public abstract class OnStatusChange_Base
                                final Status _status)
         throws EFapsException
     {
-        if (InstanceUtils.isType(_instance, CISales.Invoice) && ElectronicBilling.INVOICE_CREATEONSTATUS.exists()
-                        && ElectronicBilling.INVOICE_CREATEONSTATUS.get().equals(_status.getKey())) {
-            this.createDocument(_parameter, _instance);
-        } else if (InstanceUtils.isType(_instance, CISales.Receipt) && ElectronicBilling.RECEIPT_CREATEONSTATUS.exists()
-                        && ElectronicBilling.RECEIPT_CREATEONSTATUS.get().equals(_status.getKey())) {
-            this.createDocument(_parameter, _instance);
-        } else if (InstanceUtils.isType(_instance, CISales.Reminder) && ElectronicBilling.REMINDER_CREATEONSTATUS
-                        .exists() && ElectronicBilling.REMINDER_CREATEONSTATUS.get().equals(_status.getKey())) {
-            this.createDocument(_parameter, _instance);
-        } else if (InstanceUtils.isType(_instance, CISales.CreditNote) && ElectronicBilling.CREDITNOTE_CREATEONSTATUS
-                        .exists() && ElectronicBilling.CREDITNOTE_CREATEONSTATUS.get().equals(_status.getKey())) {
-            this.createDocument(_parameter, _instance);
-        }  else if (InstanceUtils.isType(_instance, CISales.DeliveryNote) && ElectronicBilling.DELIVERYNOTE_CREATEONSTATUS
-                        .exists() && ElectronicBilling.DELIVERYNOTE_CREATEONSTATUS.get().equals(_status.getKey())) {
+        if (DocumentRules.get().isCreateOnStatus(_instance, _status)) {
             this.createDocument(_parameter, _instance);
         }
     }
@@ -75,15 +62,20 @@ public abstract class OnStatusChange_Base
                                   final Instance salesDocInst)
         throws EFapsException
     {
-        final Instance docInst = new EBillingDocument().createDocument(_parameter, salesDocInst);
-        if (InstanceUtils.isValid(docInst)) {
-            for (final IOnDocument listener : Listener.get().<IOnDocument>invoke(IOnDocument.class)) {
-                listener.afterCreate(_parameter, docInst);
+        if (IssuancePipeline.isActive()) {
+            // committed together with the status change, the IssuanceJob does the rest
+            new IssuancePipeline().enqueue(salesDocInst);
+        } else {
+            final Instance docInst = new EBillingDocument().createDocument(_parameter, salesDocInst);
+            if (InstanceUtils.isValid(docInst)) {
+                for (final IOnDocument listener : Listener.get().<IOnDocument>invoke(IOnDocument.class)) {
+                    listener.afterCreate(_parameter, docInst);
+                }
             }
+            Context.save();
+            new EBillingDocument().createUBL(_parameter, docInst);
+            new EBillingDocument().createReport4Document(_parameter, salesDocInst);
         }
-        Context.save();
-        new EBillingDocument().createUBL(_parameter, docInst);
-        new EBillingDocument().createReport4Document(_parameter, salesDocInst);
     }
 
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.reaper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import org.efaps.admin.datamodel.Type;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.db.Delete;
+import org.efaps.db.Instance;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
+import org.efaps.esjp.electronicbilling.util.SQLUtil;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Files of deleted electronic documents are only detached (DOCID set to
+ * null and marked as DETACHED) by the delete trigger of the document, so
+ * that deleting a document does not have to access the store for each of
+ * its files. The reaper deletes the detached files together with their
+ * content in batches. Only files marked as detached are selected, as files
+ * without document link exist by design (e.g. the EBilling_Keystore), and
+ * of those only UBL and response files are deleted. Any other detached file
+ * is kept and unmarked, so that it is not selected again.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("aff15a46-6073-4fb3-8cb0-8f768942e15f")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public class FileReaper
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileReaper.class);
+
+    private static final String SQL_DETACH = "UPDATE T_EBILLFILE SET DOCID = NULL, DETACHED = TRUE"
+                    + " WHERE DOCID = ?";
+
+    private static final String SQL_KEEP = "UPDATE T_EBILLFILE SET DETACHED = FALSE WHERE ID = ?";
+
+    private static final String SQL_DETACHED = "SELECT ID, TYPEID FROM T_EBILLFILE"
+                    + " WHERE COMPANYID = ? AND DETACHED = TRUE AND DOCID IS NULL ORDER BY ID LIMIT ?";
+
+    /**
+     * Detach the files of an electronic document.
+     *
+     * @param eDocInst instance of the electronic document
+     * @return number of detached files
+     * @throws EFapsException on error
+     */
+    public static int detach(final Instance eDocInst)
+        throws EFapsException
+    {
+        return SQLUtil.executeUpdate(SQL_DETACH, eDocInst.getId());
+    }
+
+    /**
+     * Delete the detached files of the current company. Each batch is
+     * committed.
+     *
+     * @throws EFapsException on error
+     */
+    public void run()
+        throws EFapsException
+    {
+        final var batchSize = Math.max(1, ElectronicBilling.FILEREAPER_BATCHSIZE.get());
+        int total = 0;
+        var batch = getDetached(batchSize);
+        while (!batch.isEmpty()) {
+            for (final var fileInst : batch) {
+                CompanyJobRunner.checkpoint();
+                if (isReapable(fileInst)) {
+                    new Delete(fileInst).execute();
+                    total++;
+                } else {
+                    LOG.warn("Detached file {} is not an UBL or response file and is kept", fileInst);
+                    SQLUtil.executeUpdate(SQL_KEEP, fileInst.getId());
+                }
+            }
+            CompanyJobRunner.checkpoint();
+            Context.save();
+            batch = batch.size() < batchSize ? new ArrayList<>() : getDetached(batchSize);
+        }
+        LOG.info("Deleted {} detached files", total);
+    }
+
+    /**
+     * @param fileInst instance of a detached file
+     * @return true if the file belongs to an electronic document and may be
+     *         deleted
+     */
+    protected boolean isReapable(final Instance fileInst)
+    {
+        return InstanceUtils.isKindOf(fileInst, CIEBilling.UBLFileAbstract)
+                        || InstanceUtils.isKindOf(fileInst, CIEBilling.ResponseFileAbstract);
+    }
+
+    protected ArrayList<Instance> getDetached(final int limit)
+        throws EFapsException
+    {
+        final var ret = new ArrayList<Instance>();
+        try (var stmt = SQLUtil.prepare(SQL_DETACHED, Context.getThreadContext().getCompany().getId(), limit);
+                        var rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                ret.add(Instance.get(Type.get(rs.getLong(2)), rs.getLong(1)));
+            }
+        } catch (final SQLException e) {
+            throw new EFapsException(FileReaper.class, "getDetached", e);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.reaper;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
+import org.efaps.util.EFapsException;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the detached files for all companies.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("5d96f729-ebc9-4446-b322-62006ea3254a")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+@DisallowConcurrentExecution
+public class FileReaperJob
+    implements Job
+{
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(FileReaperJob.class);
+
+    @Override
+    public void execute(final JobExecutionContext _context)
+        throws JobExecutionException
+    {
+        try {
+            new CompanyJobRunner(FileReaperJob.class.getSimpleName()).run(() -> new FileReaper().run());
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+}
@@ -17,8 +17,7 @@ package org.efaps.esjp.electronicbilling.recordmanagement;
 
 import org.efaps.admin.program.esjp.EFapsApplication;
 import org.efaps.admin.program.esjp.EFapsUUID;
-import org.efaps.admin.user.Company;
-import org.efaps.db.Context;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
 import org.efaps.util.EFapsException;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
@@ -39,14 +38,7 @@ public class PublischJob
         throws JobExecutionException
     {
         try {
-
-            for (final Long companyId : Context.getThreadContext().getPerson().getCompanies()) {
-                final Company company = Company.get(companyId);
-                Context.getThreadContext().setCompany(company);
-                new Publish().scan4Documents();
-            }
-            // remove the company to be sure
-            Context.getThreadContext().setCompany(null);
+            new CompanyJobRunner(PublischJob.class.getSimpleName()).run(() -> new Publish().scan4Documents());
         } catch (final EFapsException e) {
             LOG.error("Catched error", e);
         }
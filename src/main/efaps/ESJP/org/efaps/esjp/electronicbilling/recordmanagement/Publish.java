@@ -41,7 +41,9 @@ import org.efaps.esjp.ci.CISales;
 import org.efaps.esjp.common.file.FileUtil;
 import org.efaps.esjp.db.InstanceUtils;
 import org.efaps.esjp.electronicbilling.FiscusMapper;
+import org.efaps.esjp.electronicbilling.UBLHashCache;
 import org.efaps.esjp.electronicbilling.fiscus.client.rest.AbstractRestClient;
+import org.efaps.esjp.electronicbilling.util.CompanyJobRunner;
 import org.efaps.esjp.electronicbilling.util.ElectronicBilling;
 import org.efaps.esjp.erp.rest.client.OAuth2Client;
 import org.efaps.esjp.erp.util.ERP;
@@ -117,6 +119,7 @@ public class Publish
                         .evaluate();
 
         while (eval.next()) {
+            CompanyJobRunner.checkpoint();
             final var edocInst = eval.inst();
             publishDocument(edocInst);
         }
@@ -154,6 +157,7 @@ public class Publish
                                 ublInst);
                 if (id != null) {
                     EQL.builder().update(ublInst).set(CIEBilling.UBLFileAbstract.UBLHash, id).execute();
+                    UBLHashCache.invalidate(edocInst);
                 }
             }
         }
@@ -0,0 +1,546 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.admin.user.Company;
+import org.efaps.db.Context;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a scheduled job for all companies of the person executing the job.
+ * Each company runs on a thread of a bounded pool ("Threads" of
+ * jobs.Configuration) in its own Context, which is committed if the
+ * company finished without error and rolled back otherwise, so that a
+ * failing or slow company does not affect the others. A company that
+ * exceeds its time budget ("TimeBudget" in seconds, per job
+ * "&lt;JobName&gt;.TimeBudget") is interrupted, its work since the last
+ * commit is rolled back and the run does not wait for it any longer. The
+ * result of each company is logged as summary of the run.<br/>
+ * As an interrupt does not stop running JDBC or REST calls, the tasks call
+ * {@link #checkpoint()} in their loops and before each intermediate commit.
+ * It fails if the company was interrupted, exceeded its time budget or lost
+ * its lease, so that the work done since the last commit is rolled back.
+ * The same check is done before the final commit of the company.<br/>
+ * On a cluster only the companies owned by this node are executed, and
+ * only if the {@link JobLease} for the job and company could be claimed.
+ * The lease is renewed while the company is executed. The heartbeat of the
+ * node is written by a daemon thread every third of the lease duration,
+ * independent of a running job, so that a node is not considered dead
+ * between two runs of its jobs.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("dc940d24-c89c-4632-bff6-eb6f4587d814")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public class CompanyJobRunner
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompanyJobRunner.class);
+
+    /** Writes the heartbeat of this node, shared by all jobs. */
+    private static ScheduledExecutorService heartbeat;
+
+    /** Period of the heartbeat in milliseconds. */
+    private static long heartbeatPeriod;
+
+    /** Check of the company executed by the current thread. */
+    private static final ThreadLocal<Call<Void>> FENCE = new ThreadLocal<>();
+
+    /**
+     * Work executed for one company. The Context of the company is set.
+     */
+    @FunctionalInterface
+    public interface CompanyTask
+    {
+
+        /**
+         * @throws EFapsException on error
+         */
+        void execute()
+            throws EFapsException;
+    }
+
+    /**
+     * Outcome of the run of one company.
+     */
+    public enum Outcome
+    {
+        /** Finished and committed. */
+        SUCCESS,
+        /** Failed and rolled back. */
+        FAILED,
+        /** Interrupted as the time budget was exceeded. */
+        TIMEOUT,
+        /** Not executed as the company is owned or leased by another node. */
+        SKIPPED,
+        /** Interrupted as the lease was lost to another node. */
+        LOST;
+    }
+
+    @FunctionalInterface
+    private interface Call<T>
+    {
+
+        T call()
+            throws EFapsException;
+    }
+
+    private final String jobName;
+
+    private final Map<Long, JobLease> leases = new ConcurrentHashMap<>();
+
+    private final Set<Long> lost = ConcurrentHashMap.newKeySet();
+
+    private final Set<Long> timedOut = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param jobName name of the job, used for the configuration, the lease
+     *            and the summary
+     */
+    public CompanyJobRunner(final String jobName)
+    {
+        this.jobName = jobName;
+    }
+
+    /**
+     * Execute the task for all companies of the current person.
+     *
+     * @param task task to be executed
+     * @return the summary of the run
+     * @throws EFapsException on error
+     */
+    public Summary run(final CompanyTask task)
+        throws EFapsException
+    {
+        final var person = Context.getThreadContext().getPerson();
+        final var userName = person.getName();
+        final var properties = ElectronicBilling.JOBS.get();
+        final var threads = Math.max(1, NumberUtils.toInt(properties.getProperty("Threads"), 4));
+        final var budget = TimeUnit.SECONDS.toNanos(NumberUtils.toLong(properties.getProperty(jobName
+                        + ".TimeBudget"), NumberUtils.toLong(properties.getProperty("TimeBudget"), 900)));
+        final var leaseDuration = BooleanUtils.toBoolean(properties.getProperty("Lease.Active", "true"))
+                        ? Duration.ofSeconds(NumberUtils.toLong(properties.getProperty("Lease.Duration"), 120))
+                        : null;
+
+        final var summary = new Summary(jobName);
+        final var companyIds = new ArrayList<Long>();
+        if (leaseDuration == null) {
+            companyIds.addAll(person.getCompanies());
+        } else {
+            JobLease.heartbeat();
+            startHeartbeat(userName, Math.max(1, leaseDuration.toMillis() / 3));
+            final var nodes = JobLease.getLiveNodes(Duration.ofSeconds(NumberUtils.toLong(
+                            properties.getProperty("Lease.NodeTimeout"), leaseDuration.toSeconds() * 3)));
+            Context.save();
+            for (final var companyId : person.getCompanies()) {
+                if (JobLease.isOwner(nodes, companyId)) {
+                    companyIds.add(companyId);
+                } else {
+                    summary.add(new Summary.Entry(companyId, Outcome.SKIPPED, Duration.ZERO, "owned by other node"));
+                }
+            }
+        }
+        if (!companyIds.isEmpty()) {
+            final var started = new ConcurrentHashMap<Long, Long>();
+            final var futures = new LinkedHashMap<Long, Future<Summary.Entry>>();
+            final var executor = Executors.newFixedThreadPool(Math.min(threads, companyIds.size()));
+            ScheduledExecutorService renewal = null;
+            try {
+                for (final var companyId : companyIds) {
+                    futures.put(companyId, executor.submit(() -> {
+                        started.put(companyId, System.nanoTime());
+                        return runCompany(userName, companyId, task, leaseDuration);
+                    }));
+                }
+                executor.shutdown();
+                if (leaseDuration != null) {
+                    final var period = Math.max(1, leaseDuration.toMillis() / 3);
+                    renewal = Executors.newSingleThreadScheduledExecutor();
+                    renewal.scheduleWithFixedDelay(() -> renewLeases(userName, futures), period, period,
+                                    TimeUnit.MILLISECONDS);
+                }
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    final var now = System.nanoTime();
+                    for (final var entry : futures.entrySet()) {
+                        final var start = started.get(entry.getKey());
+                        if (!entry.getValue().isDone() && start != null && now - start > budget) {
+                            LOG.warn("{}: company {} exceeded its time budget", jobName, entry.getKey());
+                            timedOut.add(entry.getKey());
+                            entry.getValue().cancel(true);
+                        }
+                    }
+                    // a cancelled company may still hang in a JDBC or REST call, its
+                    // work is rolled back by its next checkpoint, so it is not awaited
+                    if (futures.values().stream().allMatch(Future::isDone)) {
+                        break;
+                    }
+                }
+                for (final var entry : futures.entrySet()) {
+                    if (lost.contains(entry.getKey())) {
+                        summary.add(new Summary.Entry(entry.getKey(), Outcome.LOST,
+                                        Duration.ofNanos(System.nanoTime() - started.get(entry.getKey())), null));
+                    } else if (timedOut.contains(entry.getKey())) {
+                        summary.add(new Summary.Entry(entry.getKey(), Outcome.TIMEOUT,
+                                        Duration.ofNanos(budget), null));
+                    } else {
+                        summary.add(entry.getValue().get());
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new EFapsException(CompanyJobRunner.class, "run", e);
+            } catch (final ExecutionException e) {
+                throw new EFapsException(CompanyJobRunner.class, "run", e);
+            } finally {
+                if (renewal != null) {
+                    renewal.shutdownNow();
+                }
+            }
+        }
+        LOG.info("{}", summary);
+        return summary;
+    }
+
+    protected Summary.Entry runCompany(final String userName,
+                                       final Long companyId,
+                                       final CompanyTask task,
+                                       final Duration leaseDuration)
+    {
+        final var start = System.nanoTime();
+        Outcome outcome = Outcome.FAILED;
+        String error = null;
+        JobLease lease = null;
+        try {
+            if (leaseDuration != null) {
+                lease = claim(userName, companyId, leaseDuration);
+            }
+            if (leaseDuration != null && lease == null) {
+                outcome = Outcome.SKIPPED;
+                error = "leased by other node";
+            } else {
+                if (lease != null) {
+                    leases.put(companyId, lease);
+                }
+                final var fence = getFence(companyId, lease);
+                inContext(userName, companyId, () -> {
+                    FENCE.set(fence);
+                    try {
+                        task.execute();
+                        // nothing may be committed after an interrupt
+                        checkpoint();
+                    } finally {
+                        FENCE.remove();
+                    }
+                    return null;
+                });
+                outcome = Outcome.SUCCESS;
+            }
+        } catch (final EFapsException | RuntimeException e) {
+            LOG.error("{}: company {} failed", jobName, companyId, e);
+            error = e.getMessage();
+        } finally {
+            // the interrupt must not abort the release of the lease
+            Thread.interrupted();
+            if (lease != null) {
+                leases.remove(companyId);
+                release(userName, lease);
+            }
+        }
+        return new Summary.Entry(companyId, outcome, Duration.ofNanos(System.nanoTime() - start), error);
+    }
+
+    /**
+     * Claim the lease in its own Context. If two nodes insert the first lease
+     * for the job and company at the same time, the insert of one of them
+     * fails on the unique key and its transaction is aborted. The claim is
+     * then repeated in a new Context, where the lease exists and is held by
+     * the other node.
+     */
+    private JobLease claim(final String userName,
+                           final Long companyId,
+                           final Duration leaseDuration)
+        throws EFapsException
+    {
+        try {
+            return inContext(userName, companyId, () -> JobLease.claim(jobName, companyId, leaseDuration));
+        } catch (final EFapsException e) {
+            LOG.debug("{}: claim for company {} failed, retrying", jobName, companyId, e);
+            return inContext(userName, companyId, () -> JobLease.claim(jobName, companyId, leaseDuration));
+        }
+    }
+
+    /**
+     * The check done by {@link #checkpoint()} for a company. A lease is
+     * renewed in the transaction of the company, so that the work is only
+     * committed if the lease is still held by this node.
+     */
+    private Call<Void> getFence(final Long companyId,
+                                final JobLease lease)
+    {
+        return () -> {
+            if (timedOut.contains(companyId)) {
+                throw new EFapsException(CompanyJobRunner.class, "checkpoint.TimeBudget", jobName, companyId);
+            }
+            if (lost.contains(companyId) || lease != null && !lease.renew()) {
+                lost.add(companyId);
+                throw new EFapsException(CompanyJobRunner.class, "checkpoint.LeaseLost", jobName, companyId);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new EFapsException(CompanyJobRunner.class, "checkpoint.Interrupted", jobName, companyId);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * To be called by a task in its loops and before each commit. Outside of
+     * a CompanyJobRunner nothing is checked.
+     *
+     * @throws EFapsException if the company was interrupted, exceeded its
+     *             time budget or lost its lease
+     */
+    public static void checkpoint()
+        throws EFapsException
+    {
+        final var fence = FENCE.get();
+        if (fence != null) {
+            fence.call();
+        }
+    }
+
+    /**
+     * Roll back the current transaction and begin a new one for the same
+     * user and company, e.g. to continue with the next unit of work after
+     * a failed statement aborted the transaction.
+     *
+     * @throws EFapsException on error
+     */
+    public static void rollback()
+        throws EFapsException
+    {
+        final var context = Context.getThreadContext();
+        final var userName = context.getPerson().getName();
+        final var company = context.getCompany();
+        Context.rollback();
+        Context.begin(userName, Context.Inheritance.Local);
+        if (company != null) {
+            Context.getThreadContext().setCompany(company);
+        }
+    }
+
+    protected void renewLeases(final String userName,
+                               final Map<Long, Future<Summary.Entry>> futures)
+    {
+        try {
+            for (final var lease : leases.values()) {
+                if (!inContext(userName, lease.getCompanyId(), lease::renew)) {
+                    LOG.warn("{}: lease for company {} lost", jobName, lease.getCompanyId());
+                    lost.add(lease.getCompanyId());
+                    futures.get(lease.getCompanyId()).cancel(true);
+                }
+            }
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+
+    private void release(final String userName,
+                         final JobLease lease)
+    {
+        try {
+            inContext(userName, lease.getCompanyId(), () -> {
+                lease.release();
+                return null;
+            });
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+
+    /**
+     * Start the heartbeat of this node if it is not running yet or if its
+     * period changed.
+     *
+     * @param userName name of the user the heartbeat is written with
+     * @param period period in milliseconds
+     */
+    private static synchronized void startHeartbeat(final String userName,
+                                                    final long period)
+    {
+        if (heartbeat == null || heartbeatPeriod != period) {
+            if (heartbeat != null) {
+                heartbeat.shutdownNow();
+            }
+            heartbeatPeriod = period;
+            heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final var thread = new Thread(runnable, "EBilling-Heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeat.scheduleWithFixedDelay(() -> {
+                try {
+                    inContext(userName, null, () -> {
+                        JobLease.heartbeat();
+                        return null;
+                    });
+                } catch (final EFapsException | RuntimeException e) {
+                    LOG.error("Catched", e);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Execute the call in a new Context that is committed on success and
+     * rolled back otherwise.
+     */
+    private static <T> T inContext(final String userName,
+                            final Long companyId,
+                            final Call<T> call)
+        throws EFapsException
+    {
+        try {
+            Context.begin(userName, Context.Inheritance.Local);
+            if (companyId != null) {
+                Context.getThreadContext().setCompany(Company.get(companyId));
+            }
+            final var ret = call.call();
+            Context.commit();
+            return ret;
+        } finally {
+            // nothing traced for this company may be written for another one
+            PayloadTrace.discard();
+            if (Context.isThreadActive()) {
+                Context.rollback();
+            }
+        }
+    }
+
+    /**
+     * Summary of a run.
+     */
+    public static final class Summary
+    {
+
+        private final String jobName;
+        private final List<Entry> entries = new ArrayList<>();
+
+        private Summary(final String jobName)
+        {
+            this.jobName = jobName;
+        }
+
+        private void add(final Entry entry)
+        {
+            entries.add(entry);
+        }
+
+        public List<Entry> getEntries()
+        {
+            return Collections.unmodifiableList(entries);
+        }
+
+        /**
+         * @return number of companies per outcome
+         */
+        public Map<Outcome, Long> getCounts()
+        {
+            final var ret = new LinkedHashMap<Outcome, Long>();
+            for (final var outcome : Outcome.values()) {
+                ret.put(outcome, entries.stream().filter(entry -> entry.outcome == outcome).count());
+            }
+            return ret;
+        }
+
+        @Override
+        public String toString()
+        {
+            final var bldr = new StringBuilder().append(jobName).append(": ").append(getCounts());
+            for (final var entry : entries) {
+                bldr.append("\n  company ").append(entry.companyId).append(": ").append(entry.outcome)
+                                .append(" in ").append(entry.duration.toMillis()).append("ms");
+                if (entry.error != null) {
+                    bldr.append(" - ").append(entry.error);
+                }
+            }
+            return bldr.toString();
+        }
+
+        /**
+         * Result of one company.
+         */
+        public static final class Entry
+        {
+
+            private final Long companyId;
+            private final Outcome outcome;
+            private final Duration duration;
+            private final String error;
+
+            private Entry(final Long companyId,
+                          final Outcome outcome,
+                          final Duration duration,
+                          final String error)
+            {
+                this.companyId = companyId;
+                this.outcome = outcome;
+                this.duration = duration;
+                this.error = error;
+            }
+
+            public Long getCompanyId()
+            {
+                return companyId;
+            }
+
+            public Outcome getOutcome()
+            {
+                return outcome;
+            }
+
+            public Duration getDuration()
+            {
+                return duration;
+            }
+
+            public String getError()
+            {
+                return error;
+            }
+        }
+    }
+}
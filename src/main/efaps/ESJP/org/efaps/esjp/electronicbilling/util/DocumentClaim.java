@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import org.efaps.admin.datamodel.Status;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.ci.CIStatus;
+import org.efaps.ci.CIType;
+import org.efaps.db.Context;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Claim of a batch of electronic documents in a given status. The claim is
+ * an atomic update of ClaimedBy and ClaimedUntil, that only takes documents
+ * not claimed or with an expired claim. Concurrent workers (threads or
+ * nodes) therefore get disjoint batches, and documents of a worker that
+ * died are reclaimed after the expiry. The claim must be committed before
+ * the documents are processed, so that it is visible to the other workers.
+ * The candidates are selected with <code>FOR UPDATE SKIP LOCKED</code>, so
+ * that a worker running concurrently with another one skips the rows the
+ * other one is claiming and gets the next batch instead of an empty claim.
+ * The statement is written for PostgreSQL (SKIP LOCKED needs 9.5 or later,
+ * LIMIT in the subquery is not portable either); other databases need an
+ * own variant.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("56153db4-df10-4922-8700-c2378325af9b")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class DocumentClaim
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentClaim.class);
+
+    private static final String SQL_CLAIM = "UPDATE T_EBILLDOC SET CLAIMEDBY = ?, CLAIMEDUNTIL = ?"
+                    + " WHERE ID IN (SELECT ID FROM T_EBILLDOC WHERE COMPANYID = ? AND TYPEID = ? AND STATUS = ?"
+                    + " AND (CLAIMEDUNTIL IS NULL OR CLAIMEDUNTIL < ?) ORDER BY ID LIMIT ? FOR UPDATE SKIP LOCKED)"
+                    // checked again, as it is evaluated after a concurrent claim released its row lock
+                    + " AND STATUS = ? AND (CLAIMEDUNTIL IS NULL OR CLAIMEDUNTIL < ?)";
+
+    private final String token;
+
+    private final int count;
+
+    private DocumentClaim(final String token,
+                          final int count)
+    {
+        this.token = token;
+        this.count = count;
+    }
+
+    /**
+     * Value of ClaimedBy of the claimed documents.
+     *
+     * @return the token
+     */
+    public String getToken()
+    {
+        return token;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Claim a batch of documents of the current company.
+     *
+     * @param type type of the electronic documents
+     * @param status status of the documents
+     * @param limit maximum number of documents
+     * @param duration duration of the claim
+     * @return the claim
+     * @throws EFapsException on error
+     */
+    public static DocumentClaim claim(final CIType type,
+                                      final CIStatus status,
+                                      final int limit,
+                                      final Duration duration)
+        throws EFapsException
+    {
+        final var token = JobLease.getNode() + "/" + UUID.randomUUID();
+        final var now = Instant.now();
+        final var statusId = Status.find(status).getId();
+        final var count = SQLUtil.executeUpdate(SQL_CLAIM, token, now.plus(duration),
+                        Context.getThreadContext().getCompany().getId(), type.getType().getId(), statusId, now,
+                        limit, statusId, now);
+        LOG.debug("Claimed {} of {} in {}", count, type.getType().getName(), token);
+        return new DocumentClaim(token, count);
+    }
+}
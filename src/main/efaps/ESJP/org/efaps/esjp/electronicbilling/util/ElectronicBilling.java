@@ -113,6 +113,24 @@ public final class ElectronicBilling
                     .addDefaultValue("StatusGroup08", CISales.ReminderStatus.getType().getName())
                     .addDefaultValue("Status08", CISales.ReminderStatus.Paid.key);
 
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final IntegerSysConfAttribute DOCSCAN_CHUNKSIZE = new IntegerSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "DocumentScanner.ChunkSize")
+                    .defaultValue(100)
+                    .description("Number of sales documents the document scanner processes and commits together");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final IntegerSysConfAttribute DOCSCAN_RECONCILIATION = new IntegerSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "DocumentScanner.ReconciliationInterval")
+                    .defaultValue(24)
+                    .description("Hours between two full scans of the document scanner. In between only sales "
+                                    + "documents newer than the last scanned one are looked at. 0 for a full "
+                                    + "scan on every execution.");
+
     /** See description. */
     @EFapsSysConfAttribute
     public static final BooleanSysConfAttribute ACTIVATEMAIL = new BooleanSysConfAttribute()
@@ -208,6 +226,19 @@ public final class ElectronicBilling
                     .defaultValue("MISSING CONFIG")
                     .description("Fiscus SSO CLientId");
 
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final PropertiesSysConfAttribute FISCUS_SYNC = new PropertiesSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "Fiscus.sync.Configuration")
+                    .description("Configuration of the synchronization with Fiscus. Documents are claimed in "
+                                    + "batches, so that several workers can synchronize in parallel.\n"
+                                    + "BatchSize=50 (documents claimed at once)\n"
+                                    + "ClaimDuration=300 (seconds until an unfinished claim can be reclaimed, "
+                                    + "also the minimal interval between two status requests for a document)")
+                    .addDefaultValue("BatchSize", "50")
+                    .addDefaultValue("ClaimDuration", "300");
+
     /** See description. */
     @EFapsSysConfAttribute
     public static final StringSysConfAttribute INVOICE_CREATEONSTATUS = new StringSysConfAttribute()
@@ -505,6 +536,121 @@ public final class ElectronicBilling
                     .defaultValue(StandardCharsets.UTF_8.name())
                     .description("ResponseFileType");
 
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final PropertiesSysConfAttribute PAYLOADTRACE = new PropertiesSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "PayloadTrace")
+                    .description("Tracing of the UBL and webservice payloads.\n"
+                                    + "active=true\n"
+                                    + "sampleRate=0.1 (default rate for all kinds, 0 - 1)\n"
+                                    + "ubl.sampleRate=0\n"
+                                    + "signed.sampleRate=1\n"
+                                    + "request.sampleRate=1\n"
+                                    + "response.sampleRate=1\n"
+                                    + "maxSize=8192 (characters)\n"
+                                    + "persist=true (store in EBilling_LogRequest/EBilling_LogResponse)\n"
+                                    + "queueSize=1000 (flushes waiting to be stored, further ones are dropped)")
+                    .addDefaultValue("active", "false")
+                    .addDefaultValue("sampleRate", "0")
+                    .addDefaultValue("maxSize", "8192")
+                    .addDefaultValue("persist", "true")
+                    .addDefaultValue("queueSize", "1000");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final IntegerSysConfAttribute UBL_BULK_BATCHSIZE = new IntegerSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "ubl.bulk.BatchSize")
+                    .defaultValue(100)
+                    .description("Number of documents loaded in one query and stored in one transaction "
+                                    + "on bulk creation of UBL");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final IntegerSysConfAttribute UBL_BULK_THREADS = new IntegerSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "ubl.bulk.Threads")
+                    .defaultValue(0)
+                    .description("Number of threads used to marshal and sign UBL on bulk creation. "
+                                    + "0 means one per available processor");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final BooleanSysConfAttribute ISSUANCE_ACTIVE = new BooleanSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "issuance.Activate")
+                    .defaultValue(false)
+                    .description("If active the electronic document, UBL and report are not created on the "
+                                    + "status change but queued as EBilling_IssuanceTask and executed by the "
+                                    + "IssuanceJob.");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final PropertiesSysConfAttribute ISSUANCE = new PropertiesSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "issuance.Configuration")
+                    .description("Configuration of the issuance pipeline.\n"
+                                    + "CREATE.BatchSize=50 (max. tasks per stage and run)\n"
+                                    + "UBL.BatchSize=200\n"
+                                    + "REPORT.BatchSize=20\n"
+                                    + "MaxAttempts=5\n"
+                                    + "Backoff=60 (seconds, doubled for each failed attempt)")
+                    .addDefaultValue("CREATE.BatchSize", "50")
+                    .addDefaultValue("UBL.BatchSize", "200")
+                    .addDefaultValue("REPORT.BatchSize", "20")
+                    .addDefaultValue("MaxAttempts", "5")
+                    .addDefaultValue("Backoff", "60");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final PropertiesSysConfAttribute BACKFILL = new PropertiesSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "backfill.Configuration")
+                    .description("Configuration of the backfill of UBL documents.\n"
+                                    + "ChunkSize=500 (range of electronic document ids per checkpoint)\n"
+                                    + "DocumentsPerSecond=10 (0 for no limit)")
+                    .addDefaultValue("ChunkSize", "500")
+                    .addDefaultValue("DocumentsPerSecond", "10");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final PropertiesSysConfAttribute JOBS = new PropertiesSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "jobs.Configuration")
+                    .description("Configuration of the scheduled jobs, executed per company in parallel.\n"
+                                    + "Threads=4 (companies executed at the same time)\n"
+                                    + "TimeBudget=900 (seconds a company may take)\n"
+                                    + "JOBNAME.TimeBudget=900 (time budget for a job, e.g. SyncJob.TimeBudget)\n"
+                                    + "Lease.Active=true (lease per job and company to run on a cluster)\n"
+                                    + "Lease.Duration=120 (seconds, renewed every third of it)\n"
+                                    + "Lease.NodeTimeout=360 (seconds without heartbeat until a node is "
+                                    + "considered dead, defaults to three times Lease.Duration, the heartbeat "
+                                    + "is written every third of Lease.Duration)")
+                    .addDefaultValue("Threads", "4")
+                    .addDefaultValue("TimeBudget", "900")
+                    .addDefaultValue("Lease.Active", "true")
+                    .addDefaultValue("Lease.Duration", "120");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final IntegerSysConfAttribute FILEREAPER_BATCHSIZE = new IntegerSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "FileReaper.BatchSize")
+                    .defaultValue(200)
+                    .description("Number of files of deleted documents removed by the FileReaperJob "
+                                    + "in one transaction.");
+
+    /** See description. */
+    @EFapsSysConfAttribute
+    public static final StringSysConfAttribute REPORT_REVISION = new StringSysConfAttribute()
+                    .sysConfUUID(ElectronicBilling.SYSCONFUUID)
+                    .key(ElectronicBilling.BASE + "report.Revision")
+                    .defaultValue("1")
+                    .description("Part of the fingerprint of the reports. A report is only rendered again if "
+                                    + "its fingerprint changed, so changing this value (e.g. after a change of "
+                                    + "the template) forces the re-rendering of all reports.");
+
     @EFapsSysConfAttribute
     public static final PropertiesSysConfAttribute EXPORT_SALERECORD = new PropertiesSysConfAttribute()
                     .sysConfUUID(ElectronicBilling.SYSCONFUUID)
@@ -0,0 +1,276 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lease of a job for one company, so that on a cluster of eFaps nodes a
+ * job is executed for a company by one node only. The lease is claimed
+ * with a conditional update that only succeeds if the lease is free, expired
+ * or already held by the node, and must be renewed before it expires. A
+ * lease that is not renewed (e.g. the node died) is taken over by another
+ * node after its expiry.<br/>
+ * Each node registers a heartbeat. The companies are spread over the live
+ * nodes by rendezvous hashing, so that a node only tries to claim the
+ * companies it owns and adding a node moves only the companies it takes
+ * over.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("08a09208-0844-45d1-b6c4-b6c92a12991a")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class JobLease
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobLease.class);
+
+    private static final String NODE = evalNode();
+
+    private static final String SQL_CLAIM = "UPDATE T_EBILLJOBLEASE SET NODE = ?, LEASEUNTIL = ?, MODIFIED = ?"
+                    + " WHERE COMPANYID = ? AND JOBNAME = ?"
+                    + " AND (NODE = ? OR NODE IS NULL OR LEASEUNTIL IS NULL OR LEASEUNTIL < ?)";
+
+    private static final String SQL_RENEW = "UPDATE T_EBILLJOBLEASE SET LEASEUNTIL = ?, MODIFIED = ?"
+                    + " WHERE COMPANYID = ? AND JOBNAME = ? AND NODE = ?";
+
+    private static final String SQL_HEARTBEAT = "UPDATE T_EBILLJOBNODE SET HEARTBEAT = ?, MODIFIED = ?"
+                    + " WHERE NODE = ?";
+
+    private static final String SQL_NODES = "SELECT NODE FROM T_EBILLJOBNODE WHERE HEARTBEAT > ?";
+
+    private final String jobName;
+    private final Long companyId;
+    private final Duration duration;
+
+    private JobLease(final String jobName,
+                     final Long companyId,
+                     final Duration duration)
+    {
+        this.jobName = jobName;
+        this.companyId = companyId;
+        this.duration = duration;
+    }
+
+    public String getJobName()
+    {
+        return jobName;
+    }
+
+    public Long getCompanyId()
+    {
+        return companyId;
+    }
+
+    /**
+     * Try to claim the lease for the given job and company.
+     *
+     * @param jobName name of the job
+     * @param companyId id of the company
+     * @param duration duration of the lease
+     * @return the lease or <code>null</code> if it is held by another node
+     * @throws EFapsException on error
+     */
+    public static JobLease claim(final String jobName,
+                                 final Long companyId,
+                                 final Duration duration)
+        throws EFapsException
+    {
+        final var now = Instant.now();
+        final var until = now.plus(duration);
+        var claimed = SQLUtil.executeUpdate(SQL_CLAIM, NODE, until, now, companyId, jobName, NODE, now) > 0;
+        if (!claimed && !exists(jobName, companyId)) {
+            // a concurrent insert by another node fails on the unique key,
+            // the CompanyJobRunner repeats the claim in a new Context then
+            EQL.builder().insert(CIEBilling.JobLease)
+                            .set(CIEBilling.JobLease.JobName, jobName)
+                            .stmt()
+                            .execute();
+            claimed = SQLUtil.executeUpdate(SQL_CLAIM, NODE, until, now, companyId, jobName, NODE, now) > 0;
+        }
+        LOG.debug("Lease for {} of company {} claimed: {}", jobName, companyId, claimed);
+        return claimed ? new JobLease(jobName, companyId, duration) : null;
+    }
+
+    /**
+     * Renew the lease.
+     *
+     * @return false if the lease was lost in the meantime
+     * @throws EFapsException on error
+     */
+    public boolean renew()
+        throws EFapsException
+    {
+        final var now = Instant.now();
+        return SQLUtil.executeUpdate(SQL_RENEW, now.plus(duration), now, companyId, jobName, NODE) > 0;
+    }
+
+    /**
+     * Release the lease, so that it can be claimed immediately.
+     *
+     * @throws EFapsException on error
+     */
+    public void release()
+        throws EFapsException
+    {
+        final var now = Instant.now();
+        SQLUtil.executeUpdate(SQL_RENEW, now, now, companyId, jobName, NODE);
+    }
+
+    /**
+     * @return name of this node, from the system property
+     *         "org.efaps.electronicbilling.Node" or the host name
+     */
+    public static String getNode()
+    {
+        return NODE;
+    }
+
+    /**
+     * Register the heartbeat of this node.
+     *
+     * @throws EFapsException on error
+     */
+    public static void heartbeat()
+        throws EFapsException
+    {
+        final var now = Instant.now();
+        if (SQLUtil.executeUpdate(SQL_HEARTBEAT, now, now, NODE) == 0) {
+            EQL.builder().insert(CIEBilling.JobNode)
+                            .set(CIEBilling.JobNode.Node, NODE)
+                            .stmt()
+                            .execute();
+            SQLUtil.executeUpdate(SQL_HEARTBEAT, now, now, NODE);
+        }
+    }
+
+    /**
+     * @param timeout a node without heartbeat within the timeout is
+     *            considered dead
+     * @return names of the live nodes, including this one
+     * @throws EFapsException on error
+     */
+    public static List<String> getLiveNodes(final Duration timeout)
+        throws EFapsException
+    {
+        final var ret = new ArrayList<String>();
+        try (var stmt = SQLUtil.prepare(SQL_NODES, Instant.now().minus(timeout)); var rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                ret.add(rs.getString(1));
+            }
+        } catch (final SQLException e) {
+            throw new EFapsException(JobLease.class, "getLiveNodes", e);
+        }
+        if (!ret.contains(NODE)) {
+            ret.add(NODE);
+        }
+        return ret;
+    }
+
+    /**
+     * Rendezvous hashing: the company is owned by the node with the highest
+     * weight for it.
+     *
+     * @param nodes live nodes
+     * @param companyId id of the company
+     * @return true if this node owns the company
+     */
+    public static boolean isOwner(final Collection<String> nodes,
+                                  final Long companyId)
+    {
+        return NODE.equals(getOwner(nodes, companyId));
+    }
+
+    /**
+     * Rendezvous hashing: the company is owned by the node with the highest
+     * weight for it, on equal weight by the lowest name.
+     *
+     * @param nodes live nodes
+     * @param companyId id of the company
+     * @return the owner of the company, <code>null</code> if there are no
+     *         nodes
+     */
+    public static String getOwner(final Collection<String> nodes,
+                                  final Long companyId)
+    {
+        String owner = null;
+        long max = Long.MIN_VALUE;
+        for (final var node : nodes) {
+            final var weight = weight(node, companyId);
+            if (owner == null || weight > max || weight == max && node.compareTo(owner) < 0) {
+                max = weight;
+                owner = node;
+            }
+        }
+        return owner;
+    }
+
+    private static long weight(final String node,
+                               final Long companyId)
+    {
+        // finalizer of MurmurHash3 for a well spread 64-bit value
+        long ret = node.hashCode() * 0x9E3779B97F4A7C15L + companyId;
+        ret ^= ret >>> 33;
+        ret *= 0xff51afd7ed558ccdL;
+        ret ^= ret >>> 33;
+        ret *= 0xc4ceb9fe1a85ec53L;
+        ret ^= ret >>> 33;
+        return ret;
+    }
+
+    private static boolean exists(final String jobName,
+                                  final Long companyId)
+        throws EFapsException
+    {
+        return EQL.builder().print()
+                        .query(CIEBilling.JobLease)
+                        .where()
+                        .attribute(CIEBilling.JobLease.JobName).eq(jobName)
+                        .select()
+                        .attribute(CIEBilling.JobLease.JobName)
+                        .evaluate()
+                        .next();
+    }
+
+    private static String evalNode()
+    {
+        var ret = System.getProperty("org.efaps.electronicbilling.Node");
+        if (ret == null) {
+            try {
+                ret = InetAddress.getLocalHost().getHostName();
+            } catch (final UnknownHostException e) {
+                ret = ManagementFactory.getRuntimeMXBean().getName();
+            }
+        }
+        return ret;
+    }
+}
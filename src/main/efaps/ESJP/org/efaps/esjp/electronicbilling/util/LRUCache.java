@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+
+/**
+ * Small thread safe cache with least recently used eviction and an optional
+ * time to live for the entries.
+ *
+ * @author The eFaps Team
+ * @param <K> key type
+ * @param <V> value type
+ */
+@EFapsUUID("8636c8a6-7a42-464b-a43f-022f50cd9545")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public class LRUCache<K, V>
+{
+
+    private final long ttlMillis;
+
+    private final Map<K, CacheEntry<V>> entries;
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param ttlMillis time to live of an entry in milliseconds, 0 or less
+     *            for no expiration
+     */
+    public LRUCache(final int maxSize,
+                    final long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+        entries = new LinkedHashMap<>(16, 0.75f, true)
+        {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, CacheEntry<V>> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key key
+     * @return the value, <code>null</code> if not present or expired
+     */
+    public synchronized V get(final K key)
+    {
+        V ret = null;
+        final var entry = entries.get(key);
+        if (entry != null) {
+            if (ttlMillis > 0 && System.currentTimeMillis() - entry.created > ttlMillis) {
+                entries.remove(key);
+            } else {
+                ret = entry.value;
+            }
+        }
+        return ret;
+    }
+
+    public synchronized void put(final K key,
+                                 final V value)
+    {
+        entries.put(key, new CacheEntry<>(value));
+    }
+
+    public synchronized void remove(final K key)
+    {
+        entries.remove(key);
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    private static final class CacheEntry<V>
+    {
+
+        private final V value;
+        private final long created;
+
+        private CacheEntry(final V value)
+        {
+            this.value = value;
+            created = System.currentTimeMillis();
+        }
+    }
+}
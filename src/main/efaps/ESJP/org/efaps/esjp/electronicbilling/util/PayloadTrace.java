@@ -0,0 +1,328 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.efaps.admin.common.SystemConfiguration;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.admin.user.Company;
+import org.efaps.ci.CIType;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIEBilling;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sampled and size limited tracing of the payloads (UBL, requests and
+ * responses). The payload is only build if the trace is active and the kind
+ * is sampled. The PAYLOADTRACE settings are parsed once per company and
+ * parsed again only if the SystemConfiguration was reloaded. Traces related
+ * to an electronic document are kept per thread until {@link #flush()} at
+ * the end of the operation hands them to a single background writer that
+ * stores them in the log types in its own transaction, so that tracing does
+ * not add an insert to the operation. The queue of the writer is bounded
+ * ("queueSize"), traces that do not fit are dropped.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("5b0a2d43-3c4f-4a3e-9c55-0a3a0e6f2c71")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class PayloadTrace
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadTrace.class);
+
+    private static final ThreadLocal<List<Entry>> PENDING = ThreadLocal.withInitial(ArrayList::new);
+
+    /** Key: id of the company, 0 if none. */
+    private static final Map<Long, Settings> CACHE = new ConcurrentHashMap<>();
+
+    private static ThreadPoolExecutor writer;
+
+    private static int writerQueueSize;
+
+    /**
+     * Kind of payload.
+     */
+    public enum Kind
+    {
+        /** UBL before signing. */
+        UBL(CIEBilling.LogRequest),
+        /** Signed UBL. */
+        SIGNED(CIEBilling.LogRequest),
+        /** Payload send to a webservice. */
+        REQUEST(CIEBilling.LogRequest),
+        /** Payload received from a webservice. */
+        RESPONSE(CIEBilling.LogResponse);
+
+        private final CIType logType;
+
+        Kind(final CIType logType)
+        {
+            this.logType = logType;
+        }
+
+        public CIType getLogType()
+        {
+            return logType;
+        }
+
+        public String getKey()
+        {
+            return name().toLowerCase();
+        }
+    }
+
+    private PayloadTrace()
+    {
+    }
+
+    /**
+     * @param kind kind of payload
+     * @return true if tracing for the given kind is possible at all
+     */
+    public static boolean isActive(final Kind kind)
+    {
+        final var settings = getSettings();
+        return settings != null && settings.isActive(kind);
+    }
+
+    /**
+     * Trace a payload. The supplier is only called if the kind is active and
+     * sampled.
+     *
+     * @param kind kind of payload
+     * @param eDocInst electronic document the payload belongs to, may be
+     *            <code>null</code>
+     * @param payload supplier for the payload
+     */
+    public static void trace(final Kind kind,
+                             final Instance eDocInst,
+                             final Supplier<String> payload)
+    {
+        final var settings = getSettings();
+        if (settings != null && settings.isActive(kind) && settings.isSampled(kind)) {
+            final var content = truncate(payload.get(), settings.maxSize);
+            LOG.info("{} for {}: {}", kind, eDocInst, content);
+            if (InstanceUtils.isValid(eDocInst) && settings.persist) {
+                PENDING.get().add(new Entry(kind, eDocInst, content));
+            }
+        }
+    }
+
+    /**
+     * Hand the traces of the current thread to the background writer.
+     *
+     * @throws EFapsException on error
+     */
+    public static void flush()
+        throws EFapsException
+    {
+        final var entries = PENDING.get();
+        PENDING.remove();
+        if (!entries.isEmpty()) {
+            final var context = Context.getThreadContext();
+            final var userName = context.getPerson().getName();
+            final var companyId = context.getCompany() == null ? null : context.getCompany().getId();
+            final var settings = getSettings();
+            try {
+                getWriter(settings == null ? 1000 : settings.queueSize).execute(
+                                () -> write(userName, companyId, entries));
+            } catch (final RejectedExecutionException e) {
+                LOG.warn("Queue of the payload traces is full, dropped {} traces", entries.size());
+            }
+        }
+    }
+
+    /**
+     * Drop the traces of the current thread without writing them.
+     */
+    public static void discard()
+    {
+        PENDING.remove();
+    }
+
+    /**
+     * Store the traces in the log types in an own transaction.
+     *
+     * @param userName name of the user the traces were made for
+     * @param companyId id of the company the traces were made for
+     * @param entries traces to store
+     */
+    private static void write(final String userName,
+                              final Long companyId,
+                              final List<Entry> entries)
+    {
+        try {
+            Context.begin(userName, Context.Inheritance.Local);
+            if (companyId != null) {
+                Context.getThreadContext().setCompany(Company.get(companyId));
+            }
+            for (final var entry : entries) {
+                EQL.builder().insert(entry.kind.getLogType())
+                                .set(CIEBilling.LogAbstract.DocumentLinkAbstract, entry.eDocInst)
+                                .set(CIEBilling.LogAbstract.Content, entry.content)
+                                .stmt()
+                                .execute();
+            }
+            Context.commit();
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        } finally {
+            try {
+                if (Context.isThreadActive()) {
+                    Context.rollback();
+                }
+            } catch (final EFapsException e) {
+                LOG.error("Catched", e);
+            }
+        }
+    }
+
+    /**
+     * Get the single writer thread. The thread is released after a while
+     * without traces. A change of the size of the queue replaces the
+     * writer, the old one ends after its queue was written.
+     *
+     * @param queueSize maximum number of flushes waiting to be written
+     * @return the writer
+     */
+    private static synchronized ThreadPoolExecutor getWriter(final int queueSize)
+    {
+        if (writer == null || writerQueueSize != queueSize) {
+            if (writer != null) {
+                writer.shutdown();
+            }
+            writer = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(queueSize),
+                            runnable -> {
+                                final var thread = new Thread(runnable, "EBilling-PayloadTrace");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            writer.allowCoreThreadTimeOut(true);
+            writerQueueSize = queueSize;
+        }
+        return writer;
+    }
+
+    /**
+     * @return the settings for the current company, <code>null</code> if
+     *         they could not be read
+     */
+    private static Settings getSettings()
+    {
+        Settings ret = null;
+        try {
+            final var company = Context.getThreadContext().getCompany();
+            final var companyId = company == null ? 0L : company.getId();
+            final var sysConf = ElectronicBilling.getSysConfig();
+            ret = CACHE.get(companyId);
+            if (ret == null || ret.sysConf != sysConf) {
+                ret = new Settings(sysConf);
+                CACHE.put(companyId, ret);
+            }
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+        return ret;
+    }
+
+    private static String truncate(final String content,
+                                   final int maxSize)
+    {
+        String ret = content;
+        if (content != null && maxSize > 0 && content.length() > maxSize) {
+            ret = content.substring(0, maxSize) + "... [truncated, " + content.length() + " characters]";
+        }
+        return ret;
+    }
+
+    /**
+     * Parsed PAYLOADTRACE of one company.
+     */
+    private static final class Settings
+    {
+
+        private final SystemConfiguration sysConf;
+        private final boolean active;
+        private final boolean persist;
+        private final int maxSize;
+        private final int queueSize;
+        private final Map<Kind, Double> sampleRates = new EnumMap<>(Kind.class);
+
+        private Settings(final SystemConfiguration sysConf)
+            throws EFapsException
+        {
+            this.sysConf = sysConf;
+            final var properties = ElectronicBilling.PAYLOADTRACE.get();
+            active = BooleanUtils.toBoolean(properties.getProperty("active"));
+            persist = BooleanUtils.toBoolean(properties.getProperty("persist", "true"));
+            maxSize = NumberUtils.toInt(properties.getProperty("maxSize"), 8192);
+            queueSize = Math.max(1, NumberUtils.toInt(properties.getProperty("queueSize"), 1000));
+            final var sampleRate = properties.getProperty("sampleRate", "0");
+            for (final var kind : Kind.values()) {
+                sampleRates.put(kind, NumberUtils.toDouble(
+                                properties.getProperty(kind.getKey() + ".sampleRate", sampleRate), 0));
+            }
+        }
+
+        private boolean isActive(final Kind kind)
+        {
+            return active && sampleRates.get(kind) > 0;
+        }
+
+        private boolean isSampled(final Kind kind)
+        {
+            final var rate = sampleRates.get(kind);
+            return rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate;
+        }
+    }
+
+    private static final class Entry
+    {
+
+        private final Kind kind;
+        private final Instance eDocInst;
+        private final String content;
+
+        private Entry(final Kind kind,
+                      final Instance eDocInst,
+                      final String content)
+        {
+            this.kind = kind;
+            this.eDocInst = eDocInst;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.util.EFapsException;
+
+/**
+ * Plain SQL on the connection of the current Context, for the few
+ * statements EQL can not express (conditional and set-based updates).
+ * The statements take part in the transaction of the Context.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("35bed329-c972-4066-b061-349c7d633137")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class SQLUtil
+{
+
+    private SQLUtil()
+    {
+    }
+
+    /**
+     * @param sql statement
+     * @param values values for the parameters, an {@link Instant} is set as
+     *            timestamp
+     * @return the number of affected rows
+     * @throws EFapsException on error
+     */
+    public static int executeUpdate(final String sql,
+                                    final Object... values)
+        throws EFapsException
+    {
+        try (var stmt = prepare(sql, values)) {
+            return stmt.executeUpdate();
+        } catch (final SQLException e) {
+            throw new EFapsException(SQLUtil.class, "executeUpdate", e);
+        }
+    }
+
+    /**
+     * @param sql statement
+     * @param values values for the parameters, an {@link Instant} is set as
+     *            timestamp
+     * @return the prepared statement, to be closed by the caller
+     * @throws EFapsException on error
+     * @throws SQLException on error
+     */
+    public static PreparedStatement prepare(final String sql,
+                                            final Object... values)
+        throws EFapsException, SQLException
+    {
+        final var con = Context.getThreadContext().getConnectionResource().getConnection();
+        final var stmt = con.prepareStatement(sql);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof Instant) {
+                stmt.setTimestamp(i + 1, Timestamp.from((Instant) values[i]));
+            } else {
+                stmt.setObject(i + 1, values[i]);
+            }
+        }
+        return stmt;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.esjp.electronicbilling.FiscusMapper;
+import org.efaps.esjp.electronicbilling.KeyEntryCache;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency and size metrics for the creation of UBL documents. For every
+ * document type, company and phase the last values are kept in a ring buffer
+ * from which the percentiles are calculated. The metrics are published as
+ * MBean "org.efaps.esjp.electronicbilling:type=UBLMetrics", together with
+ * the statistics of the {@link KeyEntryCache}.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("a7e1117a-d64d-464f-8cb2-bdba0f96f6c8")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public final class UBLMetrics
+    implements UBLMetricsMBean
+{
+
+    /**
+     * Phases of the UBL creation.
+     */
+    public enum Phase
+    {
+        /** Loading of the values and filling of the document. */
+        LOAD,
+        /** Marshalling to XML. */
+        MARSHAL,
+        /** Signing of the XML. */
+        SIGN,
+        /** Checkin of the signed XML. */
+        PERSIST,
+        /** Number of lines of the document (not a time). */
+        LINES;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(UBLMetrics.class);
+
+    private static final String OBJECTNAME = "org.efaps.esjp.electronicbilling:type=UBLMetrics";
+
+    private static final int SAMPLES = 1024;
+
+    private static final UBLMetrics INSTANCE = new UBLMetrics();
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            final var server = ManagementFactory.getPlatformMBeanServer();
+            final var name = new ObjectName(OBJECTNAME);
+            // the class might have been reloaded
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(INSTANCE, name);
+        } catch (final JMException e) {
+            LOG.warn("Could not register UBLMetrics MBean", e);
+        }
+    }
+
+    private UBLMetrics()
+    {
+    }
+
+    public static UBLMetrics get()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Record the time elapsed since the given start for the document.
+     *
+     * @param docInstance instance of the sales document
+     * @param phase phase
+     * @param startNanos start as given by {@link System#nanoTime()}
+     */
+    public static void record(final Instance docInstance,
+                              final Phase phase,
+                              final long startNanos)
+    {
+        record(FiscusMapper.getDocumentType4Document(docInstance), getCompanyId(), phase,
+                        System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record the number of lines for the document.
+     *
+     * @param docInstance instance of the sales document
+     * @param lines number of lines
+     */
+    public static void recordLines(final Instance docInstance,
+                                   final int lines)
+    {
+        record(FiscusMapper.getDocumentType4Document(docInstance), getCompanyId(), Phase.LINES, lines);
+    }
+
+    /**
+     * Record a value. Can be used from threads without Context.
+     *
+     * @param docType document type (e.g. "01")
+     * @param companyId id of the company
+     * @param phase phase
+     * @param value nanoseconds, for {@link Phase#LINES} the number of lines
+     */
+    public static void record(final String docType,
+                              final long companyId,
+                              final Phase phase,
+                              final long value)
+    {
+        INSTANCE.histograms.computeIfAbsent(docType + "|" + companyId + "|" + phase, k -> new Histogram())
+                        .add(value);
+    }
+
+    /**
+     * @return id of the company of the current context, 0 if none
+     */
+    public static long getCompanyId()
+    {
+        long ret = 0;
+        try {
+            if (Context.isThreadActive() && Context.getThreadContext().getCompany() != null) {
+                ret = Context.getThreadContext().getCompany().getId();
+            }
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+        return ret;
+    }
+
+    @Override
+    public String[] getStatistics()
+    {
+        final var sorted = new TreeMap<>(histograms);
+        return sorted.entrySet().stream()
+                        .map(entry -> entry.getKey() + ": "
+                                        + entry.getValue().describe(entry.getKey().endsWith(Phase.LINES.name())))
+                        .toArray(String[]::new);
+    }
+
+    @Override
+    public long getKeyEntryHits()
+    {
+        return KeyEntryCache.getHits();
+    }
+
+    @Override
+    public long getKeyEntryMisses()
+    {
+        return KeyEntryCache.getMisses();
+    }
+
+    @Override
+    public long getKeyEntryLoadTimeMillis()
+    {
+        return KeyEntryCache.getLoadTimeMillis();
+    }
+
+    @Override
+    public void reset()
+    {
+        histograms.clear();
+        KeyEntryCache.resetStatistics();
+    }
+
+    private static final class Histogram
+    {
+
+        private final long[] values = new long[SAMPLES];
+        private long count;
+        private long max;
+
+        private synchronized void add(final long value)
+        {
+            values[(int) (count % SAMPLES)] = value;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        private String describe(final boolean isCount)
+        {
+            final long[] sorted;
+            final long total;
+            final long maxValue;
+            synchronized (this) {
+                sorted = Arrays.copyOf(values, (int) Math.min(count, SAMPLES));
+                total = count;
+                maxValue = max;
+            }
+            Arrays.sort(sorted);
+            final double divisor = isCount ? 1 : 1_000_000d;
+            final var mean = sorted.length == 0 ? 0 : Arrays.stream(sorted).average().orElse(0);
+            return String.format("count=%d mean=%.2f p50=%.2f p95=%.2f p99=%.2f max=%.2f", total,
+                            mean / divisor, percentile(sorted, 50) / divisor, percentile(sorted, 95) / divisor,
+                            percentile(sorted, 99) / divisor, maxValue / divisor);
+        }
+
+        private static double percentile(final long[] sorted,
+                                         final int percentile)
+        {
+            double ret = 0;
+            if (sorted.length > 0) {
+                final var index = (int) Math.ceil(percentile / 100d * sorted.length) - 1;
+                ret = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+            }
+            return ret;
+        }
+    }
+}
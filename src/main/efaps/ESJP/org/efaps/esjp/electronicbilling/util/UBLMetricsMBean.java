@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+
+/**
+ * JMX interface for the {@link UBLMetrics}.
+ *
+ * @author The eFaps Team
+ */
+@EFapsUUID("c3c8f6b2-0239-4858-b2b0-6a0a45ea6bd7")
+@EFapsApplication("eFapsApp-ElectronicBilling")
+public interface UBLMetricsMBean
+{
+
+    /**
+     * One line per document type, company and phase with count, mean, p50,
+     * p95, p99 and max (milliseconds, for the lines phase number of lines).
+     *
+     * @return the statistics
+     */
+    String[] getStatistics();
+
+    /**
+     * @return number of signings that used the cached key entry
+     */
+    long getKeyEntryHits();
+
+    /**
+     * @return number of times the key entry was loaded from the store
+     */
+    long getKeyEntryMisses();
+
+    /**
+     * @return accumulated time in milliseconds spend on loading the key
+     *         entries from the store
+     */
+    long getKeyEntryLoadTimeMillis();
+
+    /**
+     * Remove all recorded values, including the key entry statistics.
+     */
+    void reset();
+}
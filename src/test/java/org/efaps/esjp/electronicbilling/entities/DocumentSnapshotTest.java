@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.entities;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.efaps.esjp.sales.tax.xml.TaxEntry;
+import org.efaps.esjp.sales.tax.xml.Taxes;
+import org.efaps.esjp.sales.util.Sales.TaxRetention;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DocumentSnapshotTest
+{
+
+    private static final UUID IGV = UUID.fromString("06e40be6-40d8-44f4-9d8f-585f2f97ce63");
+
+    private static final UUID ICBPER = UUID.fromString("b3b0b2c6-7ad4-4ad5-8a8a-d13cde3b6c8d");
+
+    @Test
+    public void sameContentSameFingerprint()
+    {
+        Assert.assertEquals(snapshot(b -> {}, p -> {}, false).getFingerprint(),
+                        snapshot(b -> {}, p -> {}, false).getFingerprint());
+    }
+
+    @Test
+    public void orderDoesNotMatter()
+    {
+        Assert.assertEquals(snapshot(b -> {}, p -> {}, true).getFingerprint(),
+                        snapshot(b -> {}, p -> {}, false).getFingerprint());
+    }
+
+    @Test
+    public void trailingZerosDoNotMatter()
+    {
+        Assert.assertEquals(snapshot(b -> b.withCrossTotal(new BigDecimal("118.00")), p -> {}, false)
+                        .getFingerprint(), snapshot(b -> {}, p -> {}, false).getFingerprint());
+    }
+
+    @Test
+    public void anyChangeChangesFingerprint()
+    {
+        final List<Consumer<DocumentSnapshot.Builder>> changes = new ArrayList<>();
+        changes.add(b -> b.withName("F001-000124"));
+        changes.add(b -> b.withDate(LocalDate.of(2024, 1, 3)));
+        changes.add(b -> b.withDueDate(LocalDate.of(2024, 2, 3)));
+        changes.add(b -> b.withRateCurrencyId(2L));
+        changes.add(b -> b.withRateCrossTotal(new BigDecimal("119")));
+        changes.add(b -> b.withRateNetTotal(new BigDecimal("101")));
+        changes.add(b -> b.withCrossTotal(new BigDecimal("119")));
+        changes.add(b -> b.withTaxes(taxes(new BigDecimal("18.01"), false)));
+        changes.add(b -> b.withContactName("Other S.A.C."));
+        changes.add(b -> b.withTaxNumber("20100000003"));
+        changes.add(b -> b.withIdentityCard("12345678"));
+        changes.add(b -> b.withDoiType("1"));
+        changes.add(b -> b.withRetention(TaxRetention.AGENT));
+        changes.add(b -> b.withPaymentConditionName("Credito 30"));
+        changes.add(b -> b.withFreeOfCharge(true));
+        changes.add(b -> b.withReference(null, "F001-000001", LocalDate.of(2023, 12, 1)));
+        changes.add(b -> b.withCreditReason("Anulacion"));
+
+        final List<Consumer<DocumentSnapshot.PositionBuilder>> posChanges = new ArrayList<>();
+        posChanges.add(p -> p.withQuantity(new BigDecimal("3")));
+        posChanges.add(p -> p.withProductName("P-0002"));
+        posChanges.add(p -> p.withProductDesc("Other product"));
+        posChanges.add(p -> p.withUoMId(2L));
+        posChanges.add(p -> p.withRateDiscountNetUnitPrice(new BigDecimal("51")));
+        posChanges.add(p -> p.withRateCrossUnitPrice(new BigDecimal("60")));
+        posChanges.add(p -> p.withRateNetPrice(new BigDecimal("51")));
+        posChanges.add(p -> p.withRateCrossPrice(new BigDecimal("60")));
+        posChanges.add(p -> p.withRateTaxes(taxes(new BigDecimal("9.01"), false)));
+
+        final var fingerprints = new HashSet<String>();
+        fingerprints.add(snapshot(b -> {}, p -> {}, false).getFingerprint());
+        for (final var change : changes) {
+            Assert.assertTrue(fingerprints.add(snapshot(change, p -> {}, false).getFingerprint()));
+        }
+        for (final var change : posChanges) {
+            Assert.assertTrue(fingerprints.add(snapshot(b -> {}, change, false).getFingerprint()));
+        }
+    }
+
+    private static DocumentSnapshot snapshot(final Consumer<DocumentSnapshot.Builder> change,
+                                             final Consumer<DocumentSnapshot.PositionBuilder> posChange,
+                                             final boolean reversed)
+    {
+        final var bldr = DocumentSnapshot.builder()
+                        .withName("F001-000123")
+                        .withDate(LocalDate.of(2024, 1, 2))
+                        .withDueDate(LocalDate.of(2024, 2, 2))
+                        .withRateCurrencyId(1L)
+                        .withRateCrossTotal(new BigDecimal("118"))
+                        .withRateNetTotal(new BigDecimal("100"))
+                        .withCrossTotal(new BigDecimal("118"))
+                        .withTaxes(taxes(new BigDecimal("18"), reversed))
+                        .withContactName("Customer S.A.C.")
+                        .withTaxNumber("20100000002")
+                        .withDoiType("6");
+        change.accept(bldr);
+        final var positions = new ArrayList<DocumentSnapshot.Position>();
+        for (int i = 1; i < 3; i++) {
+            final var posBldr = DocumentSnapshot.Position.builder()
+                            .withPositionNumber(i)
+                            .withQuantity(new BigDecimal("2"))
+                            .withProductName("P-000" + i)
+                            .withProductDesc("Product " + i)
+                            .withUoMId(1L)
+                            .withRateDiscountNetUnitPrice(new BigDecimal("50"))
+                            .withRateCrossUnitPrice(new BigDecimal("59"))
+                            .withRateNetPrice(new BigDecimal("50"))
+                            .withRateCrossPrice(new BigDecimal("59"))
+                            .withRateTaxes(taxes(new BigDecimal("9"), reversed));
+            // only the last position is changed
+            if (i == 2) {
+                posChange.accept(posBldr);
+            }
+            positions.add(posBldr.build());
+        }
+        if (reversed) {
+            positions.sort((pos1, pos2) -> pos2.getPositionNumber().compareTo(pos1.getPositionNumber()));
+        }
+        positions.forEach(bldr::addPosition);
+        return bldr.build();
+    }
+
+    private static Taxes taxes(final BigDecimal igv,
+                               final boolean reversed)
+    {
+        final var ret = new Taxes();
+        final var igvEntry = new TaxEntry();
+        igvEntry.setUUID(IGV);
+        igvEntry.setAmount(igv);
+        igvEntry.setBase(new BigDecimal("100"));
+        final var icbperEntry = new TaxEntry();
+        icbperEntry.setUUID(ICBPER);
+        icbperEntry.setAmount(new BigDecimal("0.5"));
+        icbperEntry.setBase(new BigDecimal("1"));
+        if (reversed) {
+            ret.getEntries().add(icbperEntry);
+            ret.getEntries().add(igvEntry);
+        } else {
+            ret.getEntries().add(igvEntry);
+            ret.getEntries().add(icbperEntry);
+        }
+        return ret;
+    }
+}
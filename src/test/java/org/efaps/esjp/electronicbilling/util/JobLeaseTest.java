@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.electronicbilling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class JobLeaseTest
+{
+
+    private static final int COMPANIES = 1000;
+
+    private static final List<String> NODES = Arrays.asList("node-a", "node-b", "node-c", "node-d");
+
+    @Test
+    public void ownershipIsStable()
+    {
+        final var reversed = new ArrayList<>(NODES);
+        Collections.reverse(reversed);
+        for (long companyId = 1; companyId <= COMPANIES; companyId++) {
+            final var owner = JobLease.getOwner(NODES, companyId);
+            Assert.assertTrue(NODES.contains(owner));
+            Assert.assertEquals(JobLease.getOwner(NODES, companyId), owner);
+            Assert.assertEquals(JobLease.getOwner(reversed, companyId), owner);
+        }
+    }
+
+    @Test
+    public void companiesAreSpread()
+    {
+        final var counts = new HashMap<String, Integer>();
+        for (long companyId = 1; companyId <= COMPANIES; companyId++) {
+            counts.merge(JobLease.getOwner(NODES, companyId), 1, Integer::sum);
+        }
+        for (final var node : NODES) {
+            final int count = counts.getOrDefault(node, 0);
+            Assert.assertTrue(count > COMPANIES / NODES.size() / 2, node + " owns " + count);
+            Assert.assertTrue(count < COMPANIES / NODES.size() * 2, node + " owns " + count);
+        }
+    }
+
+    @Test
+    public void addedNodeMovesOnlyItsCompanies()
+    {
+        final var added = new ArrayList<>(NODES);
+        added.add("node-e");
+        int moved = 0;
+        for (long companyId = 1; companyId <= COMPANIES; companyId++) {
+            final var before = JobLease.getOwner(NODES, companyId);
+            final var after = JobLease.getOwner(added, companyId);
+            if (!before.equals(after)) {
+                // a company only moves to the new node, never between the old ones
+                Assert.assertEquals(after, "node-e");
+                moved++;
+            }
+        }
+        // about a fifth of the companies is taken over by the new node
+        Assert.assertTrue(moved > COMPANIES / 10, "moved " + moved);
+        Assert.assertTrue(moved < COMPANIES * 3 / 10, "moved " + moved);
+    }
+
+    @Test
+    public void noNodesNoOwner()
+    {
+        Assert.assertNull(JobLease.getOwner(Collections.emptyList(), 1L));
+    }
+}